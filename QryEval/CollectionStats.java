@@ -0,0 +1,297 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.Bits;
+
+/**
+ *  An immutable snapshot of the collection statistics of an index:
+ *  the number of documents, and for each indexed field, the number of
+ *  documents that contain it, the sum, average, minimum and maximum of
+ *  its lengths.  Retrieval models use these values for every document
+ *  that they score, so Idx computes them once when an index is opened.
+ *  <p>
+ *  Computing the minimum and maximum field lengths requires a pass
+ *  over every document's lengths, so the snapshot is saved in a
+ *  sidecar file in the index directory, and later runs read it from
+ *  there.  A snapshot that was saved for a different version of the
+ *  index is recomputed.
+ *  </p>
+ */
+public class CollectionStats {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the sidecar file, which Idx.getSidecarPath places in
+   *  the index directory.
+   */
+  public static final String SIDECAR_NAME = "stats";
+
+  private static final int MAGIC = 0x51455354;
+  private static final int FORMAT_VERSION = 1;
+
+  private final long numDocs;
+  private final Map<String,FieldStats> fields;
+
+  /**
+   *  The statistics of one field.
+   */
+  public static class FieldStats {
+
+    private final int docCount;
+    private final long sumOfLengths;
+    private final double avgLength;
+    private final long minLength;
+    private final long maxLength;
+
+    private FieldStats (int docCount, long sumOfLengths, long minLength, long maxLength) {
+      this.docCount = docCount;
+      this.sumOfLengths = sumOfLengths;
+      this.avgLength = sumOfLengths / (double) docCount;
+      this.minLength = minLength;
+      this.maxLength = maxLength;
+    }
+
+    /**
+     *  Get the number of documents that contain the field.
+     *  @return The document count.
+     */
+    public int getDocCount () {
+      return this.docCount;
+    }
+
+    /**
+     *  Get the total number of term occurrences in every instance of
+     *  the field.
+     *  @return The sum of the field lengths.
+     */
+    public long getSumOfLengths () {
+      return this.sumOfLengths;
+    }
+
+    /**
+     *  Get the average length of the field, getSumOfLengths divided by
+     *  getDocCount.
+     *  @return The average field length.
+     */
+    public double getAvgLength () {
+      return this.avgLength;
+    }
+
+    /**
+     *  Get the smallest length of the field in a document that
+     *  contains it, as reported by Idx.getFieldLength.
+     *  @return The minimum field length, or 0 if no document has the
+     *  field or the field has no lengths.
+     */
+    public long getMinLength () {
+      return this.minLength;
+    }
+
+    /**
+     *  Get the largest length of the field, as reported by
+     *  Idx.getFieldLength.
+     *  @return The maximum field length.
+     */
+    public long getMaxLength () {
+      return this.maxLength;
+    }
+  }
+
+  /**
+   *  The statistics of a field that is not in the index.  Lucene
+   *  reports zero for such fields.
+   */
+  private static final FieldStats MISSING_FIELD = new FieldStats (0, 0, 0, 0);
+
+  //  --------------- Methods ---------------------------------------
+
+  private CollectionStats (long numDocs, Map<String,FieldStats> fields) {
+    this.numDocs = numDocs;
+    this.fields = Collections.unmodifiableMap (fields);
+  }
+
+  /**
+   *  Get the total number of documents in the corpus.
+   *  @return The number of documents.
+   */
+  public long getNumDocs () {
+    return this.numDocs;
+  }
+
+  /**
+   *  Get the statistics of a field.
+   *  @param fieldName The field name.
+   *  @return The field statistics.  A field that is not in the index
+   *  has a document count and lengths of 0.
+   */
+  public FieldStats getFieldStats (String fieldName) {
+    FieldStats s = this.fields.get (fieldName);
+    return (s == null) ? MISSING_FIELD : s;
+  }
+
+  /**
+   *  Get the statistics of an index, reading them from the sidecar
+   *  file if it is current, otherwise computing them and saving them
+   *  in the sidecar file.
+   *  @param reader The index.
+   *  @param docLengthStore The index's document lengths.
+   *  @param path The sidecar file.
+   *  @return The collection statistics.
+   *  @throws IOException Error accessing the index.
+   */
+  public static CollectionStats open (IndexReader reader,
+                                      DocLengthStore docLengthStore,
+                                      Path path)
+    throws IOException {
+
+    CollectionStats stats = read (reader, path);
+
+    if (stats != null) {
+      return stats;
+    }
+
+    stats = compute (reader, docLengthStore);
+
+    //  The index directory may not be writable.  The statistics are
+    //  still usable; they just can't be saved for the next run.
+
+    try {
+      stats.write (reader, path);
+    } catch (IOException ex) {
+      System.err.println ("Warning:  Unable to save " + path + ":  " + ex.getMessage ());
+    }
+
+    return stats;
+  }
+
+  /**
+   *  Compute the statistics of an index.
+   *  @param reader The index.
+   *  @param docLengthStore The index's document lengths.
+   *  @return The collection statistics.
+   *  @throws IOException Error accessing the index.
+   */
+  private static CollectionStats compute (IndexReader reader,
+                                          DocLengthStore docLengthStore)
+    throws IOException {
+
+    Map<String,FieldStats> fields = new HashMap<String,FieldStats> ();
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+
+    for (String field : MultiFields.getIndexedFields (reader)) {
+      long minLength = Long.MAX_VALUE;
+      long maxLength = 0;
+
+      //  Fields that are indexed without norms (e.g., externalId) have
+      //  no lengths.
+
+      DocLengthStore.FieldLengths lengths = docLengthStore.getFieldLengths (field);
+
+      if (lengths != null) {
+        for (int docid = 0; docid < reader.maxDoc (); docid++) {
+          if ((liveDocs != null) && (! liveDocs.get (docid))) {
+            continue;
+          }
+
+          long length = lengths.get (docid);
+
+          if (length > 0) {
+            minLength = Math.min (minLength, length);
+            maxLength = Math.max (maxLength, length);
+          }
+        }
+      }
+
+      if (minLength == Long.MAX_VALUE) {
+        minLength = 0;
+      }
+
+      fields.put (field, new FieldStats (reader.getDocCount (field),
+                                         reader.getSumTotalTermFreq (field),
+                                         minLength, maxLength));
+    }
+
+    return new CollectionStats (reader.numDocs (), fields);
+  }
+
+  /**
+   *  Read the statistics of an index from a sidecar file.
+   *  @param reader The index.
+   *  @param path The sidecar file.
+   *  @return The collection statistics, or null if the file is missing,
+   *  unreadable, or was written for a different version of the index.
+   */
+  private static CollectionStats read (IndexReader reader, Path path) {
+
+    if (! Files.exists (path)) {
+      return null;
+    }
+
+    try (DataInputStream in = new DataInputStream (
+           new BufferedInputStream (Files.newInputStream (path)))) {
+
+      if ((in.readInt () != MAGIC) ||
+          (in.readInt () != FORMAT_VERSION) ||
+          (in.readLong () != Idx.getIndexVersion (reader)) ||
+          (in.readInt () != reader.maxDoc ())) {
+        return null;
+      }
+
+      long numDocs = in.readLong ();
+      int numFields = in.readInt ();
+      Map<String,FieldStats> fields = new HashMap<String,FieldStats> ();
+
+      for (int i = 0; i < numFields; i++) {
+        String field = in.readUTF ();
+        int docCount = in.readInt ();
+        long sumOfLengths = in.readLong ();
+        long minLength = in.readLong ();
+        long maxLength = in.readLong ();
+        fields.put (field, new FieldStats (docCount, sumOfLengths, minLength, maxLength));
+      }
+
+      return new CollectionStats (numDocs, fields);
+    } catch (IOException ex) {
+      System.err.println ("Warning:  Ignoring " + path + ":  " + ex.getMessage ());
+      return null;
+    }
+  }
+
+  /**
+   *  Save the statistics of an index in a sidecar file.
+   *  @param reader The index.
+   *  @param path The sidecar file.
+   *  @throws IOException Error writing the file.
+   */
+  private void write (IndexReader reader, Path path) throws IOException {
+
+    Path tmp = path.resolveSibling (path.getFileName () + ".tmp");
+
+    try (DataOutputStream out = new DataOutputStream (
+           new BufferedOutputStream (Files.newOutputStream (tmp)))) {
+
+      out.writeInt (MAGIC);
+      out.writeInt (FORMAT_VERSION);
+      out.writeLong (Idx.getIndexVersion (reader));
+      out.writeInt (reader.maxDoc ());
+      out.writeLong (this.numDocs);
+      out.writeInt (this.fields.size ());
+
+      for (Map.Entry<String,FieldStats> e : this.fields.entrySet ()) {
+        FieldStats s = e.getValue ();
+        out.writeUTF (e.getKey ());
+        out.writeInt (s.docCount);
+        out.writeLong (s.sumOfLengths);
+        out.writeLong (s.minLength);
+        out.writeLong (s.maxLength);
+      }
+    }
+
+    Files.move (tmp, path, StandardCopyOption.REPLACE_EXISTING);
+  }
+}
@@ -2,9 +2,16 @@
  *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
  */
 
-import java.io.IOException;
-import java.util.HashMap;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.MultiDocValues;
@@ -12,21 +19,127 @@ import org.apache.lucene.index.MultiFields;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * <p>
+ * The first time a field is used, its lengths are copied from the
+ * Lucene norms into a compact array outside the Java heap.  If the
+ * store knows the index directory, the array is saved in a sidecar
+ * file and later runs memory-map it instead.  Fields that are never
+ * used are never loaded.
+ * </p><p>
+ * getFieldLengths returns a handle for one field, so that code that
+ * looks up many lengths in the same field avoids a lookup by field
+ * name for each document.
+ * </p>
  */
 public class DocLengthStore  {
 
+  /**
+   * The prefix of the sidecar file names, which Idx.getSidecarPath
+   * places in the index directory.  Each field has its own sidecar,
+   * e.g., "lengths.body".
+   */
+  public static final String SIDECAR_PREFIX = "lengths.";
+
+  private static final int MAGIC = 0x51454c4e;
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_SIZE = 24;
+
   private IndexReader reader;
-  private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private String indexPath;
+  private Map<String, FieldLengths> values = new ConcurrentHashMap<String, FieldLengths>();
+
+  /**
+   * Marks a field that has no lengths, since the map can't hold null.
+   */
+  private static final FieldLengths NO_LENGTHS = new FieldLengths();
+
+  /**
+   * The lengths of one field.  Lengths are stored in 2 bytes each when
+   * they all fit, otherwise in 4 bytes each.
+   */
+  public static class FieldLengths {
+
+    private final CharBuffer shortLengths;
+    private final IntBuffer intLengths;
+
+    private FieldLengths() {
+      this.shortLengths = null;
+      this.intLengths = null;
+    }
+
+    private FieldLengths(ByteBuffer buffer, int width) {
+      buffer.position(HEADER_SIZE);
+      ByteBuffer data = buffer.slice();
+      this.shortLengths = (width == 2) ? data.asCharBuffer() : null;
+      this.intLengths = (width == 4) ? data.asIntBuffer() : null;
+    }
+
+    /**
+     * Returns the length of the field in the specified document.
+     *
+     * @param docid The internal docid in the lucene index.
+     * @return int The length of the field.
+     */
+    public int get(int docid) {
+      return (shortLengths != null) ? shortLengths.get(docid) : intLengths.get(docid);
+    }
+  }
 
   /**
    * @param reader IndexReader object created in {@link Idx}.
    * @throws IOException Error accessing the Lucene index.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
+    this(reader, null);
+  }
+
+  /**
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param indexPath The index directory, where lengths are saved, or
+   * null if they should not be saved.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public DocLengthStore(IndexReader reader, String indexPath) throws IOException {
     this.reader = reader;
-    for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+    this.indexPath = indexPath;
+  }
+
+  /**
+   * Returns whether document lengths are stored for the specified
+   * field.  Fields that are indexed without norms have no lengths.
+   *
+   * @param fieldname Name of field.
+   * @return boolean True if the field has document lengths.
+   */
+  public boolean hasDocLengths(String fieldname) {
+    FieldInfo info = MultiFields.getMergedFieldInfos(reader).fieldInfo(fieldname);
+    return (info != null) && info.hasNorms();
+  }
+
+  /**
+   * Returns the lengths of the specified field, loading them if this
+   * is the first time that the field is used.
+   *
+   * @param fieldname Name of field to access lengths.
+   * @return FieldLengths The lengths of the field, or null if the
+   * field has no lengths.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public FieldLengths getFieldLengths(String fieldname) throws IOException {
+    FieldLengths lengths = values.get(fieldname);
+
+    if (lengths == null) {
+      synchronized (this) {
+        lengths = values.get(fieldname);
+
+        if (lengths == null) {
+          lengths = hasDocLengths(fieldname) ? load(fieldname) : NO_LENGTHS;
+          values.put(fieldname, lengths);
+        }
+      }
     }
+
+    return (lengths == NO_LENGTHS) ? null : lengths;
   }
 
   /**
@@ -39,6 +152,93 @@ public class DocLengthStore  {
    * @throws IOException Error accessing the Lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    return getFieldLengths(fieldname).get(docid);
+  }
+
+  /**
+   * Loads the lengths of a field from its sidecar file, or from the
+   * Lucene norms if the sidecar is missing or out of date.
+   */
+  private FieldLengths load(String fieldname) throws IOException {
+    Path path = (indexPath == null) ? null :
+      Idx.getSidecarPath(indexPath, SIDECAR_PREFIX + fieldname);
+
+    if ((path != null) && Files.exists(path)) {
+      MappedByteBuffer buffer;
+
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+
+      if ((buffer.capacity() >= HEADER_SIZE) &&
+          (buffer.getInt(0) == MAGIC) &&
+          (buffer.getInt(4) == FORMAT_VERSION) &&
+          (buffer.getLong(8) == Idx.getIndexVersion(reader)) &&
+          (buffer.getInt(16) == reader.maxDoc())) {
+        return new FieldLengths(buffer, buffer.getInt(20));
+      }
+    }
+
+    ByteBuffer buffer = materialize(fieldname);
+
+    //  The index directory may not be writable.  The lengths are still
+    //  usable; they just can't be saved for the next run.
+
+    if (path != null) {
+      Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+
+      try (FileChannel channel = FileChannel.open(tmp,
+             StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+             StandardOpenOption.TRUNCATE_EXISTING)) {
+        ByteBuffer out = buffer.duplicate();
+        out.position(0);
+
+        while (out.hasRemaining()) {
+          channel.write(out);
+        }
+      } catch (IOException ex) {
+        System.err.println("Warning:  Unable to save " + path + ":  " + ex.getMessage());
+        tmp = null;
+      }
+
+      if (tmp != null) {
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+
+    return new FieldLengths(buffer, buffer.getInt(20));
+  }
+
+  /**
+   * Copies the lengths of a field from the Lucene norms into a direct
+   * buffer that has the same layout as a sidecar file.
+   */
+  private ByteBuffer materialize(String fieldname) throws IOException {
+    NumericDocValues norms = MultiDocValues.getNormValues(reader, fieldname);
+    int maxDoc = reader.maxDoc();
+    long maxLength = 0;
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      maxLength = Math.max(maxLength, norms.get(docid));
+    }
+
+    int width = (maxLength <= Character.MAX_VALUE) ? 2 : 4;
+    ByteBuffer buffer = ByteBuffer.allocateDirect(HEADER_SIZE + width * maxDoc);
+
+    buffer.putInt(MAGIC);
+    buffer.putInt(FORMAT_VERSION);
+    buffer.putLong(Idx.getIndexVersion(reader));
+    buffer.putInt(maxDoc);
+    buffer.putInt(width);
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      if (width == 2) {
+        buffer.putChar((char) norms.get(docid));
+      } else {
+        buffer.putInt((int) norms.get(docid));
+      }
+    }
+
+    return buffer;
   }
 }
@@ -0,0 +1,284 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ *  A memory-mapped map between internal and external document ids,
+ *  stored in a sidecar file next to a Lucene index.  Reading an
+ *  external id from Lucene requires loading a stored document, and
+ *  finding an internal id requires a term lookup, so QryEval uses
+ *  this map instead whenever it is present.  Run it as a program to
+ *  build the sidecar for an index.
+ *  <p>
+ *  The map also stores each document's <i>ordinal</i>, the rank of
+ *  its external id in String.compareTo order.  Documents with equal
+ *  scores are ranked by external id, so comparing ordinals gives the
+ *  same result as comparing external ids, without decoding strings.
+ *  </p><p>
+ *  File layout, big-endian:  a header (magic, format version, index
+ *  version, maxDoc, number of documents with an external id); the
+ *  byte offset of each document's external id (maxDoc+1 ints); each
+ *  document's ordinal, or -1 if it has no external id (maxDoc ints);
+ *  the docids in ordinal order (one int per document with an external
+ *  id); and the UTF-8 external ids.
+ *  </p>
+ */
+public class DocidMap {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the sidecar file, which Idx.getSidecarPath places in
+   *  the index directory.
+   */
+  public static final String SIDECAR_NAME = "docids";
+
+  private static final int MAGIC = 0x51454449;
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_SIZE = 24;
+
+  private static String externalIdField = new String ("externalId");
+
+  private final MappedByteBuffer buffer;
+  private final int maxDoc;
+  private final int numIds;
+  private final int offsetsStart;
+  private final int ordinalsStart;
+  private final int byOrdinalStart;
+  private final int dataStart;
+
+  //  --------------- Methods ---------------------------------------
+
+  private DocidMap (MappedByteBuffer buffer) {
+    this.buffer = buffer;
+    this.maxDoc = buffer.getInt (16);
+    this.numIds = buffer.getInt (20);
+    this.offsetsStart = HEADER_SIZE;
+    this.ordinalsStart = this.offsetsStart + 4 * (this.maxDoc + 1);
+    this.byOrdinalStart = this.ordinalsStart + 4 * this.maxDoc;
+    this.dataStart = this.byOrdinalStart + 4 * this.numIds;
+  }
+
+  /**
+   *  Open the docid map of an index, if it has one.  A map that was
+   *  built for a different version of the index is ignored.
+   *  @param reader The index.
+   *  @param path The sidecar file.
+   *  @return The map, or null if there is no usable map.
+   *  @throws IOException Error reading the sidecar file.
+   */
+  public static DocidMap open (IndexReader reader, Path path)
+    throws IOException {
+
+    MappedByteBuffer buffer = Idx.mapSidecar (reader, path, MAGIC, FORMAT_VERSION,
+                                               HEADER_SIZE, "a docid map");
+
+    return (buffer == null) ? null : new DocidMap (buffer);
+  }
+
+  /**
+   *  Build the docid map of an index.
+   *  @param reader The index.
+   *  @param path The sidecar file.
+   *  @throws IOException Error accessing the index or writing the file.
+   */
+  public static void build (IndexReader reader, Path path)
+    throws IOException {
+
+    int maxDoc = reader.maxDoc ();
+    String[] externalIds = new String[maxDoc];
+    byte[][] bytes = new byte[maxDoc][];
+    long dataLength = 0;
+    int numIds = 0;
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      externalIds[docid] = reader.document (docid).get (externalIdField);
+
+      if (externalIds[docid] != null) {
+        bytes[docid] = externalIds[docid].getBytes (StandardCharsets.UTF_8);
+        dataLength += bytes[docid].length;
+        numIds ++;
+      }
+    }
+
+    long fileLength =
+      HEADER_SIZE + 4L * (maxDoc + 1) + 4L * maxDoc + 4L * numIds + dataLength;
+
+    if (fileLength > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException (
+        "The docid map would be larger than 2GB, which is not supported.");
+    }
+
+    //  Sort the docids by external id.  Equal ids share an ordinal.
+
+    Integer[] byOrdinal = new Integer[numIds];
+
+    for (int docid = 0, n = 0; docid < maxDoc; docid++) {
+      if (externalIds[docid] != null) {
+        byOrdinal[n++] = docid;
+      }
+    }
+
+    Arrays.sort (byOrdinal, (a, b) -> externalIds[a].compareTo (externalIds[b]));
+
+    int[] ordinals = new int[maxDoc];
+    Arrays.fill (ordinals, -1);
+
+    for (int n = 0; n < numIds; n++) {
+      int docid = byOrdinal[n];
+
+      if ((n > 0) && externalIds[docid].equals (externalIds[byOrdinal[n - 1]])) {
+        ordinals[docid] = ordinals[byOrdinal[n - 1]];
+      } else {
+        ordinals[docid] = n;
+      }
+    }
+
+    //  Write the file.
+
+    Path tmp = path.resolveSibling (path.getFileName () + ".tmp");
+
+    try (DataOutputStream out = new DataOutputStream (
+           new BufferedOutputStream (Files.newOutputStream (tmp)))) {
+
+      out.writeInt (MAGIC);
+      out.writeInt (FORMAT_VERSION);
+      out.writeLong (Idx.getIndexVersion (reader));
+      out.writeInt (maxDoc);
+      out.writeInt (numIds);
+
+      int offset = 0;
+
+      for (int docid = 0; docid < maxDoc; docid++) {
+        out.writeInt (offset);
+        offset += (bytes[docid] == null) ? 0 : bytes[docid].length;
+      }
+
+      out.writeInt (offset);
+
+      for (int docid = 0; docid < maxDoc; docid++) {
+        out.writeInt (ordinals[docid]);
+      }
+
+      for (int n = 0; n < numIds; n++) {
+        out.writeInt (byOrdinal[n]);
+      }
+
+      for (int docid = 0; docid < maxDoc; docid++) {
+        if (bytes[docid] != null) {
+          out.write (bytes[docid]);
+        }
+      }
+    }
+
+    Files.move (tmp, path, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   *  Get the external id of a document.
+   *  @param docid An internal document id.
+   *  @return The external document id, or null if it has none.
+   */
+  public String getExternalDocid (int docid) {
+
+    if (this.getOrdinal (docid) < 0) {
+      return null;
+    }
+
+    int start = this.buffer.getInt (this.offsetsStart + 4 * docid);
+    int end = this.buffer.getInt (this.offsetsStart + 4 * (docid + 1));
+    byte[] b = new byte[end - start];
+
+    //  Absolute gets leave the buffer's position alone, so the map can
+    //  be shared by several threads.
+
+    for (int i = 0; i < b.length; i++) {
+      b[i] = this.buffer.get (this.dataStart + start + i);
+    }
+
+    return new String (b, StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Get the internal id of a document.
+   *  @param externalId An external document id.
+   *  @return The internal document id, or -1 if there is no such document.
+   *  @throws Exception More than one document has this external id.
+   */
+  public int getInternalDocid (String externalId)
+    throws Exception {
+
+    //  Find the first position in ordinal order whose id is not less
+    //  than externalId.
+
+    int lo = 0;
+    int hi = this.numIds;
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (this.getExternalDocid (this.getDocidByOrdinal (mid)).compareTo (externalId) < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+
+    if ((lo == this.numIds) ||
+        (! this.getExternalDocid (this.getDocidByOrdinal (lo)).equals (externalId))) {
+      return -1;
+    }
+
+    if ((lo + 1 < this.numIds) &&
+        this.getExternalDocid (this.getDocidByOrdinal (lo + 1)).equals (externalId)) {
+      throw new Exception ("Multiple matches for external id " + externalId);
+    }
+
+    return this.getDocidByOrdinal (lo);
+  }
+
+  /**
+   *  Get the ordinal of a document's external id.  Ordinals compare
+   *  the same way as the external ids do.
+   *  @param docid An internal document id.
+   *  @return The ordinal, or -1 if the document has no external id.
+   */
+  public int getOrdinal (int docid) {
+    return this.buffer.getInt (this.ordinalsStart + 4 * docid);
+  }
+
+  private int getDocidByOrdinal (int n) {
+    return this.buffer.getInt (this.byOrdinalStart + 4 * n);
+  }
+
+  /**
+   *  Build the docid map for an index.
+   *  @param args The index path.
+   *  @throws IOException Error accessing the index.
+   */
+  public static void main (String[] args) throws IOException {
+
+    if (args.length != 1) {
+      System.err.println ("Usage:  java DocidMap INDEX_PATH");
+      System.exit (1);
+    }
+
+    Timer timer = new Timer ();
+    timer.start ();
+
+    try (IndexReader reader =
+           DirectoryReader.open (FSDirectory.open (Paths.get (args[0])))) {
+      Path path = Idx.getSidecarPath (args[0], SIDECAR_NAME);
+      build (reader, path);
+      System.out.println ("Wrote " + path + " for " + reader.maxDoc () + " documents.");
+    }
+
+    timer.stop ();
+    System.out.println ("Time:  " + timer);
+  }
+}
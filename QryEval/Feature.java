@@ -300,12 +300,16 @@ public class Feature {
         double b = ((RetrievalModelLetor) r).b;
         double k_3 = ((RetrievalModelLetor) r).k_3;
 
+        // Idx parameters
+        long numDocs = Idx.getCollectionStats().getNumDocs();
+        double avgDocLen = Idx.getFieldStats(field).getAvgLength();
+
         for(int i = 0; i < vec.stemsLength(); i++){
             if(termSet.contains(vec.stemString(i))) {
                 double tf = vec.stemFreq(i);
-                double idf = Math.max(0, Math.log((Idx.getNumDocs() - vec.stemDf(i) + 0.5) / (vec.stemDf(i) + 0.5)));
+                double idf = Math.max(0, Math.log((numDocs - vec.stemDf(i) + 0.5) / (vec.stemDf(i) + 0.5)));
 
-                double tf_weight = tf / (tf + k_1 * (1 - b + b * Idx.getFieldLength(field, docid) / (Idx.getSumOfFieldLengths(field) / (double) Idx.getDocCount(field))));
+                double tf_weight = tf / (tf + k_1 * (1 - b + b * Idx.getFieldLength(field, docid) / avgDocLen));
                 double user_weight = (k_3 + 1) * 1 / (k_3 + 1);
 
                 score += idf * tf_weight * user_weight;
@@ -327,7 +331,7 @@ public class Feature {
         double lambda = ((RetrievalModelLetor) r).lambda;
 
         // Idx parameters
-        double collLen = Idx.getSumOfFieldLengths(field);
+        double collLen = Idx.getFieldStats(field).getSumOfLengths();
         double docLen = Idx.getFieldLength(field, docid);
 
         for (String stem : terms) {
@@ -404,13 +408,14 @@ public class Feature {
     private double getScoreTfidf(int docid, String field, String[] querys) throws IOException {
         double score = 0;
         TermVector vec = new TermVector(docid, field);
+        long numDocs = Idx.getCollectionStats().getNumDocs();
         for (String stem : querys) {
             //if no stem, i will be -1 for arkansas
             int i = vec.indexOfStem(stem);
             if (i == -1)
                 continue;
 
-            double idf = Math.max(0, Math.log((Idx.getNumDocs() - vec.stemDf(i) + 0.5) / (vec.stemDf(i) + 0.5)));
+            double idf = Math.max(0, Math.log((numDocs - vec.stemDf(i) + 0.5) / (vec.stemDf(i) + 0.5)));
             score += vec.stemFreq(i) * idf;
         }
 
@@ -7,8 +7,16 @@ import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.BytesRef;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  *  Idx manages and provides access to Lucene indexes and auxiliary
@@ -19,6 +27,11 @@ import java.util.HashMap;
  *  federated search).  The Idx class designates one index the
  *  <i>current</i> index.  All requests are satisfied from the current
  *  index.  setCurrentIndex changes the current index.
+ *  </p><p>
+ *  Once an index is open, several threads may use Idx at the same
+ *  time, e.g., to evaluate queries in parallel.  open and
+ *  setCurrentIndex must not be called while other threads are using
+ *  the current index.
  *  </p>
  */
 public class Idx {
@@ -32,10 +45,30 @@ public class Idx {
 
   private static DocLengthStore DOCLENGTHSTORE=null;
 
+  private static DocidMap DOCIDMAP=null;
+
+  private static CollectionStats STATS=null;
+
+  private static Map<String,ImpactIndex> IMPACTINDEXES=null;
+
+  private static Map<String,TermStats> TERMSTATS=null;
+
+  private static TierIndex TIERINDEX=null;
+
   private static HashMap<String,IndexReader> openIndexReaders =
     new HashMap<String,IndexReader> ();
   private static HashMap<String,DocLengthStore> openDocLengthStores =
     new HashMap<String,DocLengthStore> ();
+  private static HashMap<String,DocidMap> openDocidMaps =
+    new HashMap<String,DocidMap> ();
+  private static HashMap<String,CollectionStats> openCollectionStats =
+    new HashMap<String,CollectionStats> ();
+  private static HashMap<String,Map<String,ImpactIndex>> openImpactIndexes =
+    new HashMap<String,Map<String,ImpactIndex>> ();
+  private static HashMap<String,Map<String,TermStats>> openTermStats =
+    new HashMap<String,Map<String,TermStats>> ();
+  private static HashMap<String,TierIndex> openTierIndexes =
+    new HashMap<String,TierIndex> ();
   private static String externalIdField = new String ("externalId");
 
   //  --------------- Methods ---------------------------------------
@@ -54,6 +87,24 @@ public class Idx {
     return d.get (attributeName);
   }
 
+  /**
+   *  Get the collection statistics of the current index.  They are
+   *  computed once, when the index is opened.
+   *  @return the collection statistics
+   */
+  public static CollectionStats getCollectionStats () {
+    return Idx.STATS;
+  }
+
+  /**
+   *  Get the collection statistics of the specified field.
+   *  @param fieldName the field name
+   *  @return the field statistics
+   */
+  public static CollectionStats.FieldStats getFieldStats (String fieldName) {
+    return Idx.STATS.getFieldStats (fieldName);
+  }
+
   /**
    *  Get the number of documents that contain the specified field.
    *  @param fieldName the field name
@@ -62,7 +113,27 @@ public class Idx {
    */
   public static int getDocCount (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
+    return Idx.STATS.getFieldStats (fieldName).getDocCount ();
+  }
+
+  /**
+   *  Get the document frequency (df) of a term in a field (e.g., the
+   *  number of documents that contain 'apple' in the title field).
+   *  If the field has term statistics (see TermStats), the df comes
+   *  from them.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The number of documents that contain the term.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getDocFreq (String fieldName, String term)
+    throws IOException {
+    TermStats stats = Idx.TERMSTATS.get (fieldName);
+
+    if (stats != null) {
+      return stats.getDf (term);
+    }
+    return INDEXREADER.docFreq (new Term (fieldName, new BytesRef (term)));
   }
 
   /**
@@ -73,11 +144,41 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
+    if (Idx.DOCIDMAP != null) {
+      return Idx.DOCIDMAP.getExternalDocid(iid);
+    }
+
     Document d = Idx.INDEXREADER.document(iid);
     String eid = d.get(externalIdField);
     return eid;
   }
 
+  /**
+   *  Indicates whether external docid ordinals are available for the
+   *  current index.  They are available when the index has a docid map
+   *  sidecar (see DocidMap).
+   *  @return True if getExternalDocidOrdinal can be used.
+   */
+  public static boolean hasExternalDocidOrdinals() {
+    return (Idx.DOCIDMAP != null);
+  }
+
+  /**
+   *  Get the ordinal of a document's external id, its rank in sorted
+   *  order.  Comparing the ordinals of two documents gives the same
+   *  result as comparing their external ids.
+   *  @param iid The internal document id of the document.
+   *  @return the ordinal of the external document id
+   *  @throws IllegalStateException The current index has no docid map.
+   */
+  public static int getExternalDocidOrdinal(int iid) {
+    if (Idx.DOCIDMAP == null) {
+      throw new IllegalStateException("The current index has no docid map.");
+    }
+
+    return Idx.DOCIDMAP.getOrdinal(iid);
+  }
+
   /**
    *  Get the length of the specified field in the specified document.
    *  @param fieldName Name of field to access lengths.
@@ -90,6 +191,48 @@ public class Idx {
     return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
   }
 
+  /**
+   *  Get the lengths of the specified field, e.g., to look up the
+   *  lengths of many documents without a lookup by field name for each.
+   *  @param fieldName Name of field to access lengths.
+   *  @return the field lengths, or null if the field has no lengths.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static DocLengthStore.FieldLengths getFieldLengths (String fieldName)
+    throws IOException {
+    return Idx.DOCLENGTHSTORE.getFieldLengths (fieldName);
+  }
+
+  /**
+   *  Indicates whether the specified field has term statistics that
+   *  replace Lucene's df and ctf, e.g., because the current index is
+   *  a pruned index (see TermStats).
+   *  @param fieldName Name of the field.
+   *  @return True if getDocFreq and getTotalTermFreq use term statistics.
+   */
+  public static boolean hasTermStats (String fieldName) {
+    return Idx.TERMSTATS.containsKey (fieldName);
+  }
+
+  /**
+   *  Get the impact index of the specified field, if the current index
+   *  has one (see ImpactIndex).
+   *  @param fieldName Name of the field.
+   *  @return the impact index, or null if the field has none.
+   */
+  public static ImpactIndex getImpactIndex (String fieldName) {
+    return Idx.IMPACTINDEXES.get (fieldName);
+  }
+
+  /**
+   *  Get the tier of the current index, if its documents are in
+   *  static-rank order (see TierIndex).
+   *  @return the tier, or null if the index has none.
+   */
+  public static TierIndex getTierIndex () {
+    return Idx.TIERINDEX;
+  }
+
   /**
    * Get the internal document id for a document specified by its
    * external id, e.g. clueweb09-enwp00-88-09710. If no such document
@@ -101,6 +244,10 @@ public class Idx {
   public static int getInternalDocid(String externalId)
     throws Exception {
 
+    if (Idx.DOCIDMAP != null) {
+      return Idx.DOCIDMAP.getInternalDocid(externalId);
+    }
+
     BytesRef termBytes = new BytesRef (externalId);
     Term term = new Term (externalIdField, termBytes);
     int df = Idx.INDEXREADER.docFreq (term);
@@ -124,7 +271,123 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static long getNumDocs () throws IOException {
-    return Idx.INDEXREADER.numDocs();
+    return Idx.STATS.getNumDocs();
+  }
+
+  /**
+   *  Get a number that identifies the version of an index, so that a
+   *  sidecar file built for an older version can be recognized.
+   *  @param reader The index.
+   *  @return The version, or 0 if the reader does not provide one.
+   */
+  static long getIndexVersion (IndexReader reader) {
+    return (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getVersion () : 0;
+  }
+
+  /**
+   *  Get the path of a sidecar file, an auxiliary data structure that
+   *  QryEval stores in the index directory.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param name The name of the sidecar.
+   *  @return The path of the sidecar file.
+   */
+  public static Path getSidecarPath (String indexPath, String name) {
+    return Paths.get (indexPath, "QryEval." + name);
+  }
+
+  /**
+   *  Memory-map a sidecar file.  Sidecars begin with a magic number, a
+   *  format version, the index version (a long) and maxDoc.  A file
+   *  that is not the expected kind of sidecar, or that was built for a
+   *  different version of the index, is ignored with a warning.
+   *  @param reader The index.
+   *  @param path The sidecar file.
+   *  @param magic The magic number of this kind of sidecar.
+   *  @param formatVersion The format version that is supported.
+   *  @param headerSize The size of the header, in bytes.
+   *  @param description What this kind of sidecar is, for warnings,
+   *  e.g., "a docid map".
+   *  @return The sidecar, or null if it doesn't exist or is ignored.
+   *  @throws IOException Error reading the sidecar file.
+   */
+  static MappedByteBuffer mapSidecar (IndexReader reader, Path path, int magic,
+                                      int formatVersion, int headerSize,
+                                      String description)
+    throws IOException {
+
+    if (! Files.exists (path)) {
+      return null;
+    }
+
+    MappedByteBuffer buffer;
+
+    try (FileChannel channel = FileChannel.open (path, StandardOpenOption.READ)) {
+      buffer = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+    }
+
+    if ((buffer.capacity () < headerSize) ||
+        (buffer.getInt (0) != magic) ||
+        (buffer.getInt (4) != formatVersion)) {
+      System.err.println ("Warning:  Ignoring " + path + ", which is not " + description + ".");
+      return null;
+    }
+
+    if ((buffer.getLong (8) != getIndexVersion (reader)) ||
+        (buffer.getInt (16) != reader.maxDoc ())) {
+      System.err.println ("Warning:  Ignoring " + path +
+                          ", which was built for a different version of the index.");
+      return null;
+    }
+
+    return buffer;
+  }
+
+  /**
+   *  Find a term in a sidecar's table of terms.  The table is the byte
+   *  offset of each term (numTerms+1 ints, relative to the first term)
+   *  and the UTF-8 terms, in Lucene's order, which compares unsigned
+   *  bytes.
+   *  @param buffer The sidecar.
+   *  @param numTerms The number of terms.
+   *  @param offsetsStart The position of the term offsets.
+   *  @param termsStart The position of the first term.
+   *  @param term The term.
+   *  @return The index of the term, or -1 if it is not in the table.
+   */
+  static int findSidecarTerm (ByteBuffer buffer, int numTerms, int offsetsStart,
+                              int termsStart, String term) {
+
+    byte[] target = term.getBytes (StandardCharsets.UTF_8);
+    int lo = 0;
+    int hi = numTerms;
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      int start = termsStart + buffer.getInt (offsetsStart + 4 * mid);
+      int end = termsStart + buffer.getInt (offsetsStart + 4 * (mid + 1));
+      int length = end - start;
+      int c = length - target.length;
+
+      for (int i = 0; i < Math.min (length, target.length); i++) {
+        int d = (buffer.get (start + i) & 0xff) - (target[i] & 0xff);
+
+        if (d != 0) {
+          c = d;
+          break;
+        }
+      }
+
+      if (c < 0) {
+        lo = mid + 1;
+      } else if (c > 0) {
+        hi = mid;
+      } else {
+        return mid;
+      }
+    }
+
+    return -1;
   }
 
   /**
@@ -137,14 +400,15 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    return Idx.STATS.getFieldStats (fieldName).getSumOfLengths ();
   }
 
 
   /**
    *  Get the collection term frequency (ctf) of a term in
    *  a field (e.g., the total number of times the term 'apple'
-   *  occurs in title fields.
+   *  occurs in title fields.  If the field has term statistics (see
+   *  TermStats), the ctf comes from them.
    *  @param fieldName The field name.
    *  @param term The term.
    *  @return The total number of term occurrence
@@ -152,12 +416,20 @@ public class Idx {
    */
   public static long getTotalTermFreq (String fieldName, String term)
     throws IOException {
+    TermStats stats = Idx.TERMSTATS.get (fieldName);
+
+    if (stats != null) {
+      return stats.getCtf (term);
+    }
     return INDEXREADER.totalTermFreq (new Term (fieldName, new BytesRef (term)));
   }
 
 
   /**
-   *  Open a Lucene index and the associated DocLengthStore.
+   *  Open a Lucene index, the associated DocLengthStore, and its
+   *  collection statistics.  If the index has a docid map sidecar,
+   *  impact index sidecars or term statistics sidecars, they are
+   *  opened too.
    *  @param indexPath A directory that contains a Lucene index.
    *  @throws IllegalArgumentException Unable to open the index.
    *  @throws IOException Error accessing the index.
@@ -180,22 +452,58 @@ public class Idx {
     //  Lucene doesn't store field lengths the way that we want them,
     //  so we have our own document length store.
 
-    docLengthStore = new DocLengthStore (indexReader);
+    docLengthStore = new DocLengthStore (indexReader, indexPath);
   
     if (docLengthStore == null) {
       throw new IllegalArgumentException ("Unable to open the document length store.");
     }
 
+    //  Collection statistics are needed for every document that is
+    //  scored, so they are computed (or read from a sidecar) just once.
+
+    CollectionStats stats = CollectionStats.open (
+      indexReader, docLengthStore,
+      getSidecarPath (indexPath, CollectionStats.SIDECAR_NAME));
+
+    //  The docid map is optional.  See DocidMap.
+
+    DocidMap docidMap = DocidMap.open (
+      indexReader, getSidecarPath (indexPath, DocidMap.SIDECAR_NAME));
+
+    //  Impact indexes are optional too.  See ImpactIndex.
+
+    Map<String,ImpactIndex> impactIndexes =
+      ImpactIndex.openAll (indexReader, indexPath);
+
+    //  A pruned index has the term statistics of the full index.  See
+    //  TermStats.
+
+    Map<String,TermStats> termStats = TermStats.openAll (indexReader, indexPath);
+
+    //  An index in static-rank order has a tier.  See TierIndex.
+
+    TierIndex tierIndex = TierIndex.open (indexReader, indexPath);
+
     //  Keep track of the open indexes.
 
     openIndexReaders.put (indexPath, indexReader);
     openDocLengthStores.put (indexPath, docLengthStore);
+    openDocidMaps.put (indexPath, docidMap);
+    openCollectionStats.put (indexPath, stats);
+    openImpactIndexes.put (indexPath, impactIndexes);
+    openTermStats.put (indexPath, termStats);
+    openTierIndexes.put (indexPath, tierIndex);
 
     //  The current index defaults to the first open index.
 
     if (Idx.INDEXREADER == null) {
       Idx.INDEXREADER = indexReader;
       Idx.DOCLENGTHSTORE = docLengthStore;
+      Idx.DOCIDMAP = docidMap;
+      Idx.STATS = stats;
+      Idx.IMPACTINDEXES = impactIndexes;
+      Idx.TERMSTATS = termStats;
+      Idx.TIERINDEX = tierIndex;
     }
   }
 
@@ -217,5 +525,10 @@ public class Idx {
 
     Idx.INDEXREADER = indexReader;
     Idx.DOCLENGTHSTORE = docLengthStore;
+    Idx.DOCIDMAP = openDocidMaps.get (indexPath);
+    Idx.STATS = openCollectionStats.get (indexPath);
+    Idx.IMPACTINDEXES = openImpactIndexes.get (indexPath);
+    Idx.TERMSTATS = openTermStats.get (indexPath);
+    Idx.TIERINDEX = openTierIndexes.get (indexPath);
   }
 }
@@ -0,0 +1,344 @@
+import java.io.IOException;
+
+/**
+ *  Score-at-a-time evaluation of BM25 #SUM queries from impact-ordered
+ *  postings (see ImpactIndex), with a postings budget and a time
+ *  budget.
+ *  <p>
+ *  The segments of every query term are processed in one sequence, in
+ *  descending impact order, and each segment's impact is added to the
+ *  accumulators of its documents.  The postings that matter most are
+ *  processed first, so evaluation can stop at any point with a useful
+ *  ranking:  when the number of postings processed reaches the
+ *  postings budget, or when the time budget runs out.  With no budget,
+ *  every posting is processed, and the ranking differs from exhaustive
+ *  BM25 only by the quantization of the impacts.
+ *  </p><p>
+ *  Queries are evaluated from the impact indexes only; their inverted
+ *  lists are never read.  A query can be evaluated if its terms' fields
+ *  have impact indexes that were built for the model's k_1 and b.
+ *  </p><p>
+ *  When reporting is on, QryEval also evaluates each query
+ *  exhaustively, and the overlap between the two rankings is printed
+ *  for the query and summarized at the end of the run, so that the
+ *  budgets can be tuned.
+ *  </p>
+ */
+public class ImpactEvaluator {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The depth at which rankings are compared when all documents are
+   *  requested (k = 0).
+   */
+  private static final int REPORT_DEPTH = 100;
+
+  /**
+   *  The time budget is checked once every TIME_CHECK_INTERVAL
+   *  postings (it must be a power of 2).
+   */
+  private static final int TIME_CHECK_INTERVAL = 1024;
+
+  private static boolean enabled = false;
+  private static boolean reporting = false;
+
+  /**
+   *  The largest number of postings processed per query, or 0 for no
+   *  limit.
+   */
+  private static long postingsBudget = 0;
+
+  /**
+   *  The longest time spent per query, in nanoseconds, or 0 for no
+   *  limit.
+   */
+  private static long timeBudget = 0;
+
+  /**
+   *  Totals for the report.
+   */
+  private static int reportQueries = 0;
+  private static double reportOverlap10 = 0.0;
+  private static double reportOverlapK = 0.0;
+  private static double reportPostings = 0.0;
+  private static long reportNanos = 0;
+  private static long reportExhaustiveNanos = 0;
+
+  /**
+   *  The results of one evaluation, and how much work it did.
+   */
+  public static class Run {
+
+    private final ScoreList results;
+    private final int k;
+    private final long postings;
+    private final long totalPostings;
+    private final long nanos;
+
+    private Run (ScoreList results, int k, long postings, long totalPostings, long nanos) {
+      this.results = results;
+      this.k = k;
+      this.postings = postings;
+      this.totalPostings = totalPostings;
+      this.nanos = nanos;
+    }
+
+    /**
+     *  Get the ranking.
+     *  @return The matching documents, sorted.
+     */
+    public ScoreList getResults () {
+      return this.results;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Choose whether queries that can be evaluated from impact indexes
+   *  are.
+   *  @param enable True to evaluate them score-at-a-time.
+   */
+  public static void setEnabled (boolean enable) {
+    ImpactEvaluator.enabled = enable;
+  }
+
+  /**
+   *  Indicates whether queries that can be evaluated from impact
+   *  indexes are.
+   *  @return True if they are evaluated score-at-a-time.
+   */
+  public static boolean isEnabled () {
+    return ImpactEvaluator.enabled;
+  }
+
+  /**
+   *  Set the largest number of postings processed per query.
+   *  @param budget The number of postings, or 0 for no limit.
+   */
+  public static void setPostingsBudget (long budget) {
+    ImpactEvaluator.postingsBudget = budget;
+  }
+
+  /**
+   *  Set the longest time spent per query.
+   *  @param ms The time in milliseconds, or 0 for no limit.
+   */
+  public static void setTimeBudget (double ms) {
+    ImpactEvaluator.timeBudget = (long) (ms * 1000000);
+  }
+
+  /**
+   *  Choose whether each early-stopped ranking is compared with an
+   *  exhaustive one.
+   *  @param report True to compare the rankings.
+   */
+  public static void setReporting (boolean report) {
+    ImpactEvaluator.reporting = report;
+  }
+
+  /**
+   *  Indicates whether each early-stopped ranking is compared with an
+   *  exhaustive one.
+   *  @return True if the rankings are compared.
+   */
+  public static boolean isReporting () {
+    return ImpactEvaluator.reporting;
+  }
+
+  /**
+   *  Indicates whether a query can be evaluated by this class.  The
+   *  query must be a BM25 #SUM whose arguments are all SCORE operators
+   *  on terms, and each term's field must have an impact index built
+   *  for the model's k_1 and b.  The query need not be initialized.
+   *  @param q A query.
+   *  @param r The retrieval model.
+   *  @return True if the query can be evaluated, otherwise false.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel r) {
+
+    if (! ((q instanceof QrySopSum) && (r instanceof RetrievalModelBM25))) {
+      return false;
+    }
+
+    RetrievalModelBM25 model = (RetrievalModelBM25) r;
+
+    for (Qry q_i: q.args) {
+      if (! ((q_i instanceof QrySopScore) && (q_i.args.get (0) instanceof QryIopTerm))) {
+        return false;
+      }
+
+      ImpactIndex impacts = Idx.getImpactIndex (((QryIop) q_i.args.get (0)).getField ());
+
+      if ((impacts == null) ||
+          (impacts.getK1 () != model.k_1) ||
+          (impacts.getB () != model.b)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate a query within the postings and time budgets.
+   *  @param q A query that satisfies canEvaluate.
+   *  @param model The BM25 retrieval model.
+   *  @param k The number of documents to return, or 0 for all of them.
+   *  @return The ranking, and how much work it took.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static Run evaluate (Qry q, RetrievalModelBM25 model, int k)
+    throws IOException {
+
+    long start = System.nanoTime ();
+    long deadline = (timeBudget > 0) ? start + timeBudget : Long.MAX_VALUE;
+    long budget = (postingsBudget > 0) ? postingsBudget : Long.MAX_VALUE;
+
+    //  Every field has its own scale, so each term's impacts are
+    //  converted to scores separately.
+
+    int n = q.args.size ();
+    ImpactIndex.TermImpacts[] lists = new ImpactIndex.TermImpacts[n];
+    double[] scales = new double[n];
+    int[] segments = new int[n];
+    long totalPostings = 0;
+    boolean oneScale = true;
+
+    for (int i = 0; i < n; i++) {
+      QryIopTerm t = (QryIopTerm) q.args.get (i).args.get (0);
+      ImpactIndex impacts = Idx.getImpactIndex (t.getField ());
+
+      lists[i] = impacts.getTermImpacts (t.getTerm ().toLowerCase ());
+      scales[i] = impacts.getScale ();
+      oneScale &= (scales[i] == scales[0]);
+
+      if (lists[i] != null) {
+        totalPostings += lists[i].getDf ();
+      }
+    }
+
+    //  Process the segments of all terms in descending order of their
+    //  scores.  Accumulators hold integer impacts when every term has
+    //  the same scale, otherwise scores.
+
+    int maxDoc = Idx.INDEXREADER.maxDoc ();
+    double[] acc = new double[maxDoc];
+    int[] touched = new int[(int) Math.min (totalPostings, maxDoc)];
+    int numTouched = 0;
+    long postings = 0;
+
+    done:
+    while (true) {
+      int best = -1;
+      double bestScore = 0.0;
+
+      for (int i = 0; i < n; i++) {
+        if ((lists[i] != null) && (segments[i] < lists[i].getNumSegments ())) {
+          double score = lists[i].getImpact (segments[i]) * scales[i];
+
+          if ((best < 0) || (score > bestScore)) {
+            best = i;
+            bestScore = score;
+          }
+        }
+      }
+
+      if (best < 0) {
+        break;
+      }
+
+      ImpactIndex.TermImpacts list = lists[best];
+      int s = segments[best]++;
+      double impact = oneScale ? list.getImpact (s) : bestScore;
+
+      for (int j = 0; j < list.getCount (s); j++) {
+        if (postings == budget) {
+          break done;
+        }
+        if (((postings & (TIME_CHECK_INTERVAL - 1)) == 0) &&
+            (System.nanoTime () > deadline)) {
+          break done;
+        }
+
+        int docid = list.getDocid (s, j);
+
+        if (acc[docid] == 0.0) {
+          touched[numTouched++] = docid;
+        }
+        acc[docid] += impact;
+        postings ++;
+      }
+    }
+
+    //  Select the results.
+
+    double scale = oneScale ? scales[0] : 1.0;
+    ScoreList r;
+
+    if (k > 0) {
+      TopKCollector topK = new TopKCollector (k);
+
+      for (int i = 0; i < numTouched; i++) {
+        topK.add (touched[i], acc[touched[i]] * scale);
+      }
+      r = topK.toScoreList ();
+    } else {
+      r = new ScoreList ();
+
+      for (int i = 0; i < numTouched; i++) {
+        r.add (touched[i], acc[touched[i]] * scale);
+      }
+      r.sort ();
+    }
+
+    return new Run (r, k, postings, totalPostings, System.nanoTime () - start);
+  }
+
+  /**
+   *  Compare an early-stopped ranking with an exhaustive one, print the
+   *  comparison, and add it to the summary.
+   *  @param run The score-at-a-time evaluation of a query.
+   *  @param exhaustive The exhaustive ranking of the same query.
+   *  @param exhaustiveNanos The time that the exhaustive evaluation took.
+   */
+  public static synchronized void report (Run run, ScoreList exhaustive,
+                                          long exhaustiveNanos) {
+
+    int depth = (run.k > 0) ? run.k : REPORT_DEPTH;
+    double overlap10 = run.results.getOverlap (exhaustive, Math.min (10, depth));
+    double overlapK = run.results.getOverlap (exhaustive, depth);
+    double fraction = (run.totalPostings > 0) ?
+      run.postings / (double) run.totalPostings : 1.0;
+
+    System.out.println (String.format (
+      "    impacts:  overlap@10 %.3f, overlap@%d %.3f, postings %d of %d (%.1f%%), %.3f ms vs %.3f ms",
+      overlap10, depth, overlapK, run.postings, run.totalPostings, 100 * fraction,
+      run.nanos / 1e6, exhaustiveNanos / 1e6));
+
+    reportQueries ++;
+    reportOverlap10 += overlap10;
+    reportOverlapK += overlapK;
+    reportPostings += fraction;
+    reportNanos += run.nanos;
+    reportExhaustiveNanos += exhaustiveNanos;
+  }
+
+  /**
+   *  Get a summary of the comparisons that were reported.
+   *  @return The summary, or null if nothing was reported.
+   */
+  public static synchronized String getReport () {
+
+    if (reportQueries == 0) {
+      return null;
+    }
+
+    return String.format (
+      "Impact-ordered evaluation:  %d queries, mean overlap@10 %.3f, mean overlap@k %.3f, " +
+      "mean postings %.1f%%, time %.1f ms vs %.1f ms exhaustive",
+      reportQueries, reportOverlap10 / reportQueries, reportOverlapK / reportQueries,
+      100 * reportPostings / reportQueries, reportNanos / 1e6, reportExhaustiveNanos / 1e6);
+  }
+}
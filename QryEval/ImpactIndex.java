@@ -0,0 +1,479 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+
+/**
+ *  A memory-mapped, impact-ordered copy of the BM25 postings of one
+ *  field, stored in a sidecar file next to a Lucene index.  Run it as
+ *  a program to build the sidecar for an index; ImpactEvaluator uses
+ *  it to evaluate queries score-at-a-time.
+ *  <p>
+ *  The <i>impact</i> of a posting is the score that the BM25 SCORE
+ *  operator gives the document for the term, computed by the same
+ *  formula as QrySopScore.getScoreBM25, for k_1 and b fixed when the
+ *  sidecar is built.  Impacts are quantized to integers from 1 to
+ *  2^bits-1:  the quantized impact is round (impact / scale), where
+ *  scale is the largest impact in the field divided by 2^bits-1.
+ *  Postings whose quantized impact is 0 contribute less than scale/2
+ *  to any document, and are dropped.
+ *  </p><p>
+ *  Each term's postings are stored in <i>segments</i>, one for each
+ *  distinct quantized impact, in descending impact order.  Within a
+ *  segment the docids increase.
+ *  </p><p>
+ *  File layout, big-endian:  a header (magic, format version, index
+ *  version, maxDoc, number of terms, k_1, b, number of impact levels,
+ *  scale); the byte offset of each term (numTerms+1 ints); the byte
+ *  offset of each term's postings (numTerms+1 ints); the UTF-8 terms,
+ *  in index order; and the postings.  A term's postings are the number
+ *  of segments, each segment's impact and number of docids, and then
+ *  the docids of every segment.
+ *  </p>
+ */
+public class ImpactIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The prefix of the sidecar file names.  Each field has its own
+   *  sidecar, e.g., "impacts.body".
+   */
+  public static final String SIDECAR_PREFIX = "impacts.";
+
+  private static final int MAGIC = 0x51454950;
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_SIZE = 52;
+
+  /**
+   *  The default number of bits per quantized impact.
+   */
+  private static final int DEFAULT_BITS = 8;
+
+  private final MappedByteBuffer buffer;
+  private final int numTerms;
+  private final double k_1;
+  private final double b;
+  private final int levels;
+  private final double scale;
+  private final int termOffsetsStart;
+  private final int postingsOffsetsStart;
+  private final int termsStart;
+  private final int postingsStart;
+
+  /**
+   *  The postings of one term, as a list of segments in descending
+   *  impact order.
+   */
+  public static class TermImpacts {
+
+    private final MappedByteBuffer buffer;
+    private final int[] impacts;
+    private final int[] counts;
+    private final int[] starts;
+    private final long df;
+
+    private TermImpacts (MappedByteBuffer buffer, int position) {
+      int numSegments = buffer.getInt (position);
+      int docids = position + 4 + 8 * numSegments;
+      long df = 0;
+
+      this.buffer = buffer;
+      this.impacts = new int[numSegments];
+      this.counts = new int[numSegments];
+      this.starts = new int[numSegments];
+
+      for (int s = 0; s < numSegments; s++) {
+        this.impacts[s] = buffer.getInt (position + 4 + 8 * s);
+        this.counts[s] = buffer.getInt (position + 8 + 8 * s);
+        this.starts[s] = docids;
+        docids += 4 * this.counts[s];
+        df += this.counts[s];
+      }
+
+      this.df = df;
+    }
+
+    /**
+     *  Get the number of postings that were kept for the term.
+     *  @return The number of postings.
+     */
+    public long getDf () {
+      return this.df;
+    }
+
+    /**
+     *  Get the number of segments.
+     *  @return The number of segments.
+     */
+    public int getNumSegments () {
+      return this.impacts.length;
+    }
+
+    /**
+     *  Get the quantized impact of a segment.
+     *  @param s A segment.
+     *  @return The impact of every posting in the segment.
+     */
+    public int getImpact (int s) {
+      return this.impacts[s];
+    }
+
+    /**
+     *  Get the number of docids in a segment.
+     *  @param s A segment.
+     *  @return The number of docids.
+     */
+    public int getCount (int s) {
+      return this.counts[s];
+    }
+
+    /**
+     *  Get a docid from a segment.
+     *  @param s A segment.
+     *  @param i The index of the docid, from 0 to getCount (s) - 1.
+     *  @return The internal document id.
+     */
+    public int getDocid (int s, int i) {
+      return this.buffer.getInt (this.starts[s] + 4 * i);
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  private ImpactIndex (MappedByteBuffer buffer) {
+    this.buffer = buffer;
+    this.numTerms = buffer.getInt (20);
+    this.k_1 = buffer.getDouble (24);
+    this.b = buffer.getDouble (32);
+    this.levels = buffer.getInt (40);
+    this.scale = buffer.getDouble (44);
+    this.termOffsetsStart = HEADER_SIZE;
+    this.postingsOffsetsStart = this.termOffsetsStart + 4 * (this.numTerms + 1);
+    this.termsStart = this.postingsOffsetsStart + 4 * (this.numTerms + 1);
+    this.postingsStart =
+      this.termsStart + buffer.getInt (this.termOffsetsStart + 4 * this.numTerms);
+  }
+
+  /**
+   *  Open the impact index of a field, if it has one.  An impact index
+   *  that was built for a different version of the index is ignored.
+   *  @param reader The index.
+   *  @param path The sidecar file.
+   *  @return The impact index, or null if there is no usable one.
+   *  @throws IOException Error reading the sidecar file.
+   */
+  public static ImpactIndex open (IndexReader reader, Path path)
+    throws IOException {
+
+    MappedByteBuffer buffer = Idx.mapSidecar (reader, path, MAGIC, FORMAT_VERSION,
+                                               HEADER_SIZE, "an impact index");
+
+    return (buffer == null) ? null : new ImpactIndex (buffer);
+  }
+
+  /**
+   *  Open the impact indexes of every field of an index that has one.
+   *  @param reader The index.
+   *  @param indexPath The directory that contains the index.
+   *  @return The impact indexes, by field name.  The map is empty if
+   *  the index has none.
+   *  @throws IOException Error reading a sidecar file.
+   */
+  public static Map<String,ImpactIndex> openAll (IndexReader reader, String indexPath)
+    throws IOException {
+
+    Map<String,ImpactIndex> impactIndexes = new HashMap<String,ImpactIndex> ();
+
+    for (String field : MultiFields.getIndexedFields (reader)) {
+      ImpactIndex impacts =
+        open (reader, Idx.getSidecarPath (indexPath, SIDECAR_PREFIX + field));
+
+      if (impacts != null) {
+        impactIndexes.put (field, impacts);
+      }
+    }
+
+    return impactIndexes;
+  }
+
+  /**
+   *  Build the impact index of a field of the current index (see Idx),
+   *  whose lengths and collection statistics are used to compute the
+   *  impacts.
+   *  @param field The field.
+   *  @param k_1 The BM25 k_1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @param bits The number of bits per quantized impact, 1 to 16.
+   *  @param path The sidecar file.
+   *  @throws IOException Error accessing the index or writing the file.
+   */
+  public static void build (String field, double k_1, double b, int bits, Path path)
+    throws IOException {
+
+    if ((bits < 1) || (bits > 16)) {
+      throw new IllegalArgumentException ("bits must be from 1 to 16, not " + bits);
+    }
+
+    IndexReader reader = Idx.INDEXREADER;
+    Terms terms = MultiFields.getTerms (reader, field);
+    DocLengthStore.FieldLengths lengths = Idx.getFieldLengths (field);
+
+    if ((terms == null) || (lengths == null)) {
+      throw new IllegalArgumentException ("The index has no lengths for field " + field);
+    }
+
+    //  The first pass finds the largest impact, which determines the
+    //  scale.  The second pass quantizes the impacts and writes the
+    //  postings to a temporary file, because the directory that
+    //  precedes them isn't known until they are written.
+
+    int levels = (1 << bits) - 1;
+    double avgLength = Idx.getFieldStats (field).getAvgLength ();
+    double maxImpact = 0.0;
+    TermsEnum ti = terms.iterator ();
+    PostingsEnum postings = null;
+
+    while (ti.next () != null) {
+      postings = ti.postings (postings, PostingsEnum.FREQS);
+      double idf = getIdf (ti.docFreq ());
+
+      while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+        maxImpact = Math.max (maxImpact,
+          getImpact (idf, postings.freq (), lengths.get (postings.docID ()), avgLength, k_1, b));
+      }
+    }
+
+    double scale = (maxImpact > 0.0) ? maxImpact / levels : 1.0;
+
+    List<byte[]> termBytes = new ArrayList<byte[]> ();
+    List<Integer> postingsOffsets = new ArrayList<Integer> ();
+    Path postingsTmp = path.resolveSibling (path.getFileName () + ".postings.tmp");
+    long postingsLength = 0;
+    long termsLength = 0;
+
+    try (DataOutputStream out = new DataOutputStream (
+           new BufferedOutputStream (Files.newOutputStream (postingsTmp)))) {
+
+      long[] keys = new long[16];
+      ti = terms.iterator ();
+
+      while (ti.next () != null) {
+        postings = ti.postings (postings, PostingsEnum.FREQS);
+        double idf = getIdf (ti.docFreq ());
+        int n = 0;
+
+        //  Sort by descending impact, then increasing docid.
+
+        while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+          int docid = postings.docID ();
+          int impact = (int) Math.round (
+            getImpact (idf, postings.freq (), lengths.get (docid), avgLength, k_1, b) / scale);
+
+          if (impact > 0) {
+            if (n == keys.length) {
+              keys = Arrays.copyOf (keys, 2 * n);
+            }
+            keys[n++] = ((long) (levels - impact) << 32) | docid;
+          }
+        }
+
+        if (n == 0) {
+          continue;
+        }
+
+        Arrays.sort (keys, 0, n);
+
+        int numSegments = 1;
+
+        for (int i = 1; i < n; i++) {
+          if ((keys[i] >>> 32) != (keys[i - 1] >>> 32)) {
+            numSegments ++;
+          }
+        }
+
+        postingsOffsets.add ((int) postingsLength);
+        out.writeInt (numSegments);
+
+        for (int i = 0; i < n; ) {
+          int j = i;
+
+          while ((j < n) && ((keys[j] >>> 32) == (keys[i] >>> 32))) {
+            j ++;
+          }
+          out.writeInt (levels - (int) (keys[i] >>> 32));
+          out.writeInt (j - i);
+          i = j;
+        }
+
+        for (int i = 0; i < n; i++) {
+          out.writeInt ((int) keys[i]);
+        }
+
+        byte[] t = Arrays.copyOfRange (ti.term ().bytes, ti.term ().offset,
+                                       ti.term ().offset + ti.term ().length);
+        termBytes.add (t);
+        termsLength += t.length;
+        postingsLength += 4 + 8 * numSegments + 4 * n;
+      }
+    }
+
+    int numTerms = termBytes.size ();
+    long fileLength =
+      HEADER_SIZE + 8L * (numTerms + 1) + termsLength + postingsLength;
+
+    if (fileLength > Integer.MAX_VALUE) {
+      Files.delete (postingsTmp);
+      throw new IllegalArgumentException (
+        "The impact index would be larger than 2GB, which is not supported.");
+    }
+
+    //  Write the file.
+
+    Path tmp = path.resolveSibling (path.getFileName () + ".tmp");
+
+    try (DataOutputStream out = new DataOutputStream (
+           new BufferedOutputStream (Files.newOutputStream (tmp)))) {
+
+      out.writeInt (MAGIC);
+      out.writeInt (FORMAT_VERSION);
+      out.writeLong (Idx.getIndexVersion (reader));
+      out.writeInt (reader.maxDoc ());
+      out.writeInt (numTerms);
+      out.writeDouble (k_1);
+      out.writeDouble (b);
+      out.writeInt (levels);
+      out.writeDouble (scale);
+
+      int offset = 0;
+
+      for (byte[] t : termBytes) {
+        out.writeInt (offset);
+        offset += t.length;
+      }
+      out.writeInt (offset);
+
+      for (int postingsOffset : postingsOffsets) {
+        out.writeInt (postingsOffset);
+      }
+      out.writeInt ((int) postingsLength);
+
+      for (byte[] t : termBytes) {
+        out.write (t);
+      }
+
+      Files.copy (postingsTmp, out);
+    } finally {
+      Files.delete (postingsTmp);
+    }
+
+    Files.move (tmp, path, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   *  The RSJ weight of a term, as in QrySopScore.getScoreBM25.
+   */
+  private static double getIdf (int df) throws IOException {
+    long numDocs = Idx.getNumDocs ();
+    return Math.max (0.0, Math.log ((numDocs - df + 0.5) / (df + 0.5)));
+  }
+
+  /**
+   *  The BM25 score of a document for a term, as in
+   *  QrySopScore.getScoreBM25.  The query term weight is 1.
+   */
+  private static double getImpact (double idf, int tf, long length, double avg_doclen,
+                                   double k_1, double b) {
+    double score = (double) tf / (tf + k_1 * ((1 - b) + b * length / avg_doclen));
+    return idf * score;
+  }
+
+  /**
+   *  Get the BM25 k_1 parameter that the impacts were computed with.
+   *  @return k_1.
+   */
+  public double getK1 () {
+    return this.k_1;
+  }
+
+  /**
+   *  Get the BM25 b parameter that the impacts were computed with.
+   *  @return b.
+   */
+  public double getB () {
+    return this.b;
+  }
+
+  /**
+   *  Get the number of impact levels, 2^bits-1.
+   *  @return The largest quantized impact.
+   */
+  public int getLevels () {
+    return this.levels;
+  }
+
+  /**
+   *  Get the score that one quantized impact unit stands for.
+   *  @return The scale.
+   */
+  public double getScale () {
+    return this.scale;
+  }
+
+  /**
+   *  Get the impact-ordered postings of a term.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @return The postings, or null if the term has none.
+   */
+  public TermImpacts getTermImpacts (String term) {
+
+    int n = Idx.findSidecarTerm (this.buffer, this.numTerms, this.termOffsetsStart,
+                                 this.termsStart, term);
+
+    if (n < 0) {
+      return null;
+    }
+
+    return new TermImpacts (this.buffer, this.postingsStart +
+      this.buffer.getInt (this.postingsOffsetsStart + 4 * n));
+  }
+
+  /**
+   *  Build the impact index of a field.
+   *  @param args The index path, the field, k_1, b, and optionally the
+   *  number of bits per impact.
+   *  @throws IOException Error accessing the index.
+   */
+  public static void main (String[] args) throws IOException {
+
+    if ((args.length != 4) && (args.length != 5)) {
+      System.err.println ("Usage:  java ImpactIndex INDEX_PATH FIELD K_1 B [BITS]");
+      System.exit (1);
+    }
+
+    Timer timer = new Timer ();
+    timer.start ();
+
+    Idx.open (args[0]);
+
+    String field = args[1];
+    double k_1 = Double.parseDouble (args[2]);
+    double b = Double.parseDouble (args[3]);
+    int bits = (args.length == 5) ? Integer.parseInt (args[4]) : DEFAULT_BITS;
+    Path path = Idx.getSidecarPath (args[0], SIDECAR_PREFIX + field);
+
+    build (field, k_1, b, bits, path);
+    System.out.println ("Wrote " + path + " for field " + field +
+                        ", k_1=" + k_1 + ", b=" + b + ", " + bits + " bits.");
+
+    timer.stop ();
+    System.out.println ("Time:  " + timer);
+  }
+}
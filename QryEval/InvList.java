@@ -8,19 +8,40 @@ import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.util.BytesRef;
 
 import java.io.IOException;
-import java.util.List;
-import java.util.Vector;
+import java.util.Arrays;
 
 /**
  *  This class implements the inverted list data structure and
  *  provides methods for accessing and manipulating inverted lists.
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
+ *  <p>
+ *  Postings are stored in parallel primitive arrays.  The n'th
+ *  posting has document id docids[n] and term frequency tfs[n].  Its
+ *  locations are stored in the flat positions array, starting at
+ *  positionOffsets[n] and ending just before positionOffsets[n+1].
+ *  This avoids creating one object (and one boxed Integer per
+ *  location) for every posting, which matters a great deal for
+ *  frequent terms.
+ *  </p>
  */
 public class InvList {
 
   //  --------------- Constants and variables -----------------------
 
+  /**
+   *  Searches check this many entries linearly before galloping.  A
+   *  linear scan is as fast as galloping for skips of up to about 64
+   *  postings (see SkewBench).
+   */
+  private static final int LINEAR_SCAN = 64;
+
+  /**
+   *  The number of postings summarized by each entry of the block-max
+   *  tf table.
+   */
+  public static final int BLOCK_SIZE = 128;
+
   /**
    *  Collection term frequency: The number of times that a term
    *  occurs across all instances of the specified field.
@@ -39,50 +60,40 @@ public class InvList {
   public String field;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  The internal document ids of the postings, in ascending order.
+   *  Only the first df entries are valid.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
-
-  //  --------------- Nested classes --------------------------------
+  private int[] docids;
 
   /**
-   *  Utility class that makes it easier to construct postings.
+   *  Term frequencies of the postings.  Only the first df entries
+   *  are valid.
    */
-  public class DocPosting {
+  private int[] tfs;
 
-    /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
-     */
-    public int docid = 0;
-
-    /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
-     */
-    public int tf = 0;
+  /**
+   *  Where each posting's locations start in the positions array.
+   *  Entry df marks the end of the last posting's locations.
+   */
+  private int[] positionOffsets;
 
-    /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
-     */
-    public Vector<Integer> positions = new Vector<Integer>();
+  /**
+   *  The locations of all postings, concatenated in posting order.
+   *  Only the first ctf entries are valid.
+   */
+  private int[] positions;
 
-    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
+  /**
+   *  The largest tf in each block of BLOCK_SIZE postings.  It is
+   *  computed the first time that it is needed.
+   */
+  private int[] blockMaxTfs = null;
+  private int maxTf = 0;
 
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      for (int j = 0; j < locations.size(); j++)
-        this.positions.add(locations.get(j));
-    }
-  }
+  /**
+   *  True if the list has been frozen.  See freeze.
+   */
+  private boolean frozen = false;
 
   //  --------------- Methods ---------------------------------------
 
@@ -90,6 +101,7 @@ public class InvList {
    *  Constructor.  An empty inverted list. Useful for some query operators.
    */
   public InvList() {
+    this.allocate (8, 16);
   }
 
   /**
@@ -97,6 +109,7 @@ public class InvList {
    *  @param fieldString The field that the term occurs in.
    */
   public InvList(String fieldString) {
+    this ();
     this.field = new String (fieldString);
   }
 
@@ -117,8 +130,18 @@ public class InvList {
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    int termDf = Idx.INDEXREADER.docFreq(term);
+
+    if (termDf < 1) {
+      this.allocate (0, 0);
       return;
+    }
+
+    //  The df and ctf are known in advance, so the arrays can be
+    //  allocated at their final size.
+
+    long termCtf = Idx.INDEXREADER.totalTermFreq(term);
+    this.allocate (termDf, (termCtf > 0) ? (int) termCtf : 16);
 
     //  Lookup the inverted list.
 
@@ -133,14 +156,50 @@ public class InvList {
     while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
       int tf = iList.freq();
-      int[] positions = new int[tf];
+
+      this.ensureCapacity (this.df + 1, this.ctf + tf);
+      this.docids[this.df] = iList.docID();
+      this.tfs[this.df] = tf;
 
       for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
+        this.positions[this.ctf + j] = iList.nextPosition();
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
       this.df++;
       this.ctf += tf;
+      this.positionOffsets[this.df] = this.ctf;
+    }
+  }
+
+  /**
+   *  Allocate the posting arrays.
+   *  @param docCapacity The initial number of postings.
+   *  @param positionCapacity The initial number of locations.
+   */
+  private void allocate (int docCapacity, int positionCapacity) {
+    this.docids = new int[docCapacity];
+    this.tfs = new int[docCapacity];
+    this.positionOffsets = new int[docCapacity + 1];
+    this.positions = new int[positionCapacity];
+  }
+
+  /**
+   *  Grow the posting arrays, if necessary, so that they can hold the
+   *  specified number of postings and locations.
+   *  @param docCapacity The required number of postings.
+   *  @param positionCapacity The required number of locations.
+   */
+  private void ensureCapacity (int docCapacity, int positionCapacity) {
+
+    if (docCapacity > this.docids.length) {
+      int n = Math.max (docCapacity, this.docids.length * 2);
+      this.docids = Arrays.copyOf (this.docids, n);
+      this.tfs = Arrays.copyOf (this.tfs, n);
+      this.positionOffsets = Arrays.copyOf (this.positionOffsets, n + 1);
+    }
+
+    if (positionCapacity > this.positions.length) {
+      int n = Math.max (positionCapacity, this.positions.length * 2);
+      this.positions = Arrays.copyOf (this.positions, n);
     }
   }
 
@@ -148,33 +207,218 @@ public class InvList {
    *  Append a posting to the posting list.  Posting must be appended
    *  in docid order, otherwise this method fails.
    *  @param docid The internal document id of the posting.
-   *  @param positions A list of positions where the term occurs.
+   *  @param locations An array of positions where the term occurs.
+   *  @param tf The number of valid entries in locations.
    *  @return true if the posting was added successfully, otherwise false.
    */
-  public boolean appendPosting (int docid, List<Integer> positions) {
+  public boolean appendPosting (int docid, int[] locations, int tf) {
+
+    if (this.frozen) {
+      throw new IllegalStateException ("A frozen inverted list can't be changed.");
+    }
     
     //  A posting can only be appended if its docid is greater than
     //  the last docid.
 
     if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+	(this.docids[this.df-1] >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    this.ensureCapacity (this.df + 1, this.ctf + tf);
+    this.blockMaxTfs = null;
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
+    System.arraycopy (locations, 0, this.positions, this.ctf, tf);
 
-    this.postings.add (p);
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += tf;
+    this.positionOffsets[this.df] = this.ctf;
     return true;
   }
 
+  /**
+   *  Find the first posting at or after index from whose docid is at
+   *  least the target docid.  Galloping (exponential) search is used,
+   *  so the cost is logarithmic in the distance skipped rather than
+   *  linear, which matters when a short list drives a long one.
+   *  @param from The index to start searching from.
+   *  @param docid The target internal document id.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int findDocidIndex(int from, int docid) {
+    return InvList.gallop (this.docids, from, this.df, docid);
+  }
+
+  /**
+   *  Find the first location of the n'th posting, at or after
+   *  location index from, that is greater than loc.
+   *  @param n The index of the document.
+   *  @param from The location index to start searching from.
+   *  @param loc The location to advance beyond.
+   *  @return The location index, or tf if there is none.
+   */
+  public int findPositionIndexPast(int n, int from, int loc) {
+    if (loc == Integer.MAX_VALUE) {
+      return this.tfs[n];
+    }
+    int start = this.positionOffsets[n];
+    return InvList.gallop (this.positions, start + from,
+                           this.positionOffsets[n + 1], loc + 1) - start;
+  }
+
+  /**
+   *  Galloping search in a sorted range of an array.
+   *  @param a A sorted array.
+   *  @param from The first index of the range.
+   *  @param to The end (exclusive) of the range.
+   *  @param target The value to search for.
+   *  @return The first index in [from, to) whose value is at least
+   *  target, or to if there is none.
+   */
+  private static int gallop(int[] a, int from, int to, int target) {
+
+    //  Short skips are common (e.g., lists of similar length), and a
+    //  linear scan is fastest for them.  This method is kept small so
+    //  that it is inlined into the iterators; longer skips are rarer.
+
+    int linearEnd = Math.min (from + InvList.LINEAR_SCAN, to);
+
+    while (from < linearEnd) {
+      if (a[from] >= target) {
+        return from;
+      }
+      from ++;
+    }
+
+    if ((from >= to) || (a[from] >= target)) {
+      return from;
+    }
+
+    return InvList.gallopPast (a, from, to, target);
+  }
+
+  /**
+   *  The galloping part of gallop, for skips longer than LINEAR_SCAN.
+   *  Steps start at LINEAR_SCAN, because the skip is known to be at
+   *  least that long, and the search ends with a linear scan of at
+   *  most LINEAR_SCAN values.  At moderate skips (e.g., 100 postings),
+   *  this takes a few predictable steps instead of a binary search
+   *  that branches unpredictably at every step.
+   *  @param a A sorted array.
+   *  @param from An index in the range whose value is less than target.
+   *  @param to The end (exclusive) of the range.
+   *  @param target The value to search for.
+   *  @return The first index in (from, to) whose value is at least
+   *  target, or to if there is none.
+   */
+  private static int gallopPast(int[] a, int from, int to, int target) {
+
+    //  Invariant: a[lo] < target.  Double the step until a value that
+    //  is at least target (or the end of the range) is passed.
+
+    int lo = from;
+    int step = InvList.LINEAR_SCAN;
+
+    while ((lo + step < to) && (a[lo + step] < target)) {
+      lo += step;
+      step <<= 1;
+    }
+
+    //  The answer is in (lo, hi].  Binary search until the range is
+    //  short, then scan it.
+
+    int hi = Math.min (lo + step, to);
+    lo ++;
+
+    while (hi - lo > InvList.LINEAR_SCAN) {
+      int mid = (lo + hi) >>> 1;
+
+      if (a[mid] < target) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+
+    while ((lo < hi) && (a[lo] < target)) {
+      lo ++;
+    }
+
+    return lo;
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
-   *  @param docid The index of the requested document.
+   *  @param n The index of the requested document.
    *  @return The internal document id.
    */
-  public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+  public int getDocid(int n) {
+    return this.docids[n];
+  }
+
+  /**
+   *  Get the j'th location in the n'th document of the inverted list.
+   *  @param n The index of the requested document.
+   *  @param j The index of the requested location, 0 &lt;= j &lt; tf.
+   *  @return The location.
+   */
+  public int getPosition(int n, int j) {
+    return this.positions[this.positionOffsets[n] + j];
+  }
+
+  /**
+   *  Get the largest term frequency in the block of postings that
+   *  contains the n'th posting.  Dynamic pruning uses this to bound
+   *  the scores of the documents in the block.
+   *  @param n The index of a posting.
+   *  @return The largest tf in the posting's block.
+   */
+  public int getBlockMaxTf(int n) {
+    if (this.blockMaxTfs == null) {
+      this.computeBlockMaxTfs ();
+    }
+    return this.blockMaxTfs[n / InvList.BLOCK_SIZE];
+  }
+
+  /**
+   *  Get the largest term frequency in the inverted list.
+   *  @return The largest tf, or 0 if the list is empty.
+   */
+  public int getMaxTf() {
+    if (this.blockMaxTfs == null) {
+      this.computeBlockMaxTfs ();
+    }
+    return this.maxTf;
+  }
+
+  /**
+   *  Compute the block-max tf table.
+   */
+  private void computeBlockMaxTfs() {
+    int[] maxima = new int[(this.df + InvList.BLOCK_SIZE - 1) / InvList.BLOCK_SIZE];
+    int max = 0;
+
+    for (int i = 0; i < this.df; i++) {
+      int b = i / InvList.BLOCK_SIZE;
+      maxima[b] = Math.max (maxima[b], this.tfs[i]);
+      max = Math.max (max, this.tfs[i]);
+    }
+
+    this.maxTf = max;
+    this.blockMaxTfs = maxima;
+  }
+
+  /**
+   *  Make the inverted list immutable, so that it can be shared by
+   *  many query operators, including operators in other threads.
+   *  Values that are otherwise computed when they are first needed
+   *  are computed now.  The public fields must not be changed either.
+   */
+  public void freeze() {
+    if (this.blockMaxTfs == null) {
+      this.computeBlockMaxTfs ();
+    }
+    this.frozen = true;
   }
 
   /**
@@ -183,7 +427,17 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[n];
+  }
+
+  /**
+   *  Estimate the heap space used by the posting arrays.  This is
+   *  handy for comparing the cost of different inverted lists.
+   *  @return The approximate number of bytes used.
+   */
+  public long sizeInBytes() {
+    return 4L * (this.docids.length + this.tfs.length +
+                 this.positionOffsets.length + this.positions.length);
   }
 
   /**
@@ -194,11 +448,11 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.docids[i] + ", tf: "
+          + this.tfs[i] + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; j < this.tfs[i]; j++) {
+        System.out.print(this.getPosition (i, j) + " ");
       }
 
       System.out.println();
@@ -0,0 +1,206 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+
+/**
+ *  A process-wide cache of term inverted lists, so that terms that
+ *  are repeated across queries (or evaluated twice by query
+ *  expansion) are read from the index once.
+ *  <p>
+ *  Lists are keyed by (term, field, index).  The cache holds at most a
+ *  fixed number of bytes, measured by InvList.sizeInBytes, and evicts
+ *  the least recently used lists when it is full.  Lists that are
+ *  larger than the whole cache are not cached.  Cached lists are
+ *  frozen (see InvList.freeze), so any number of query operators, in
+ *  any number of threads, may iterate over them at the same time.
+ *  </p><p>
+ *  The cache is disabled unless setCapacity is called, e.g., by the
+ *  invListCacheMB parameter.
+ *  </p>
+ */
+public class InvListCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static InvListCache CACHE = null;
+
+  private final long capacity;
+  private long bytes = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  /**
+   *  The cached lists, in least recently used order.
+   */
+  private final LinkedHashMap<Key,InvList> lists =
+    new LinkedHashMap<Key,InvList> (16, 0.75f, true);
+
+  /**
+   *  A cache key.  Indexes are compared by identity.
+   */
+  private static class Key {
+    private final String term;
+    private final String field;
+    private final IndexReader index;
+
+    private Key (String term, String field, IndexReader index) {
+      this.term = term;
+      this.field = field;
+      this.index = index;
+    }
+
+    @Override
+    public boolean equals (Object o) {
+      if (! (o instanceof Key)) {
+        return false;
+      }
+
+      Key k = (Key) o;
+      return ((this.index == k.index) &&
+              this.term.equals (k.term) &&
+              this.field.equals (k.field));
+    }
+
+    @Override
+    public int hashCode () {
+      return (31 * this.term.hashCode () + this.field.hashCode ()) * 31 +
+        System.identityHashCode (this.index);
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  private InvListCache (long capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   *  Enable the cache with the specified capacity, or disable it.  Any
+   *  lists that are already cached are discarded.
+   *  @param capacity The capacity in bytes, or 0 to disable the cache.
+   */
+  public static synchronized void setCapacity (long capacity) {
+    InvListCache.CACHE = (capacity > 0) ? new InvListCache (capacity) : null;
+  }
+
+  /**
+   *  Get the process-wide cache.
+   *  @return The cache, or null if caching is disabled.
+   */
+  public static synchronized InvListCache getInstance () {
+    return InvListCache.CACHE;
+  }
+
+  /**
+   *  Get a cached inverted list.
+   *  @param index The index.
+   *  @param field The field.
+   *  @param term The processed term string.
+   *  @return The frozen inverted list, or null if it is not cached.
+   */
+  public synchronized InvList get (IndexReader index, String field, String term) {
+
+    InvList list = this.lists.get (new Key (term, field, index));
+
+    if (list != null) {
+      this.hits ++;
+    } else {
+      this.misses ++;
+    }
+
+    return list;
+  }
+
+  /**
+   *  Indicates whether a list of this size can be cached.
+   *  @param sizeInBytes The size of the list.
+   *  @return True if the list is not larger than the cache.
+   */
+  public boolean fits (long sizeInBytes) {
+    return (sizeInBytes <= this.capacity);
+  }
+
+  /**
+   *  Add an inverted list to the cache, evicting other lists if
+   *  necessary.  The list is frozen.  If another thread cached the
+   *  same list first, that list is kept and returned instead.
+   *  @param index The index.
+   *  @param field The field.
+   *  @param term The processed term string.
+   *  @param list The inverted list.
+   *  @return The cached inverted list.
+   */
+  public synchronized InvList put (IndexReader index, String field, String term,
+                                   InvList list) {
+
+    Key key = new Key (term, field, index);
+    InvList cached = this.lists.get (key);
+
+    if (cached != null) {
+      return cached;
+    }
+
+    list.freeze ();
+
+    long size = list.sizeInBytes ();
+
+    if (! this.fits (size)) {
+      return list;
+    }
+
+    Iterator<Map.Entry<Key,InvList>> lru = this.lists.entrySet ().iterator ();
+
+    while (this.bytes + size > this.capacity) {
+      this.bytes -= lru.next ().getValue ().sizeInBytes ();
+      lru.remove ();
+      this.evictions ++;
+    }
+
+    this.lists.put (key, list);
+    this.bytes += size;
+    return list;
+  }
+
+  /**
+   *  Get the number of lookups that found a cached list.
+   *  @return The number of hits.
+   */
+  public synchronized long getHits () {
+    return this.hits;
+  }
+
+  /**
+   *  Get the number of lookups that did not find a cached list.
+   *  @return The number of misses.
+   */
+  public synchronized long getMisses () {
+    return this.misses;
+  }
+
+  /**
+   *  Get the number of lists that were evicted to make room for others.
+   *  @return The number of evictions.
+   */
+  public synchronized long getEvictions () {
+    return this.evictions;
+  }
+
+  /**
+   *  Get the number of bytes of cached lists.
+   *  @return The size of the cache.
+   */
+  public synchronized long sizeInBytes () {
+    return this.bytes;
+  }
+
+  @Override
+  public synchronized String toString () {
+    return String.format (
+      "InvListCache:  %d hits, %d misses, %d evictions, %d lists, %d of %d bytes",
+      this.hits, this.misses, this.evictions, this.lists.size (),
+      this.bytes, this.capacity);
+  }
+}
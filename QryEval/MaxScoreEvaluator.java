@@ -0,0 +1,305 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ *  Rank-safe top-k evaluation of BM25 #SUM queries with MaxScore
+ *  dynamic pruning.
+ *  <p>
+ *  Each argument of the #SUM has an upper bound on the score that it
+ *  can contribute to any document.  The evaluator keeps a threshold,
+ *  the k'th best score found so far.  Arguments whose upper bounds
+ *  sum to less than the threshold are <i>non-essential</i>: a document
+ *  that matches only them cannot enter the top k, so candidate
+ *  documents are taken only from the essential arguments, and the
+ *  non-essential arguments are checked with docIteratorAdvanceTo.
+ *  Materialized inverted lists also provide block-max tf bounds, which
+ *  allow a candidate to be rejected before any exact score is computed.
+ *  </p><p>
+ *  Document scores are computed by the same QrySopScore code, and are
+ *  added in argument order, and the top k are kept by a TopKCollector,
+ *  so the results are identical to exhaustive evaluation followed by a
+ *  sort.
+ *  </p>
+ */
+public class MaxScoreEvaluator {
+
+  /**
+   *  Relative slack used when comparing score bounds to the threshold,
+   *  so that floating point rounding never prunes a document that
+   *  ties the threshold.
+   */
+  private static final double SLACK = 1e-9;
+
+  /**
+   *  Indicates whether a query can be evaluated by this class.  The
+   *  query must be a #SUM whose arguments are all SCORE operators, and
+   *  the retrieval model must be BM25.
+   *  @param q An initialized query.
+   *  @param r The retrieval model.
+   *  @return True if the query can be evaluated, otherwise false.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel r) {
+
+    if (! ((q instanceof QrySopSum) && (r instanceof RetrievalModelBM25))) {
+      return false;
+    }
+
+    for (Qry q_i: q.args) {
+      if (! (q_i instanceof QrySopScore)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate a query and return its top k documents.
+   *  @param q An initialized #SUM query that satisfies canEvaluate.
+   *  @param model The BM25 retrieval model.
+   *  @param k The number of documents to return.
+   *  @return The top k documents, sorted.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static ScoreList evaluate (QrySopSum q, RetrievalModelBM25 model, int k)
+    throws IOException {
+    return evaluate (q, model, k, 0, Integer.MAX_VALUE).toScoreList ();
+  }
+
+  /**
+   *  Evaluate a query and collect its top k documents in a range of
+   *  docids.
+   *  @param q An initialized #SUM query that satisfies canEvaluate.
+   *  @param model The BM25 retrieval model.
+   *  @param k The number of documents to return.
+   *  @param minDocid The first docid of the range.
+   *  @param maxDocid The end of the range, which is not included.
+   *  @return The top k documents of the range.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static TopKCollector evaluate (QrySopSum q, RetrievalModelBM25 model, int k,
+                                        int minDocid, int maxDocid)
+    throws IOException {
+    return evaluate (q, model, new TopKCollector (k), minDocid, maxDocid);
+  }
+
+  /**
+   *  Evaluate a query in a range of docids, and add its top documents
+   *  to a collector that may already have documents from other
+   *  ranges.  Their scores are the initial threshold.  The query's
+   *  iterators must not have passed minDocid.
+   *  @param q An initialized #SUM query that satisfies canEvaluate.
+   *  @param model The BM25 retrieval model.
+   *  @param topK The top documents so far.
+   *  @param minDocid The first docid of the range.
+   *  @param maxDocid The end of the range, which is not included.
+   *  @return topK.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static TopKCollector evaluate (QrySopSum q, RetrievalModelBM25 model,
+                                        TopKCollector topK, int minDocid, int maxDocid)
+    throws IOException {
+
+    int n = q.args.size ();
+    QrySop[] scorers = new QrySop[n];
+    double[] ub = new double[n];
+
+    for (int i = 0; i < n; i++) {
+      scorers[i] = (QrySop) q.args.get (i);
+      ub[i] = upperBound ((QrySopScore) scorers[i], model, Integer.MAX_VALUE);
+
+      if (minDocid > 0) {
+        scorers[i].docIteratorAdvanceTo (minDocid);
+      }
+    }
+
+    //  Order the arguments by increasing upper bound.  prefixUb[j] is
+    //  the sum of the upper bounds of order[0..j].
+
+    Integer[] sorted = new Integer[n];
+
+    for (int i = 0; i < n; i++) {
+      sorted[i] = i;
+    }
+
+    Arrays.sort (sorted, (a, b) -> Double.compare (ub[a], ub[b]));
+
+    int[] order = new int[n];
+    double[] prefixUb = new double[n];
+    double sum = 0.0;
+
+    for (int j = 0; j < n; j++) {
+      order[j] = sorted[j];
+      sum += ub[order[j]];
+      prefixUb[j] = sum;
+    }
+
+    //  The k best documents so far.  The worst is the threshold.
+
+    double[] contribution = new double[n];
+    boolean[] matched = new boolean[n];
+
+    while (true) {
+
+      double threshold = topK.getThreshold ();
+
+      //  Find the first essential argument.
+
+      int p = 0;
+
+      while ((p < n) && (belowThreshold (prefixUb[p], threshold))) {
+        p ++;
+      }
+
+      if (p == n) {
+        break;			// No remaining document can enter the top k.
+      }
+
+      //  The next candidate is the smallest docid of the essential
+      //  arguments.
+
+      int docid = Integer.MAX_VALUE;
+
+      for (int j = p; j < n; j++) {
+        QrySop s = scorers[order[j]];
+
+        if (s.docIteratorHasMatch (model)) {
+          docid = Math.min (docid, s.docIteratorGetMatch ());
+        }
+      }
+
+      if (docid >= maxDocid) {
+        break;			// The essential arguments are exhausted.
+      }
+
+      //  Block-max check: bound the candidate's score using the block
+      //  bounds of the essential arguments that match it.
+
+      double nonEssentialUb = (p > 0) ? prefixUb[p - 1] : 0.0;
+      double bound = nonEssentialUb;
+
+      for (int j = p; j < n; j++) {
+        int i = order[j];
+        QrySop s = scorers[i];
+        matched[i] = (s.docIteratorHasMatch (model) &&
+                      (s.docIteratorGetMatch () == docid));
+
+        if (matched[i]) {
+          QryIop iop = (QryIop) s.args.get (0);
+          bound += upperBound ((QrySopScore) s, model,
+                               iop.docIteratorGetBlockMaxTf ());
+        }
+      }
+
+      boolean pruned = belowThreshold (bound, threshold);
+
+      //  Score the essential arguments, then the non-essential arguments
+      //  in decreasing order of upper bound, stopping as soon as the
+      //  candidate cannot reach the threshold.
+
+      if (! pruned) {
+        double partial = 0.0;
+
+        for (int j = p; j < n; j++) {
+          int i = order[j];
+
+          if (matched[i]) {
+            contribution[i] = scorers[i].getScore (model);
+            partial += contribution[i];
+          }
+        }
+
+        double remaining = nonEssentialUb;
+
+        for (int j = p - 1; j >= 0; j--) {
+          if (belowThreshold (partial + remaining, threshold)) {
+            pruned = true;
+            break;
+          }
+
+          int i = order[j];
+          QrySop s = scorers[i];
+          s.docIteratorAdvanceTo (docid);
+          matched[i] = (s.docIteratorHasMatch (model) &&
+                        (s.docIteratorGetMatch () == docid));
+
+          if (matched[i]) {
+            contribution[i] = s.getScore (model);
+            partial += contribution[i];
+          }
+
+          remaining -= ub[i];
+        }
+      }
+
+      //  Compute the score exactly as QrySopSum does, in argument order.
+
+      if (! pruned) {
+        double score = 0.0;
+
+        for (int i = 0; i < n; i++) {
+          if (matched[i]) {
+            score += contribution[i];
+          }
+        }
+
+        topK.add (docid, score);
+      }
+
+      //  Move past the candidate.
+
+      for (int j = p; j < n; j++) {
+        scorers[order[j]].docIteratorAdvancePast (docid);
+      }
+
+      Arrays.fill (matched, false);
+    }
+
+    return topK;
+  }
+
+  /**
+   *  Indicates whether a score bound is safely below the threshold.
+   *  @param threshold The current threshold.
+   *  @param bound An upper bound on a score.
+   *  @return True if a document with this bound cannot enter the top k.
+   */
+  static boolean belowThreshold (double bound, double threshold) {
+    return (bound * (1.0 + SLACK) < threshold);
+  }
+
+  /**
+   *  Get an upper bound on the BM25 score that a SCORE operator can
+   *  give any document whose tf is at most maxTf.  BM25's tf component
+   *  grows with tf and shrinks with document length.  A document that
+   *  contains a term tf times is at least tf terms long, which gives a
+   *  tighter bound than assuming an empty document.
+   *  @param s A SCORE operator.
+   *  @param model The BM25 retrieval model.
+   *  @param maxTf An upper bound on tf, which is capped by the
+   *  operator's own bound.
+   *  @return An upper bound on the document score.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  static double upperBound (QrySopScore s, RetrievalModelBM25 model, int maxTf)
+    throws IOException {
+
+    QryIop iop = (QryIop) s.args.get (0);
+    double tf = Math.min (maxTf, iop.getMaxTf ());
+
+    if (tf <= 0) {
+      return 0.0;
+    }
+
+    double rsjWeight =
+      Math.max (0.0, Math.log ((Idx.getCollectionStats ().getNumDocs () - iop.getDf () + 0.5) /
+                               (iop.getDf () + 0.5)));
+    double avgDocLen = Idx.getFieldStats (iop.field).getAvgLength ();
+    double minDocLen = (iop instanceof QryIopTerm) ? tf : 0.0;
+    double tfWeight =
+      tf / (tf + model.k_1 * ((1 - model.b) + model.b * minDocLen / avgDocLen));
+    double qtf = 1.0;
+
+    return rsjWeight * tfWeight * (model.k_3 + 1) * qtf / (qtf + model.k_3);
+  }
+}
@@ -0,0 +1,624 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  Static index pruning.  Builds a smaller companion of an index that
+ *  keeps only the postings that contribute most to BM25 or Indri
+ *  scores, and compares the two indexes on query sets.  Run it to see
+ *  a usage message.
+ *  <p>
+ *  The contribution of a posting is its BM25 term score, or for Indri,
+ *  log (p / p_default), where p is the smoothed probability of the
+ *  term in the document and p_default is the smoothed probability of
+ *  a document of the same length that doesn't contain it.  Each term
+ *  has its own cutoff:  either the contributions that are in the top
+ *  percent of the term's postings are kept (-percent P), or, as in
+ *  Carmel et al.'s method, postings that contribute at least epsilon
+ *  times the term's depth'th largest contribution are kept (-epsilon E
+ *  -depth K).  Terms with at most depth postings are not pruned.
+ *  Ties with the cutoff are kept.
+ *  </p><p>
+ *  The pruned index is built from the term vectors of the full index,
+ *  so it needs term vectors with positions.  The kept postings keep
+ *  their locations, and stored fields are copied.  Documents are added
+ *  in docid order with LogDocMergePolicy and merged into one segment,
+ *  so each document has the same docid in both indexes, which is
+ *  checked.  Indexed fields without term vectors are not copied,
+ *  except externalId.
+ *  </p><p>
+ *  The pruned index gets the collection statistics, document lengths
+ *  and docid map sidecars of the full index, and a term statistics
+ *  sidecar for each pruned field (see TermStats), so Idx reports the
+ *  same statistics for both indexes, and documents that match the
+ *  pruned index get the same scores as in the full index.  Operators
+ *  that count their own statistics (e.g., #SYN and #NEAR) count the
+ *  pruned postings.
+ *  </p>
+ */
+public class PruneIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String USAGE =
+    "Usage:  java PruneIndex -index INDEX_PATH -output PRUNED_PATH -model bm25|indri\n" +
+    "          (-percent P | -epsilon E [-depth K]) [model parameters]\n" +
+    "        java PruneIndex -index INDEX_PATH -compare PRUNED_PATH -model bm25|indri\n" +
+    "          -queries FILE[,FILE...] [-k K] [model parameters]\n\n" +
+    "where model parameters are -k_1 (1.2), -b (0.75), -k_3 (0),\n" +
+    "-mu (2500) and -lambda (0.4), and -depth is 10 and -k is 100 by default.\n";
+
+  private static String externalIdField = new String ("externalId");
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Prune an index.
+   *  @param indexPath The index.
+   *  @param outputPath The directory for the pruned index.
+   *  @param model The BM25 or Indri model that determines contributions.
+   *  @param percent The percent of each term's postings to keep, or 0
+   *  to use epsilon.
+   *  @param epsilon The fraction of the depth'th largest contribution
+   *  that a posting must contribute to be kept.
+   *  @param depth The rank of the contribution that epsilon applies to.
+   *  @throws IOException Error accessing the indexes.
+   */
+  public static void prune (String indexPath, String outputPath, RetrievalModel model,
+                            double percent, double epsilon, int depth)
+    throws IOException {
+
+    Idx.open (indexPath);
+
+    IndexReader reader = Idx.INDEXREADER;
+    FieldInfos fieldInfos = MultiFields.getMergedFieldInfos (reader);
+    List<String> fields = new ArrayList<String> ();
+
+    for (FieldInfo info : fieldInfos) {
+      if (info.getIndexOptions () == IndexOptions.NONE) {
+        continue;
+      }
+      if (info.hasVectors () && (Idx.getFieldLengths (info.name) != null)) {
+        fields.add (info.name);
+      } else if (! info.name.equals (externalIdField)) {
+        System.err.println ("Warning:  Field " + info.name +
+                            " has no term vectors or lengths, so it is not copied.");
+      }
+    }
+
+    //  Find each term's cutoff in the full index.
+
+    Map<String,Map<String,double[]>> cutoffs = new HashMap<String,Map<String,double[]>> ();
+
+    for (String field : fields) {
+      cutoffs.put (field, getCutoffs (reader, field, model, percent, epsilon, depth));
+    }
+
+    //  Copy the documents in docid order, keeping the postings that
+    //  reach their terms' cutoffs.
+
+    IndexWriterConfig config = new IndexWriterConfig (new KeywordAnalyzer ());
+    config.setOpenMode (IndexWriterConfig.OpenMode.CREATE);
+    config.setSimilarity (new DocLenStoreSimilarity ());
+    config.setMergePolicy (new LogDocMergePolicy ());
+
+    FieldType prunedType = new FieldType (TextField.TYPE_NOT_STORED);
+    prunedType.setStoreTermVectors (true);
+    prunedType.setStoreTermVectorPositions (true);
+    prunedType.freeze ();
+
+    long postings = 0;
+    long kept = 0;
+
+    try (IndexWriter writer =
+           new IndexWriter (FSDirectory.open (Paths.get (outputPath)), config)) {
+
+      for (int docid = 0; docid < reader.maxDoc (); docid++) {
+        Document doc = copyStoredFields (reader.document (docid));
+
+        for (String field : fields) {
+          Terms vector = reader.getTermVector (docid, field);
+
+          if (vector == null) {
+            continue;
+          }
+
+          if (! vector.hasPositions ()) {
+            throw new IllegalArgumentException (
+              "Field " + field + " has term vectors without positions, so it can't be pruned.");
+          }
+
+          PositionTokenStream tokens = new PositionTokenStream ();
+          Map<String,double[]> fieldCutoffs = cutoffs.get (field);
+          CollectionStats.FieldStats stats = Idx.getFieldStats (field);
+          long length = Idx.getFieldLengths (field).get (docid);
+          TermsEnum ti = vector.iterator ();
+          PostingsEnum p = null;
+
+          while (ti.next () != null) {
+            String term = ti.term ().utf8ToString ();
+            double[] cutoff = fieldCutoffs.get (term);
+
+            p = ti.postings (p, PostingsEnum.POSITIONS);
+            p.nextDoc ();
+
+            int tf = p.freq ();
+
+            postings ++;
+            if ((cutoff == null) ||
+                (getContribution (model, cutoff[0], tf, length, stats) < cutoff[1])) {
+              continue;
+            }
+
+            kept ++;
+            for (int i = 0; i < tf; i++) {
+              tokens.add (term, p.nextPosition ());
+            }
+          }
+
+          if (tokens.size () > 0) {
+            doc.add (new Field (field, tokens, prunedType));
+          }
+        }
+
+        writer.addDocument (doc);
+      }
+
+      writer.forceMerge (1);
+    }
+
+    //  The pruned index must have the same docids, and the statistics
+    //  of the full index.
+
+    try (IndexReader pruned =
+           DirectoryReader.open (FSDirectory.open (Paths.get (outputPath)))) {
+
+      checkDocids (reader, pruned);
+
+      copySidecar (reader, indexPath, pruned, outputPath, CollectionStats.SIDECAR_NAME);
+
+      for (String field : MultiFields.getIndexedFields (reader)) {
+        if (Idx.getFieldLengths (field) != null) {
+          copySidecar (reader, indexPath, pruned, outputPath,
+                       DocLengthStore.SIDECAR_PREFIX + field);
+        }
+      }
+
+      for (String field : fields) {
+        TermStats.build (reader, field, pruned,
+                         Idx.getSidecarPath (outputPath, TermStats.SIDECAR_PREFIX + field));
+      }
+
+      if (Files.exists (Idx.getSidecarPath (indexPath, DocidMap.SIDECAR_NAME))) {
+        copySidecar (reader, indexPath, pruned, outputPath, DocidMap.SIDECAR_NAME);
+      }
+    }
+
+    System.out.println (String.format ("Kept %d of %d postings (%.1f%%) in %s.",
+                                       kept, postings, 100.0 * kept / Math.max (postings, 1),
+                                       String.join (", ", fields)));
+  }
+
+  /**
+   *  Find the cutoff of each term in a field.
+   *  @return For each term, its weight (see getContribution) and the
+   *  smallest contribution that is kept.
+   */
+  private static Map<String,double[]> getCutoffs (IndexReader reader, String field,
+                                                  RetrievalModel model, double percent,
+                                                  double epsilon, int depth)
+    throws IOException {
+
+    Map<String,double[]> cutoffs = new HashMap<String,double[]> ();
+    CollectionStats.FieldStats stats = Idx.getFieldStats (field);
+    DocLengthStore.FieldLengths lengths = Idx.getFieldLengths (field);
+    double[] contributions = new double[16];
+    TermsEnum ti = MultiFields.getTerms (reader, field).iterator ();
+    PostingsEnum p = null;
+
+    while (ti.next () != null) {
+      double weight = getTermWeight (model, ti.docFreq (), ti.totalTermFreq (), stats);
+      int n = 0;
+
+      p = ti.postings (p, PostingsEnum.FREQS);
+
+      while (p.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+        if (n == contributions.length) {
+          contributions = Arrays.copyOf (contributions, 2 * n);
+        }
+        contributions[n++] =
+          getContribution (model, weight, p.freq (), lengths.get (p.docID ()), stats);
+      }
+
+      Arrays.sort (contributions, 0, n);
+
+      double cutoff;
+
+      if (percent > 0) {
+        int keep = Math.max (1, (int) Math.ceil (n * percent / 100));
+        cutoff = contributions[n - Math.min (keep, n)];
+      } else if (n > depth) {
+        cutoff = epsilon * contributions[n - depth];
+      } else {
+        cutoff = Double.NEGATIVE_INFINITY;
+      }
+
+      cutoffs.put (ti.term ().utf8ToString (), new double[] { weight, cutoff });
+    }
+
+    return cutoffs;
+  }
+
+  /**
+   *  The part of a term's contribution that doesn't depend on the
+   *  document:  the RSJ weight for BM25, as in QrySopScore.getScoreBM25,
+   *  and the collection probability for Indri.
+   */
+  private static double getTermWeight (RetrievalModel model, int df, long ctf,
+                                       CollectionStats.FieldStats stats)
+    throws IOException {
+
+    if (model instanceof RetrievalModelBM25) {
+      long numDocs = Idx.getNumDocs ();
+      return Math.max (0.0, Math.log ((numDocs - df + 0.5) / (df + 0.5)));
+    }
+    return ctf / (double) stats.getSumOfLengths ();
+  }
+
+  /**
+   *  The contribution of a posting to a document's score.
+   */
+  private static double getContribution (RetrievalModel model, double weight, int tf,
+                                         long length, CollectionStats.FieldStats stats) {
+
+    if (model instanceof RetrievalModelBM25) {
+      RetrievalModelBM25 bm25 = (RetrievalModelBM25) model;
+      return weight * tf /
+        (tf + bm25.k_1 * ((1 - bm25.b) + bm25.b * length / stats.getAvgLength ()));
+    }
+
+    RetrievalModelIndri indri = (RetrievalModelIndri) model;
+    double p = (1 - indri.lambda) * (tf + indri.mu * weight) / (length + indri.mu) +
+      indri.lambda * weight;
+    double pDefault = (1 - indri.lambda) * (indri.mu * weight) / (length + indri.mu) +
+      indri.lambda * weight;
+    return Math.log (p / pDefault);
+  }
+
+  /**
+   *  Copy the stored fields of a document.  externalId is indexed too,
+   *  so that documents can be found by external id.
+   */
+  static Document copyStoredFields (Document stored) {
+
+    Document doc = new Document ();
+
+    for (IndexableField f : stored) {
+      Number number = f.numericValue ();
+      BytesRef bytes = f.binaryValue ();
+
+      if (f.name ().equals (externalIdField)) {
+        doc.add (new StringField (f.name (), f.stringValue (), Field.Store.YES));
+      } else if (number instanceof Integer) {
+        doc.add (new StoredField (f.name (), number.intValue ()));
+      } else if (number instanceof Long) {
+        doc.add (new StoredField (f.name (), number.longValue ()));
+      } else if (number instanceof Float) {
+        doc.add (new StoredField (f.name (), number.floatValue ()));
+      } else if (number instanceof Double) {
+        doc.add (new StoredField (f.name (), number.doubleValue ()));
+      } else if (bytes != null) {
+        doc.add (new StoredField (f.name (), bytes));
+      } else {
+        doc.add (new StoredField (f.name (), f.stringValue ()));
+      }
+    }
+
+    return doc;
+  }
+
+  /**
+   *  Check that each document has the same docid in both indexes.
+   *  @throws IllegalStateException A document has a different docid.
+   */
+  private static void checkDocids (IndexReader reader, IndexReader pruned)
+    throws IOException {
+
+    if (pruned.maxDoc () != reader.maxDoc ()) {
+      throw new IllegalStateException ("The pruned index has " + pruned.maxDoc () +
+                                       " documents, not " + reader.maxDoc () + ".");
+    }
+
+    for (int docid = 0; docid < reader.maxDoc (); docid++) {
+      if (! Objects.equals (reader.document (docid).get (externalIdField),
+                            pruned.document (docid).get (externalIdField))) {
+        throw new IllegalStateException ("Document " + docid +
+                                         " has a different docid in the pruned index.");
+      }
+    }
+  }
+
+  /**
+   *  Copy a sidecar file of the full index to the pruned index.  The
+   *  sidecars begin with a magic number, a format version, the index
+   *  version (a long) and maxDoc, so only the index version changes.
+   *  @throws IllegalStateException The sidecar is out of date.
+   */
+  private static void copySidecar (IndexReader reader, String indexPath,
+                                   IndexReader pruned, String outputPath, String name)
+    throws IOException {
+
+    Path from = Idx.getSidecarPath (indexPath, name);
+    Path to = Idx.getSidecarPath (outputPath, name);
+    ByteBuffer buffer = ByteBuffer.wrap (Files.readAllBytes (from));
+
+    if ((buffer.getLong (8) != Idx.getIndexVersion (reader)) ||
+        (buffer.getInt (16) != reader.maxDoc ())) {
+      throw new IllegalStateException (from + " was built for a different version of the index.");
+    }
+
+    buffer.putLong (8, Idx.getIndexVersion (pruned));
+
+    Path tmp = to.resolveSibling (to.getFileName () + ".tmp");
+    Files.write (tmp, buffer.array ());
+    Files.move (tmp, to, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   *  Compare a pruned index with the full index:  their sizes, and the
+   *  latency and top k overlap of the queries in each query file.
+   *  @param indexPath The full index.
+   *  @param prunedPath The pruned index.
+   *  @param model The retrieval model.
+   *  @param queryFiles Files of qid:query lines.
+   *  @param k The number of documents per query.
+   *  @throws IOException Error accessing the indexes.
+   */
+  public static void compare (String indexPath, String prunedPath, RetrievalModel model,
+                              String[] queryFiles, int k)
+    throws IOException {
+
+    Idx.open (indexPath);
+    Idx.open (prunedPath);
+
+    long[] fullSize = getIndexSize (indexPath);
+    long[] prunedSize = getIndexSize (prunedPath);
+
+    System.out.println (String.format (
+      "Index size:  %.1f MB pruned vs %.1f MB full (%.1f%%); sidecars %.1f MB vs %.1f MB",
+      prunedSize[0] / 1048576.0, fullSize[0] / 1048576.0,
+      100.0 * prunedSize[0] / fullSize[0],
+      prunedSize[1] / 1048576.0, fullSize[1] / 1048576.0));
+
+    for (String queryFile : queryFiles) {
+      List<String> queries = new ArrayList<String> ();
+
+      try (BufferedReader input = new BufferedReader (new FileReader (queryFile))) {
+        String qLine;
+
+        while ((qLine = input.readLine ()) != null) {
+          int d = qLine.indexOf (':');
+
+          if (d < 0) {
+            throw new IllegalArgumentException ("Syntax error:  Missing ':' in query line.");
+          }
+          queries.add (qLine.substring (d + 1));
+        }
+      }
+
+      //  Each index is run once to warm up, and then timed.
+
+      long[] fullTimes = new long[queries.size ()];
+      long[] prunedTimes = new long[queries.size ()];
+      ScoreList[] full = runQueries (indexPath, queries, model, k, fullTimes);
+      ScoreList[] pruned = runQueries (prunedPath, queries, model, k, prunedTimes);
+      full = runQueries (indexPath, queries, model, k, fullTimes);
+      pruned = runQueries (prunedPath, queries, model, k, prunedTimes);
+
+      double overlap10 = 0.0;
+      double overlapK = 0.0;
+
+      for (int i = 0; i < queries.size (); i++) {
+        overlap10 += pruned[i].getOverlap (full[i], Math.min (10, k));
+        overlapK += pruned[i].getOverlap (full[i], k);
+      }
+
+      int n = Math.max (queries.size (), 1);
+
+      System.out.println (String.format (
+        "%s:  %d queries, mean overlap@10 %.3f, mean overlap@%d %.3f, " +
+        "mean latency %.3f ms pruned vs %.3f ms full, median %.3f ms vs %.3f ms",
+        queryFile, queries.size (), overlap10 / n, k, overlapK / n,
+        mean (prunedTimes) / 1e6, mean (fullTimes) / 1e6,
+        median (prunedTimes) / 1e6, median (fullTimes) / 1e6));
+    }
+  }
+
+  /**
+   *  Evaluate queries on one index, without printing them.
+   */
+  private static ScoreList[] runQueries (String indexPath, List<String> queries,
+                                         RetrievalModel model, int k, long[] times)
+    throws IOException {
+
+    ScoreList[] results = new ScoreList[queries.size ()];
+
+    Idx.setCurrentIndex (indexPath);
+
+    for (int i = 0; i < queries.size (); i++) {
+      long start = System.nanoTime ();
+      results[i] = QryEval.processQuery (queries.get (i), model, k, false);
+      times[i] = System.nanoTime () - start;
+
+      if (results[i] == null) {
+        results[i] = new ScoreList ();
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   *  The total size of an index's Lucene files and of its sidecars.
+   */
+  private static long[] getIndexSize (String indexPath) throws IOException {
+
+    long[] size = new long[2];
+
+    try (DirectoryStream<Path> files = Files.newDirectoryStream (Paths.get (indexPath))) {
+      for (Path file : files) {
+        boolean sidecar = file.getFileName ().toString ().startsWith ("QryEval.");
+        size[sidecar ? 1 : 0] += Files.size (file);
+      }
+    }
+
+    return size;
+  }
+
+  private static double mean (long[] values) {
+    double sum = 0.0;
+
+    for (long v : values) {
+      sum += v;
+    }
+    return (values.length > 0) ? sum / values.length : 0.0;
+  }
+
+  private static double median (long[] values) {
+    if (values.length == 0) {
+      return 0.0;
+    }
+
+    long[] sorted = values.clone ();
+    Arrays.sort (sorted);
+    return sorted[sorted.length / 2];
+  }
+
+  /**
+   *  Tokens with given positions, in position order, for indexing a
+   *  field whose postings have already been chosen.
+   */
+  static class PositionTokenStream extends TokenStream {
+
+    private final CharTermAttribute termAttribute = addAttribute (CharTermAttribute.class);
+    private final PositionIncrementAttribute positionAttribute =
+      addAttribute (PositionIncrementAttribute.class);
+
+    private final List<String> terms = new ArrayList<String> ();
+    private long[] tokens = new long[16];
+    private int size = 0;
+    private int next = 0;
+    private int lastPosition = -1;
+
+    /**
+     *  Add a token.
+     */
+    void add (String term, int position) {
+      if (this.size == this.tokens.length) {
+        this.tokens = Arrays.copyOf (this.tokens, 2 * this.size);
+      }
+      this.tokens[this.size++] = ((long) position << 32) | this.terms.size ();
+      this.terms.add (term);
+    }
+
+    int size () {
+      return this.size;
+    }
+
+    public void reset () throws IOException {
+      super.reset ();
+      Arrays.sort (this.tokens, 0, this.size);
+      this.next = 0;
+      this.lastPosition = -1;
+    }
+
+    public boolean incrementToken () {
+
+      if (this.next == this.size) {
+        return false;
+      }
+
+      int position = (int) (this.tokens[this.next] >>> 32);
+      int term = (int) this.tokens[this.next];
+
+      clearAttributes ();
+      this.termAttribute.setEmpty ().append (this.terms.get (term));
+      this.positionAttribute.setPositionIncrement (position - this.lastPosition);
+      this.lastPosition = position;
+      this.next ++;
+      return true;
+    }
+  }
+
+  /**
+   *  Prune an index, or compare a pruned index with the full index.
+   *  @param args See USAGE.
+   *  @throws IOException Error accessing the indexes.
+   */
+  public static void main (String[] args) throws IOException {
+
+    Map<String,String> options = new HashMap<String,String> ();
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (! args[i].startsWith ("-")) {
+        break;
+      }
+      options.put (args[i].substring (1), args[i + 1]);
+    }
+
+    if ((args.length % 2 != 0) ||
+        (! options.containsKey ("index")) ||
+        (! options.containsKey ("model")) ||
+        (options.containsKey ("output") == options.containsKey ("compare")) ||
+        (options.containsKey ("output") &&
+         (options.containsKey ("percent") == options.containsKey ("epsilon"))) ||
+        (options.containsKey ("compare") && ! options.containsKey ("queries"))) {
+      System.err.println (USAGE);
+      System.exit (1);
+    }
+
+    RetrievalModel model;
+    String modelName = options.get ("model").toLowerCase ();
+
+    if (modelName.equals ("bm25")) {
+      model = new RetrievalModelBM25 (
+        Double.parseDouble (options.getOrDefault ("k_1", "1.2")),
+        Double.parseDouble (options.getOrDefault ("k_3", "0")),
+        Double.parseDouble (options.getOrDefault ("b", "0.75")));
+    } else if (modelName.equals ("indri")) {
+      model = new RetrievalModelIndri (
+        Float.parseFloat (options.getOrDefault ("mu", "2500")),
+        Float.parseFloat (options.getOrDefault ("lambda", "0.4")));
+    } else {
+      throw new IllegalArgumentException ("Unknown retrieval model " + options.get ("model"));
+    }
+
+    Timer timer = new Timer ();
+    timer.start ();
+
+    if (options.containsKey ("output")) {
+      prune (options.get ("index"), options.get ("output"), model,
+             Double.parseDouble (options.getOrDefault ("percent", "0")),
+             Double.parseDouble (options.getOrDefault ("epsilon", "0")),
+             Integer.parseInt (options.getOrDefault ("depth", "10")));
+    } else {
+      compare (options.get ("index"), options.get ("compare"), model,
+               options.get ("queries").split (","),
+               Integer.parseInt (options.getOrDefault ("k", "100")));
+    }
+
+    timer.stop ();
+    System.out.println ("Time:  " + timer);
+  }
+}
@@ -100,6 +100,18 @@ public abstract class Qry {
   private boolean matchStored = false;	// Operators can cache matches
   private int matchingDocid;
 
+  /**
+   *  docIteratorHasMatchAll visits the arguments in order of their
+   *  estimated remaining cost (see docIteratorCost), cheapest first.
+   *  The order is recomputed every CONJUNCTION_REORDER_INTERVAL calls,
+   *  because iterators don't advance through their lists at the same
+   *  rate.
+   */
+  private static final int CONJUNCTION_REORDER_INTERVAL = 64;
+  private int[] conjunctionOrder = null;
+  private long[] conjunctionCosts = null;
+  private int conjunctionCalls = 0;
+
   //  --------------- Methods ---------------------------------------
 
   /**
@@ -238,60 +250,171 @@ public abstract class Qry {
    */
   public abstract boolean docIteratorHasMatch (RetrievalModel r);
 
+  /**
+   *  Indicates whether the query matches only documents that all of
+   *  its arguments match, i.e., whether docIteratorHasMatch uses
+   *  docIteratorHasMatchAll.  This implementation is for operators
+   *  that match any argument.  Operators that match all of their
+   *  arguments, in some or all retrieval models, override it.
+   *  @param r The retrieval model that determines what is a match
+   *  @return True if the query matches all of its arguments.
+   */
+  public boolean docIteratorMatchesAll (RetrievalModel r) {
+    return false;
+  }
+
+  /**
+   *  Estimate how many more documents the docIterator will visit,
+   *  which is the cost of iterating over the rest of its list.  This
+   *  implementation adds the costs of the arguments for operators
+   *  that match any argument, and takes the smallest for operators
+   *  that match all of them (see docIteratorMatchesAll).  Subclasses
+   *  that know their position in a list override it.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The estimated number of documents left.
+   */
+  protected long docIteratorCost (RetrievalModel r) {
+    return this.docIteratorMatchesAll (r) ?
+      this.docIteratorCostAll (r) : this.docIteratorCostAny (r);
+  }
+
+  /**
+   *  A docIteratorCost for operators that match any argument:  the
+   *  sum of the costs of the arguments.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The estimated number of documents left.
+   */
+  protected long docIteratorCostAny (RetrievalModel r) {
+    long cost = 0;
+
+    for (int i=0; i<this.args.size(); i++) {
+      cost += this.args.get(i).docIteratorCost (r);
+    }
+
+    return cost;
+  }
+
+  /**
+   *  A docIteratorCost for operators that match all of their
+   *  arguments:  the smallest cost of the arguments.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The estimated number of documents left.
+   */
+  protected long docIteratorCostAll (RetrievalModel r) {
+    long cost = Long.MAX_VALUE;
+
+    for (int i=0; i<this.args.size(); i++) {
+      cost = Math.min (cost, this.args.get(i).docIteratorCost (r));
+    }
+
+    return cost;
+  }
+
   /**
    *  An instantiation of docIteratorHasMatch that is true if the
    *  query has a document that matches all query arguments; some
-   *  subclasses may choose to use this implementation.  
+   *  subclasses may choose to use this implementation.
+   *  <p>
+   *  The argument with the smallest estimated remaining cost leads.
+   *  The others are advanced to the largest docid seen so far, in
+   *  order of cost; when one moves past it, that docid becomes the
+   *  new target and the leader jumps to it (leapfrogging).  The
+   *  order adapts as the iterators advance.  The match is the same
+   *  for any order, but a rare leader skips most of the common lists.
+   *  </p>
    *  @param r The retrieval model that determines what is a match
    *  @return True if the query matches, otherwise false.
    */
   protected boolean docIteratorHasMatchAll (RetrievalModel r) {
 
-    boolean matchFound = false;
+    int[] order = this.conjunctionOrder (r);
+    Qry lead = this.args.get (order[0]);
 
-    // Keep trying until a match is found or no match is possible.
+    if (! lead.docIteratorHasMatch (r)) {
+      return false;
+    }
 
-    while (!matchFound) {
+    int target = lead.docIteratorGetMatch ();
 
-      // Get the docid of the first query argument.
-      
-      Qry q_0 = this.args.get (0);
+    // Other query arguments must match the target docid.  The target
+    // is the largest docid that any argument has reached.
+
+    for (int i=1; i<order.length; ) {
+      Qry q_i = this.args.get (order[i]);
 
-      if (! q_0.docIteratorHasMatch (r)) {
-	    return false;
+      q_i.docIteratorAdvanceTo (target);
+
+      if (! q_i.docIteratorHasMatch (r)) {	// If any argument is exhausted
+        return false;				// there are no more matches.
       }
 
-      int docid_0 = q_0.docIteratorGetMatch ();
+      int docid_i = q_i.docIteratorGetMatch ();
 
-      // Other query arguments must match the docid of the first query
-      // argument.
-      
-      matchFound = true;
+      if (docid_i == target) {
+        i ++;
+        continue;
+      }
+
+      // The target can't match.  The leader jumps to docid_i, and
+      // the others are checked again.
+
+      lead.docIteratorAdvanceTo (docid_i);
+
+      if (! lead.docIteratorHasMatch (r)) {
+        return false;
+      }
 
-      for (int i=1; i<this.args.size(); i++) {
-	Qry q_i = this.args.get(i);
+      target = lead.docIteratorGetMatch ();
+      i = 1;
+    }
+
+    docIteratorSetMatchCache (target);
+    return true;
+  }
 
-	q_i.docIteratorAdvanceTo (docid_0);
+  /**
+   *  Get the order in which docIteratorHasMatchAll visits the query
+   *  arguments, sorting them by estimated remaining cost on the first
+   *  call and periodically after that.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The indexes of the arguments, cheapest first.
+   */
+  private int[] conjunctionOrder (RetrievalModel r) {
+    int n = this.args.size ();
 
-	if (! q_i.docIteratorHasMatch (r)) {	// If any argument is exhausted
-	  return false;				// there are no more matches.
-	}
+    if ((this.conjunctionOrder == null) || (this.conjunctionOrder.length != n)) {
+      this.conjunctionOrder = new int[n];
+      this.conjunctionCosts = new long[n];
+      this.conjunctionCalls = 0;
 
-	int docid_i = q_i.docIteratorGetMatch ();
+      for (int i=0; i<n; i++) {
+        this.conjunctionOrder[i] = i;
+      }
+    }
 
-	if (docid_0 != docid_i) {	// docid_0 can't match.  Try again.
-	  q_0.docIteratorAdvanceTo (docid_i);
-	  matchFound = false;
-	  break;
-	}
+    if ((n > 1) && (this.conjunctionCalls++ % CONJUNCTION_REORDER_INTERVAL == 0)) {
+      for (int i=0; i<n; i++) {
+        this.conjunctionCosts[i] = this.args.get(i).docIteratorCost (r);
       }
 
-      if (matchFound) {
-        docIteratorSetMatchCache (docid_0);
+      // Insertion sort; conjunctions are short, and the order changes
+      // little from one sort to the next.
+
+      for (int i=1; i<n; i++) {
+        int arg = this.conjunctionOrder[i];
+        int j = i - 1;
+
+        while ((j >= 0) &&
+               (this.conjunctionCosts[this.conjunctionOrder[j]] > this.conjunctionCosts[arg])) {
+          this.conjunctionOrder[j + 1] = this.conjunctionOrder[j];
+          j --;
+        }
+
+        this.conjunctionOrder[j + 1] = arg;
       }
     }
 
-    return true;
+    return this.conjunctionOrder;
   }
 
   /**
@@ -5,6 +5,7 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  *  This software illustrates the architecture for the portion of a
@@ -26,6 +27,23 @@ public class QryEval {
 
   private static Map<Integer, ScoreList> scoreListMap = null;
 
+  /**
+   *  The number of top documents per query that are recorded for
+   *  learning-to-rank.
+   */
+  private static final int REL_MAP_LENGTH = 100;
+
+  /**
+   *  Whether BM25 #SUM queries use MaxScore dynamic pruning.
+   */
+  private static boolean maxScore = true;
+
+  /**
+   *  The number of docid ranges that each query is split into for
+   *  parallel evaluation.  1 evaluates queries sequentially.
+   */
+  private static int numRanges = 1;
+
 
 
 
@@ -57,15 +75,102 @@ public class QryEval {
 
     //  Open the index and initialize the retrieval model.
     Idx.open (parameters.get("indexPath"));
-    RetrievalModel model = initializeRetrievalModel (parameters);
 
-    //  Perform experiments.
-    if(!(model instanceof RetrievalModelLetor)){
-      processQueryFile(parameters, model);
+    if (parameters.containsKey ("streamPostings")) {
+      QryIopTerm.setStreaming (Boolean.parseBoolean (parameters.get ("streamPostings")));
+    }
+
+    if (parameters.containsKey ("lazyOperators")) {
+      QryIop.setLazyEvaluation (Boolean.parseBoolean (parameters.get ("lazyOperators")));
+    }
+
+    if (parameters.containsKey ("lazyStatistics")) {
+      QryIop.setLazyStatistics (Boolean.parseBoolean (parameters.get ("lazyStatistics")));
+    }
+
+    if (parameters.containsKey ("rewriteQueries")) {
+      QryParser.setRewriting (Boolean.parseBoolean (parameters.get ("rewriteQueries")));
+    }
+
+    if (parameters.containsKey ("explainQueries")) {
+      QryParser.setExplaining (Boolean.parseBoolean (parameters.get ("explainQueries")));
+    }
+
+    if (parameters.containsKey ("taat")) {
+      TaatEvaluator.setMode (parameters.get ("taat"));
+    }
+
+    if (parameters.containsKey ("compileScorers")) {
+      QryScorer.setCompiling (Boolean.parseBoolean (parameters.get ("compileScorers")));
+    }
+
+    if (parameters.containsKey ("BM25:maxScore")) {
+      maxScore = Boolean.parseBoolean (parameters.get ("BM25:maxScore"));
+    }
+
+    if (parameters.containsKey ("BM25:impactOrdered")) {
+      ImpactEvaluator.setEnabled (Boolean.parseBoolean (parameters.get ("BM25:impactOrdered")));
+    }
+
+    if (parameters.containsKey ("BM25:impactPostings")) {
+      ImpactEvaluator.setPostingsBudget (Long.parseLong (parameters.get ("BM25:impactPostings")));
+    }
+
+    if (parameters.containsKey ("BM25:impactTimeMs")) {
+      ImpactEvaluator.setTimeBudget (Double.parseDouble (parameters.get ("BM25:impactTimeMs")));
+    }
+
+    if (parameters.containsKey ("BM25:impactReport")) {
+      ImpactEvaluator.setReporting (Boolean.parseBoolean (parameters.get ("BM25:impactReport")));
+    }
+
+    if (parameters.containsKey ("tier")) {
+      TierEvaluator.setEnabled (Boolean.parseBoolean (parameters.get ("tier")));
+    }
+
+    if (parameters.containsKey ("tier:bound")) {
+      TierEvaluator.setBoundFactor (Double.parseDouble (parameters.get ("tier:bound")));
+    }
+
+    if (parameters.containsKey ("numRanges")) {
+      numRanges = Integer.parseInt (parameters.get ("numRanges"));
+    }
+
+    if (parameters.containsKey ("invListCacheMB")) {
+      InvListCache.setCapacity (
+        (long) (Double.parseDouble (parameters.get ("invListCacheMB")) * 1024 * 1024));
+    }
+
+    //  A parameter sweep evaluates several configurations of the
+    //  retrieval model at once.
+
+    List<Map<String, String>> sweep = SweepEvaluator.expandGrid (parameters);
+
+    if (sweep != null) {
+      processQueryFileSweep (sweep);
+    } else {
+      RetrievalModel model = initializeRetrievalModel (parameters);
+
+      //  Perform experiments.
+      if(!(model instanceof RetrievalModelLetor)){
+        processQueryFile(parameters, model);
+      }
     }
 
 
     //  Clean up.
+
+    if (InvListCache.getInstance () != null) {
+      System.out.println (InvListCache.getInstance ());
+    }
+
+    if (ImpactEvaluator.getReport () != null) {
+      System.out.println (ImpactEvaluator.getReport ());
+    }
+
+    if (TierEvaluator.getReport () != null) {
+      System.out.println (TierEvaluator.getReport ());
+    }
     
     timer.stop ();
     System.out.println ("Time:  " + timer);
@@ -263,39 +368,135 @@ public class QryEval {
    */
   static ScoreList processQuery(String qString, RetrievalModel model)
     throws IOException {
+    return processQuery(qString, model, 0);
+  }
+
+  /**
+   * Process one query, keeping only the top k results.  Some queries
+   * can be evaluated faster when only the top k results are needed.
+   * @param qString A string that contains a query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param k The number of results needed, or 0 for all results.
+   * @return Search results
+   * @throws IOException Error accessing the index
+   */
+  static ScoreList processQuery(String qString, RetrievalModel model, int k)
+    throws IOException {
+    return processQuery(qString, model, k, true);
+  }
+
+  /**
+   * Process one query, keeping only the top k results, and optionally
+   * without showing it, e.g., when queries are timed.
+   * @param qString A string that contains a query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param k The number of results needed, or 0 for all results.
+   * @param echo True to print the query that is evaluated.
+   * @return Search results
+   * @throws IOException Error accessing the index
+   */
+  static ScoreList processQuery(String qString, RetrievalModel model, int k, boolean echo)
+    throws IOException {
 
     String defaultOp = model.defaultQrySopName ();
     qString = defaultOp + "(" + qString + ")";
-    Qry q = QryParser.getQuery (qString);
+    Qry q = QryParser.getQuery (qString, model);
 
     // Show the query that is evaluated
     
-    System.out.println("    --> " + q);
+    if (echo) {
+      System.out.println("    --> " + q);
+    }
     
     if (q != null) {
 
-      ScoreList r = new ScoreList ();
-      
       if (q.args.size () > 0) {		// Ignore empty queries
 
-        q.initialize (model);
+        if (ImpactEvaluator.isEnabled () && ImpactEvaluator.canEvaluate (q, model)) {
+          ImpactEvaluator.Run run =
+            ImpactEvaluator.evaluate (q, (RetrievalModelBM25) model, k);
 
-        while (q.docIteratorHasMatch (model)) {
-          int docid = q.docIteratorGetMatch ();
+          if (ImpactEvaluator.isReporting ()) {
+            long start = System.nanoTime ();
+            ScoreList exhaustive = evaluateQuery (qString, q, model, k);
+            ImpactEvaluator.report (run, exhaustive, System.nanoTime () - start);
+          }
 
-          double score = ((QrySop) q).getScore (model);
-          r.add (docid, score);
-          q.docIteratorAdvancePast (docid);
+          return run.getResults ();
         }
+
+        return evaluateQuery (qString, q, model, k);
       }
-      r.sort();
-      return r;
+      return new ScoreList ();
     } else
       return null;
   }
 
   /**
-   *  Process the query file.
+   * Evaluate a parsed query that has arguments, with the fastest
+   * evaluator that gives exact results.
+   * @param qString The query, including its default operator.
+   * @param q The parsed query, which is not initialized yet.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param k The number of results needed, or 0 for all results.
+   * @return Search results
+   * @throws IOException Error accessing the index
+   */
+  private static ScoreList evaluateQuery(String qString, Qry q, RetrievalModel model, int k)
+    throws IOException {
+
+    if (TierEvaluator.isEnabled () && (k > 0) && TierEvaluator.canEvaluate (q, model)) {
+      q.initialize (model);
+      return TierEvaluator.evaluate ((QrySopSum) q, (RetrievalModelBM25) model, k);
+    }
+
+    if ((numRanges > 1) && (k > 0)) {
+      return RangeEvaluator.evaluate (qString, model, k, numRanges, maxScore);
+    }
+
+    q.initialize (model);
+
+    if (TaatEvaluator.useTaat (q, model)) {
+      return TaatEvaluator.evaluate (q, model, k);
+    }
+
+    if (maxScore && (k > 0) && MaxScoreEvaluator.canEvaluate (q, model)) {
+      return MaxScoreEvaluator.evaluate ((QrySopSum) q, (RetrievalModelBM25) model, k);
+    }
+
+    QryScorer scorer = QryScorer.compile (q, model);
+
+    if (k > 0) {
+      TopKCollector topK = new TopKCollector (k);
+
+      while (q.docIteratorHasMatch (model)) {
+        int docid = q.docIteratorGetMatch ();
+
+        topK.add (docid, scorer.getScore (docid));
+        q.docIteratorAdvancePast (docid);
+      }
+
+      return topK.toScoreList ();
+    }
+
+    ScoreList r = new ScoreList ();
+
+    while (q.docIteratorHasMatch (model)) {
+      int docid = q.docIteratorGetMatch ();
+
+      double score = scorer.getScore (docid);
+      r.add (docid, score);
+      q.docIteratorAdvancePast (docid);
+    }
+    r.sort();
+    return r;
+  }
+
+  /**
+   *  Process the query file.  Queries are evaluated by numThreads
+   *  worker threads (default 1).  Results are written in the order of
+   *  the query file, each as soon as it and the queries before it are
+   *  done.
    *  @param parameters
    *  @param model
    *  @throws IOException Error accessing the Lucene index.
@@ -304,6 +505,8 @@ public class QryEval {
 
     BufferedReader input = null;
     BufferedWriter writer = null;
+    BufferedWriter expansionWriter = null;
+    ExecutorService workers = null;
 
     Map<Integer, Map<String, Integer>> relMap = new TreeMap<>();
 
@@ -313,7 +516,120 @@ public class QryEval {
       input = new BufferedReader(new FileReader(parameters.get("queryFilePath")));
       writer = new BufferedWriter(new FileWriter(parameters.get("trecEvalOutputPath")));
 
-      //  Each pass of the loop processes one query.
+      //  The number of results that are used: printed, recorded for
+      //  learning-to-rank, or used for query expansion.
+
+      int kMax = Math.max(Integer.parseInt(parameters.get("trecEvalOutputLength")), REL_MAP_LENGTH);
+
+      if (parameters.containsKey("fbDocs")) {
+        kMax = Math.max(kMax, Integer.parseInt(parameters.get("fbDocs")));
+      }
+
+      final int k = kMax;
+
+      /*********************************** Homework3 Expand Queries Start *******************************************/
+      if (parameters.containsKey("fb") && !parameters.get("fb").equals("false")) {
+        //check all parameters for expansion
+        if (!(parameters.containsKey("fbTerms") && parameters.containsKey("fbMu")
+                && parameters.containsKey("fbOrigWeight")
+                && parameters.containsKey("fbExpansionQueryFile"))) {
+          throw new IllegalArgumentException("Required parameters were missing from the parameter file.");
+        }
+
+        expansionWriter = new BufferedWriter(new FileWriter(parameters.get("fbExpansionQueryFile"), true));
+
+        //  The initial rankings are shared by the worker threads, so
+        //  they are read before any query is evaluated.
+
+        if (parameters.containsKey("fbInitialRankingFile") && scoreListMap == null) {
+          scoreListMap = readRankingListFile(parameters.get("fbInitialRankingFile"));
+        }
+      }
+      /*********************************** Homework3 Expand Queries End *******************************************/
+
+      int numThreads = parameters.containsKey("numThreads") ?
+        Integer.parseInt(parameters.get("numThreads")) : 1;
+
+      if (numThreads <= 1) {
+
+        //  Each pass of the loop processes one query.
+        while ((qLine = input.readLine()) != null) {
+          printMemoryUsage(false);
+          writeQueryResult(evaluateQueryLine(qLine, parameters, model, k),
+                           parameters, writer, expansionWriter, relMap);
+        }
+      } else {
+
+        //  Submit every query, then write the results in query file
+        //  order.  Each result is written as soon as it is available.
+
+        workers = Executors.newFixedThreadPool(numThreads);
+        List<Future<QueryResult>> results = new ArrayList<>();
+
+        while ((qLine = input.readLine()) != null) {
+          final String line = qLine;
+          results.add(workers.submit(() -> evaluateQueryLine(line, parameters, model, k)));
+        }
+
+        for (Future<QueryResult> result : results) {
+          writeQueryResult(awaitQueryResult(result),
+                           parameters, writer, expansionWriter, relMap);
+        }
+      }
+    } catch (IOException ex) {
+      ex.printStackTrace();
+    } finally {
+      if (workers != null) {
+        workers.shutdownNow();
+      }
+      if (expansionWriter != null) {
+        expansionWriter.close();
+      }
+      input.close();
+      writer.close();
+      return relMap;
+    }
+  }
+
+  /**
+   *  Process the query file for a parameter sweep, writing one
+   *  trec_eval file per configuration.  See SweepEvaluator.
+   *  @param configs The parameters of each configuration.
+   *  @throws Exception Error accessing the Lucene index, or a
+   *  configuration that can't be swept.
+   */
+  static void processQueryFileSweep(List<Map<String, String>> configs) throws Exception {
+
+    Map<String, String> parameters = configs.get(0);
+
+    if (parameters.containsKey("fb") && !parameters.get("fb").equals("false")) {
+      throw new IllegalArgumentException("Query expansion can't be used in a parameter sweep.");
+    }
+
+    RetrievalModel[] models = new RetrievalModel[configs.size()];
+    BufferedWriter[] writers = new BufferedWriter[configs.size()];
+    BufferedReader input = null;
+
+    for (int c = 0; c < configs.size(); c++) {
+      models[c] = initializeRetrievalModel(configs.get(c));
+
+      if (!(models[c] instanceof RetrievalModelBM25) && !(models[c] instanceof RetrievalModelIndri)) {
+        throw new IllegalArgumentException("Only BM25 and Indri parameters can be swept.");
+      }
+    }
+
+    int k = Integer.parseInt(parameters.get("trecEvalOutputLength"));
+
+    try {
+      String qLine = null;
+
+      input = new BufferedReader(new FileReader(parameters.get("queryFilePath")));
+
+      for (int c = 0; c < configs.size(); c++) {
+        writers[c] = new BufferedWriter(new FileWriter(configs.get(c).get("trecEvalOutputPath")));
+      }
+
+      //  Each pass of the loop processes one query for every configuration.
       while ((qLine = input.readLine()) != null) {
         int d = qLine.indexOf(':');
 
@@ -322,89 +638,173 @@ public class QryEval {
             ("Syntax error:  Missing ':' in query line.");
         }
 
-        printMemoryUsage(false);
-
         String qid = qLine.substring(0, d);
         String query = qLine.substring(d + 1);
 
         System.out.println("Query " + qLine);
 
-        ScoreList r = null;
+        ScoreList[] results = SweepEvaluator.evaluate(query, models, k);
 
-        /*********************************** Homework3 Expand Queries Start *******************************************/
-        if(!parameters.containsKey("fb") || parameters.get("fb").equals("false")){
-          //use the query to retrieve documents
-          r = processQuery(query, model);
-        }else{
-          //check all parameters for expansion
-          if (!(parameters.containsKey("fbTerms") && parameters.containsKey("fbMu")
-                  && parameters.containsKey("fbOrigWeight")
-                  && parameters.containsKey("fbExpansionQueryFile"))) {
-            throw new IllegalArgumentException("Required parameters were missing from the parameter file.");
+        if (results != null) {
+          for (int c = 0; c < configs.size(); c++) {
+            printResults(qid, results[c], configs.get(c), writers[c]);
           }
+          System.out.println();
+        }
+      }
+    } finally {
+      if (input != null) {
+        input.close();
+      }
+      for (BufferedWriter writer : writers) {
+        if (writer != null) {
+          writer.close();
+        }
+      }
+    }
+  }
 
-          BufferedWriter bw = new BufferedWriter(new FileWriter(parameters.get("fbExpansionQueryFile"), true));
-
-          if(parameters.containsKey("fbInitialRankingFile")){
-            //read a document ranking in trec_eval input format from the fbInitialRankingFile;
-            if(scoreListMap == null){
-                scoreListMap = readRankingListFile(parameters.get("fbInitialRankingFile"));
-            }
-            r = scoreListMap.get(Integer.valueOf(qid));
-          }else{
-            //use the query to retrieve documents
-            r = processQuery(query, model);
-          }
+  /**
+   *  The results of one line of the query file.
+   */
+  private static class QueryResult {
+    String qid;
+    ScoreList r;
+    String expandedQuery;       // null unless query expansion is used
+  }
 
-          //  use the Indri query expansion algorithm (Lecture 11, slides #30-36) to produce an expanded query;
-          //  write the expanded query to a file specified by the fbExpansionQueryFile= parameter (the format is below);
-          //  create a combined query as #wand (w qoriginal + (1-w) qexpandedquery);
-          //  use the combined query to retrieve documents;
+  /**
+   *  Evaluate one line of the query file.  This may run in a worker
+   *  thread, so it does not write any files.
+   *  @param qLine A line of the query file, qid:query.
+   *  @param parameters
+   *  @param model
+   *  @param k The number of results needed.
+   *  @return The results.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static QueryResult evaluateQueryLine(String qLine, Map<String, String> parameters, RetrievalModel model, int k) throws IOException {
 
-          //r is the sorted docid with scores
-          String expandedQuery = expandQuery(r, parameters);
+    int d = qLine.indexOf(':');
 
-          System.out.println(qid + ": " + expandedQuery + "\n");
+    if (d < 0) {
+      throw new IllegalArgumentException
+        ("Syntax error:  Missing ':' in query line.");
+    }
 
-          bw.write(qid + ": " + expandedQuery + "\n");
+    QueryResult result = new QueryResult();
+    result.qid = qLine.substring(0, d);
+    String query = qLine.substring(d + 1);
+
+    System.out.println("Query " + qLine);
+
+    ScoreList r = null;
+
+    /*********************************** Homework3 Expand Queries Start *******************************************/
+    if(!parameters.containsKey("fb") || parameters.get("fb").equals("false")){
+      //use the query to retrieve documents
+      r = processQuery(query, model, k);
+    }else{
+      if(parameters.containsKey("fbInitialRankingFile")){
+        //read a document ranking in trec_eval input format from the fbInitialRankingFile;
+        r = scoreListMap.get(Integer.valueOf(result.qid));
+      }else{
+        //use the query to retrieve documents
+        r = processQuery(query, model, k);
+      }
 
-          double fbOrigWeight = Double.valueOf(parameters.get("fbOrigWeight"));
-          if(query.trim().charAt(0) != '#') query = model.defaultQrySopName() + "(" + query +")";
-          String newQry = String.format("#wand (%f %s %f %s )", fbOrigWeight, query, 1-fbOrigWeight, expandedQuery);
-          System.out.println(newQry);
-          r = processQuery(newQry, model);
+      //  use the Indri query expansion algorithm (Lecture 11, slides #30-36) to produce an expanded query;
+      //  write the expanded query to a file specified by the fbExpansionQueryFile= parameter (the format is below);
+      //  create a combined query as #wand (w qoriginal + (1-w) qexpandedquery);
+      //  use the combined query to retrieve documents;
 
-          bw.close();
-        }
-        //write the retrieval results to a file in trec_eval input format;
-        /*********************************** Homework3 Expand Queries End *******************************************/
+      //r is the sorted docid with scores
+      String expandedQuery = expandQuery(r, parameters);
 
-        Map<String, Integer> topDocs = new HashMap<String, Integer>();
+      System.out.println(result.qid + ": " + expandedQuery + "\n");
 
-        if (r != null) {
-          int result_range = Math.min(100, r.size());
-          if (r.size() < 1) {
-            System.out.println("\tNo results.");
-          } else {
-            for (int i = 0; i < result_range; i++) {
-              topDocs.put(Idx.getExternalDocid(r.getDocid(i)), 0);
-            }
-          }
-        }
-        relMap.putIfAbsent(Integer.parseInt(qid), topDocs);
+      result.expandedQuery = expandedQuery;
 
-        if (r != null) {
-          printResults(qid, r, parameters, writer);
-          System.out.println();
+      double fbOrigWeight = Double.valueOf(parameters.get("fbOrigWeight"));
+      if(query.trim().charAt(0) != '#') query = model.defaultQrySopName() + "(" + query +")";
+      String newQry = String.format("#wand (%f %s %f %s )", fbOrigWeight, query, 1-fbOrigWeight, expandedQuery);
+      System.out.println(newQry);
+      r = processQuery(newQry, model, k);
+    }
+    /*********************************** Homework3 Expand Queries End *******************************************/
+
+    result.r = r;
+    return result;
+  }
+
+  /**
+   *  Write the results of one line of the query file:  the expanded
+   *  query, the top documents for learning-to-rank, and the results in
+   *  trec_eval input format.
+   *  @param result The results of the query.
+   *  @param parameters
+   *  @param writer The trec_eval output file.
+   *  @param expansionWriter The expanded query file, or null.
+   *  @param relMap The top documents of each query.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static void writeQueryResult(QueryResult result, Map<String, String> parameters, BufferedWriter writer,
+                                       BufferedWriter expansionWriter, Map<Integer, Map<String, Integer>> relMap)
+    throws IOException {
+
+    String qid = result.qid;
+    ScoreList r = result.r;
+
+    if (result.expandedQuery != null) {
+      expansionWriter.write(qid + ": " + result.expandedQuery + "\n");
+    }
+
+    //write the retrieval results to a file in trec_eval input format;
+
+    Map<String, Integer> topDocs = new HashMap<String, Integer>();
+
+    if (r != null) {
+      int result_range = Math.min(REL_MAP_LENGTH, r.size());
+      if (r.size() < 1) {
+        System.out.println("\tNo results.");
+      } else {
+        for (int i = 0; i < result_range; i++) {
+          topDocs.put(r.getExternalDocid(i), 0);
         }
+      }
+    }
+    relMap.putIfAbsent(Integer.parseInt(qid), topDocs);
 
+    if (r != null) {
+      printResults(qid, r, parameters, writer);
+      System.out.println();
+    }
+  }
+
+  /**
+   *  Wait for a worker thread to evaluate a query.
+   *  @param result The pending results.
+   *  @return The results.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static QueryResult awaitQueryResult(Future<QueryResult> result) throws IOException {
+    try {
+      return result.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while evaluating queries.");
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new IOException(cause);
       }
-    } catch (IOException ex) {
-      ex.printStackTrace();
-    } finally {
-      input.close();
-      writer.close();
-      return relMap;
     }
   }
 
@@ -426,7 +826,7 @@ public class QryEval {
     Map<String, Double> termScores = new HashMap<>();
     Map<String, Double> mleList = new HashMap<>();
 
-    double lengthC = Idx.getSumOfFieldLengths("body");
+    double lengthC = Idx.getFieldStats("body").getSumOfLengths();
 
     for(int i =0; i < docNum; i++){
       int docid = r.getDocid(i);
@@ -568,7 +968,7 @@ public class QryEval {
       }
 
       for (int i = 0; i < Math.min(result.size(), Integer.parseInt(parameters.get("trecEvalOutputLength"))); i++) {
-        String out = String.format("%s Q0 %s %d %.15f %s%n", queryName, Idx.getExternalDocid(result.getDocid(i)), i + 1, result.getDocidScore(i), ForR);
+        String out = String.format("%s Q0 %s %d %.15f %s%n", queryName, result.getExternalDocid(i), i + 1, result.getDocidScore(i), ForR);
         writer.write(out);
 //        System.out.print(out);
       }
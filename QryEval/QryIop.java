@@ -13,7 +13,10 @@ import java.util.*;
  *  common to all query operators that return inverted lists.
  *  <p>
  *  After a QryIop operator is initialized, it caches a full inverted
- *  list, and information from the inverted list is accessible.  Document
+ *  list, and information from the inverted list is accessible.  (The
+ *  TERM operator may instead stream postings from the index; see
+ *  QryIopTerm.  The NEAR, WINDOW and SYN operators may instead
+ *  find matches lazily; see QryIopLazy.)  Document
  *  and location information are accessed via Qry.docIterator and
  *  QryIop.locIterator.  Corpus-level information, for example, 
  *  document frequency (df) and collection term frequency (ctf), are
@@ -41,6 +44,27 @@ public abstract class QryIop extends Qry {
    */
   private static final int INVALID_ITERATOR_INDEX = -1;
 
+  /**
+   *  Whether operators that support it (e.g., NEAR) find matches
+   *  lazily, when their parents ask, instead of materializing their
+   *  inverted lists when they are initialized.
+   */
+  private static boolean lazyEvaluation = true;
+
+  /**
+   *  Whether lazy operators whose parents need df and ctf count them
+   *  in a separate pass over their arguments.  If not, those operators
+   *  materialize their inverted lists, which is faster, but uses more
+   *  memory.
+   */
+  private static boolean lazyStatistics = false;
+
+  /**
+   *  True if the parent of this operator (e.g., a SCORE operator) uses
+   *  only its statistics and term frequencies, not its locations.
+   */
+  protected boolean countOnly = false;
+
   /**
    *  The document field that the query operator applies to; this is
    *  inferred from query operator arguments.
@@ -65,14 +89,17 @@ public abstract class QryIop extends Qry {
 
   /**
    *  Advance the query operator's internal iterator beyond the
-   *  specified document.
+   *  specified document.  Materialized lists are searched with a
+   *  galloping search, so skipping far ahead is cheap.
    *  @param docid The document's internal document id
    */
   public void docIteratorAdvancePast (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
+    if (docid == Integer.MAX_VALUE) {
+      this.docIteratorIndex = this.invertedList.df;
+    } else {
+      this.docIteratorIndex =
+        this.invertedList.findDocidIndex (this.docIteratorIndex, docid + 1);
     }
            
     this.locIteratorIndex = 0;
@@ -85,20 +112,42 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
-    }
+    this.docIteratorIndex =
+      this.invertedList.findDocidIndex (this.docIteratorIndex, docid);
            
     this.locIteratorIndex = 0;
   }
 
+  /**
+   *  Estimate how many more documents the docIterator will visit.  A
+   *  materialized list knows how many are left.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The estimated number of documents left.
+   */
+  protected long docIteratorCost (RetrievalModel r) {
+    if (this.invertedList == null) {
+      return super.docIteratorCost (r);
+    }
+    return this.invertedList.df - this.docIteratorIndex;
+  }
+
+  /**
+   *  Move the query operator's internal iterators back to the first
+   *  document, e.g., after a pass over the arguments to count
+   *  statistics.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void docIteratorReset () throws IOException {
+    this.docIteratorIndex = 0;
+    this.locIteratorIndex = 0;
+  }
+
   /**
    *  Advance the query operator's internal iterator beyond the
    *  any possible document.
    */
   public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
+    this.docIteratorIndex = this.invertedList.df;
   }
 
   /**
@@ -113,12 +162,24 @@ public abstract class QryIop extends Qry {
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
-   *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  Return the term frequency of the document that the docIterator
+   *  points to now, or throw an error if the docIterator doesn't point
+   *  at a document.
+   *  @return The term frequency (tf) of the current document.
    */
-  public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+  public int docIteratorGetMatchTf () {
+    return this.invertedList.getTf (this.docIteratorIndex);
+  }
+
+  /**
+   *  Return an upper bound on the term frequency of the document that
+   *  the docIterator points to now, or of any later document in the
+   *  same block of postings.  Dynamic pruning uses this to skip
+   *  documents that cannot score well enough.
+   *  @return An upper bound on the tf of the current document.
+   */
+  public int docIteratorGetBlockMaxTf () {
+    return this.invertedList.getBlockMaxTf (this.docIteratorIndex);
   }
 
   /**
@@ -140,6 +201,16 @@ public abstract class QryIop extends Qry {
     return this.invertedList.ctf;
   }
 
+  /**
+   *  Get an upper bound on the term frequency (tf) of any document
+   *  in the inverted list.  It is an error to call this method before
+   *  the object's initialize method is called.
+   *  @return The largest tf, or an upper bound on it.
+   */
+  public int getMaxTf () {
+    return this.invertedList.getMaxTf ();
+  }
+
   /**
    *  Get the document frequency (df) associated with this query
    *  operator.  It is an error to call this method before the
@@ -150,6 +221,17 @@ public abstract class QryIop extends Qry {
     return this.invertedList.df;
   }
 
+  /**
+   *  Get the full inverted list produced by this query operator.  It
+   *  is an error to call this method before the object's initialize
+   *  method is called.
+   *  @return The inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList getInvertedList () throws IOException {
+    return this.invertedList;
+  }
+
   /**
    *  Get the field associated with this query operator.
    *  @return The field associated with this query operator.
@@ -158,6 +240,53 @@ public abstract class QryIop extends Qry {
     return this.field;
   }
 
+  /**
+   *  Choose whether operators that support it find matches lazily or
+   *  materialize their inverted lists.  This affects query operators
+   *  that are initialized after the call.
+   *  @param lazy True to find matches lazily.
+   */
+  public static void setLazyEvaluation (boolean lazy) {
+    QryIop.lazyEvaluation = lazy;
+  }
+
+  /**
+   *  Indicates whether operators that support it find matches lazily.
+   *  @return True if matches are found lazily.
+   */
+  protected static boolean getLazyEvaluation () {
+    return QryIop.lazyEvaluation;
+  }
+
+  /**
+   *  Choose whether lazy operators whose parents need df and ctf count
+   *  them in a separate pass, or materialize their inverted lists.
+   *  This affects query operators that are initialized after the call.
+   *  @param lazy True to count statistics in a separate pass.
+   */
+  public static void setLazyStatistics (boolean lazy) {
+    QryIop.lazyStatistics = lazy;
+  }
+
+  /**
+   *  Indicates whether lazy operators count statistics in a separate
+   *  pass.
+   *  @return True if statistics are counted in a separate pass.
+   */
+  protected static boolean getLazyStatistics () {
+    return QryIop.lazyStatistics;
+  }
+
+  /**
+   *  Tell the operator whether its parent uses only its statistics and
+   *  term frequencies, so that it need not keep locations.  This must
+   *  be called before the operator is initialized.
+   *  @param countOnly True if locations are not needed.
+   */
+  public void setCountOnly (boolean countOnly) {
+    this.countOnly = countOnly;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
@@ -203,13 +332,9 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
-
-    while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
-      locIteratorIndex ++;
-    }
+    this.locIteratorIndex =
+      this.invertedList.findPositionIndexPast (this.docIteratorIndex,
+                                               this.locIteratorIndex, loc);
   }
 
   /**
@@ -218,7 +343,7 @@ public abstract class QryIop extends Qry {
    */
   public void locIteratorFinish () {
     this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+      this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -229,8 +354,8 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-    return locations.get (this.locIteratorIndex);
+    return this.invertedList.getPosition (this.docIteratorIndex,
+                                          this.locIteratorIndex);
   }
 
   /**
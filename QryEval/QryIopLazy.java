@@ -0,0 +1,442 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ *  The parent class of inverted list operators that compute their
+ *  matches from their arguments' locations (e.g., NEAR, WINDOW and
+ *  SYN).
+ *  Subclasses implement nextMatch, which finds the next matching
+ *  document; this class uses it either to materialize the inverted
+ *  list when the operator is initialized, or to find matches lazily.
+ *  <p>
+ *  A lazy operator finds the next matching document only when its
+ *  parent asks for it, and keeps the locations of that document in a
+ *  reusable buffer, so no inverted list is built.  A SCORE parent
+ *  doesn't use locations (see QryIop.setCountOnly), so then only the
+ *  number of matches in each document is kept.
+ *  </p><p>
+ *  If the parent is a SCORE operator and the retrieval model needs df
+ *  and ctf, the statistics must be known before the first document is
+ *  scored.  By default the operator then materializes its inverted
+ *  list.  If QryIop.setLazyStatistics is true, a first pass over the
+ *  arguments counts the statistics instead, and then the arguments
+ *  are reset.  That finds every match twice, but never holds the
+ *  whole list in memory.
+ *  </p>
+ */
+public abstract class QryIopLazy extends QryIop {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The docid of a lazy iterator that has no more matches.
+   */
+  protected static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+  /**
+   *  The locations of the match that nextMatch found.  Subclasses
+   *  fill this buffer, growing it with grow if necessary.
+   */
+  protected int[] matchLocations = new int[16];
+
+  /**
+   *  The docid of the match that nextMatch found.
+   */
+  protected int matchDocid = Qry.INVALID_DOCID;
+
+  /**
+   *  True if this operator finds matches lazily.
+   */
+  private boolean isLazy = false;
+
+  /**
+   *  The document that the lazy docIterator points to now,
+   *  NO_MORE_DOCS if there are no more matches, or INVALID_DOCID if
+   *  the next match has not been found yet.
+   */
+  private int lazyDocid = Qry.INVALID_DOCID;
+  private int lazyTf = 0;
+  private int lazyLocIteratorIndex = 0;
+
+  /**
+   *  Statistics of a lazy operator, if they were counted.
+   */
+  private boolean hasStatistics = false;
+  private int lazyDf = 0;
+  private int lazyCtf = 0;
+  private int lazyMaxTf = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Find the next document that matches, starting from the documents
+   *  that the arguments point to now.  The arguments are left on or
+   *  before the matching document; the caller advances them.
+   *  @param countOnly True if only the number of matches is needed,
+   *  not their locations.
+   *  @return The number of matches in the document, and its docid in
+   *  matchDocid, or 0 if there are no more matches.
+   */
+  protected abstract int nextMatch (boolean countOnly);
+
+  /**
+   *  Make sure that a location buffer can hold the specified number of
+   *  locations, keeping its contents.
+   *  @param buffer A location buffer.
+   *  @param size The number of locations.
+   *  @return The buffer, or a larger copy.
+   */
+  protected static int[] grow (int[] buffer, int size) {
+    if (size <= buffer.length) {
+      return buffer;
+    }
+    return Arrays.copyOf (buffer, Math.max (size, 2 * buffer.length));
+  }
+
+  /**
+   *  Copy the locations of an argument's current document into a
+   *  location buffer, which must be large enough.
+   *  @param q The argument, which must point at a document.
+   *  @param buffer The location buffer.
+   *  @param offset Where to put the first location.
+   *  @return The number of locations copied.
+   */
+  protected static int copyLocations (QryIop q, int[] buffer, int offset) {
+    int size = offset;
+
+    while (q.locIteratorHasMatch ()) {
+      buffer[size++] = q.locIteratorGetMatch ();
+      q.locIteratorAdvance ();
+    }
+
+    return size - offset;
+  }
+
+  /**
+   *  Evaluate the query operator; the result is an internal inverted
+   *  list that may be accessed via the internal iterators.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void evaluate () throws IOException {
+
+    //  Create an empty inverted list.  If there are no query arguments,
+    //  that's the final result.
+
+    this.invertedList = new InvList (this.getField ());
+
+    if (this.args.size () == 0) {
+      return;
+    }
+
+    int tf;
+
+    while ((tf = this.nextMatch (false)) > 0) {
+      this.invertedList.appendPosting (this.matchDocid, this.matchLocations, tf);
+      this.advanceArgsPast (this.matchDocid);
+    }
+  }
+
+  /**
+   *  Advance the arguments beyond the specified document.  Subclasses
+   *  that track where their arguments are (e.g., in a heap) may
+   *  override this to advance only the arguments that need it.
+   *  @param docid An internal document id.
+   */
+  protected void advanceArgsPast (int docid) {
+    for (Qry q_i: this.args) {
+      q_i.docIteratorAdvancePast (docid);
+    }
+  }
+
+  /**
+   *  Advance the arguments to the specified document, or beyond if it
+   *  doesn't match.  See advanceArgsPast.
+   *  @param docid An internal document id.
+   */
+  protected void advanceArgsTo (int docid) {
+    for (Qry q_i: this.args) {
+      q_i.docIteratorAdvanceTo (docid);
+    }
+  }
+
+  /**
+   *  Initialize the query operator (and its arguments).  A lazy
+   *  operator counts its statistics if its parent needs them, and
+   *  otherwise does no work until its parent asks for a match.
+   *  @param r A retrieval model that guides initialization
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize (RetrievalModel r) throws IOException {
+
+    //  Boolean models don't use df or ctf.
+
+    boolean needsStatistics = this.countOnly &&
+      !(r instanceof RetrievalModelUnrankedBoolean) &&
+      !(r instanceof RetrievalModelRankedBoolean);
+
+    this.isLazy = QryIop.getLazyEvaluation () &&
+      (!needsStatistics || QryIop.getLazyStatistics ());
+
+    if (! this.isLazy) {
+      super.initialize (r);
+      return;
+    }
+
+    for (Qry q_i: this.args) {
+      q_i.initialize (r);
+    }
+
+    this.lazyDocid = Qry.INVALID_DOCID;
+    this.hasStatistics = false;
+
+    if (needsStatistics) {
+      this.countStatistics ();
+    }
+  }
+
+  /**
+   *  Count df, ctf and the largest tf in a pass over the arguments,
+   *  and then move the arguments back to the first document.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void countStatistics () throws IOException {
+    int df = 0;
+    int ctf = 0;
+    int maxTf = 0;
+
+    while (this.docIteratorHasMatch (null)) {
+      df ++;
+      ctf += this.lazyTf;
+      maxTf = Math.max (maxTf, this.lazyTf);
+      this.docIteratorAdvancePast (this.lazyDocid);
+    }
+
+    this.docIteratorReset ();
+
+    this.lazyDf = df;
+    this.lazyCtf = ctf;
+    this.lazyMaxTf = maxTf;
+    this.hasStatistics = true;
+  }
+
+  /**
+   *  Indicates whether this operator finds matches lazily.  It is
+   *  known after initialize.
+   *  @return True if the operator is lazy.
+   */
+  protected boolean isLazy () {
+    return this.isLazy;
+  }
+
+  /**
+   *  Find the next match of a lazy operator.
+   */
+  private void lazyFindMatch () {
+    int tf = (this.args.size () > 0) ? this.nextMatch (this.countOnly) : 0;
+
+    if (tf > 0) {
+      this.lazyDocid = this.matchDocid;
+      this.lazyTf = tf;
+      this.lazyLocIteratorIndex = 0;
+    } else {
+      this.lazyDocid = NO_MORE_DOCS;
+      this.lazyTf = 0;
+    }
+  }
+
+  /**
+   *  Check that a lazy operator has counted its statistics.
+   *  @throws IllegalStateException The statistics were not counted.
+   */
+  private void checkStatistics () {
+    if (! this.hasStatistics) {
+      throw new IllegalStateException ("Statistics of " + this + " were not counted.");
+    }
+  }
+
+  /**
+   *  Check that a lazy operator is keeping locations.
+   *  @throws IllegalStateException Only matches are counted.
+   */
+  private void checkLocations () {
+    if (this.countOnly) {
+      throw new IllegalStateException ("Locations of " + this + " are not kept.");
+    }
+  }
+
+  //  --------------- Lazy iterators ------------------------------------
+
+  protected void docIteratorReset () throws IOException {
+    if (! this.isLazy) {
+      super.docIteratorReset ();
+      return;
+    }
+
+    for (Qry q_i: this.args) {
+      ((QryIop) q_i).docIteratorReset ();
+    }
+    this.lazyDocid = Qry.INVALID_DOCID;
+  }
+
+  /**
+   *  Estimate how many more documents the docIterator will visit.  A
+   *  lazy operator estimates from its arguments:  by default (e.g.,
+   *  SYN) it adds their costs.  Operators that match all of their
+   *  arguments (e.g., NEAR) override this.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The estimated number of documents left.
+   */
+  protected long docIteratorCost (RetrievalModel r) {
+    if (! this.isLazy) {
+      return super.docIteratorCost (r);
+    }
+    return (this.lazyDocid == NO_MORE_DOCS) ? 0 : this.docIteratorCostAny (r);
+  }
+
+  public void docIteratorAdvancePast (int docid) {
+    if (! this.isLazy) {
+      super.docIteratorAdvancePast (docid);
+    } else if ((this.lazyDocid != Qry.INVALID_DOCID) && (this.lazyDocid > docid)) {
+      this.lazyLocIteratorIndex = 0;
+    } else {
+      this.advanceArgsPast (docid);
+      this.lazyDocid = Qry.INVALID_DOCID;
+    }
+  }
+
+  public void docIteratorAdvanceTo (int docid) {
+    if (! this.isLazy) {
+      super.docIteratorAdvanceTo (docid);
+    } else if ((this.lazyDocid != Qry.INVALID_DOCID) && (this.lazyDocid >= docid)) {
+      this.lazyLocIteratorIndex = 0;
+    } else {
+      this.advanceArgsTo (docid);
+      this.lazyDocid = Qry.INVALID_DOCID;
+    }
+  }
+
+  public void docIteratorFinish () {
+    if (! this.isLazy) {
+      super.docIteratorFinish ();
+    } else {
+      this.lazyDocid = NO_MORE_DOCS;
+      this.lazyTf = 0;
+    }
+  }
+
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    if (! this.isLazy) {
+      return super.docIteratorHasMatch (r);
+    }
+    if (this.lazyDocid == Qry.INVALID_DOCID) {
+      this.lazyFindMatch ();
+    }
+    return (this.lazyDocid != NO_MORE_DOCS);
+  }
+
+  public int docIteratorGetMatch () {
+    if (! this.isLazy) {
+      return super.docIteratorGetMatch ();
+    }
+    if (this.lazyDocid == Qry.INVALID_DOCID) {
+      this.lazyFindMatch ();
+    }
+    return this.lazyDocid;
+  }
+
+  public int docIteratorGetMatchTf () {
+    if (! this.isLazy) {
+      return super.docIteratorGetMatchTf ();
+    }
+    return this.lazyTf;
+  }
+
+  public int docIteratorGetBlockMaxTf () {
+    if (! this.isLazy) {
+      return super.docIteratorGetBlockMaxTf ();
+    }
+    return this.getMaxTf ();
+  }
+
+  public int getCtf () {
+    if (! this.isLazy) {
+      return super.getCtf ();
+    }
+    this.checkStatistics ();
+    return this.lazyCtf;
+  }
+
+  public int getDf () {
+    if (! this.isLazy) {
+      return super.getDf ();
+    }
+    this.checkStatistics ();
+    return this.lazyDf;
+  }
+
+  public int getMaxTf () {
+    if (! this.isLazy) {
+      return super.getMaxTf ();
+    }
+    this.checkStatistics ();
+    return this.lazyMaxTf;
+  }
+
+  /**
+   *  Get the full inverted list.  A lazy operator doesn't have one.
+   *  @return The inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   *  @throws IllegalStateException The operator is lazy.
+   */
+  public InvList getInvertedList () throws IOException {
+    if (this.isLazy) {
+      throw new IllegalStateException (this + " finds matches lazily and has no inverted list.");
+    }
+    return super.getInvertedList ();
+  }
+
+  public void locIteratorAdvance () {
+    if (! this.isLazy) {
+      super.locIteratorAdvance ();
+    } else {
+      this.lazyLocIteratorIndex ++;
+    }
+  }
+
+  public void locIteratorAdvancePast (int loc) {
+    if (! this.isLazy) {
+      super.locIteratorAdvancePast (loc);
+      return;
+    }
+
+    this.checkLocations ();
+    while ((this.lazyLocIteratorIndex < this.lazyTf) &&
+           (this.matchLocations[this.lazyLocIteratorIndex] <= loc)) {
+      this.lazyLocIteratorIndex ++;
+    }
+  }
+
+  public void locIteratorFinish () {
+    if (! this.isLazy) {
+      super.locIteratorFinish ();
+    } else {
+      this.lazyLocIteratorIndex = this.lazyTf;
+    }
+  }
+
+  public int locIteratorGetMatch () {
+    if (! this.isLazy) {
+      return super.locIteratorGetMatch ();
+    }
+    this.checkLocations ();
+    return this.matchLocations[this.lazyLocIteratorIndex];
+  }
+
+  public boolean locIteratorHasMatch () {
+    if (! this.isLazy) {
+      return super.locIteratorHasMatch ();
+    }
+    this.checkLocations ();
+    return (this.lazyLocIteratorIndex < this.lazyTf);
+  }
+}
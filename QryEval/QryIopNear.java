@@ -1,84 +1,122 @@
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-
 /**
- *  The NEAR operator for all retrieval models.
+ *  The NEAR operator for all retrieval models.  Matches are found
+ *  lazily or materialized; see QryIopLazy.
  */
-public class QryIopNear extends QryIop {
+public class QryIopNear extends QryIopLazy {
     private final int n;
+
+    /**
+     *  Reusable buffer for the locations of the argument being merged.
+     *  The matches found so far are kept in matchLocations.
+     */
+    private int[] curr = new int[16];
+
     public QryIopNear(int n) {
         super();
         this.n = n;
     }
 
     /**
-     *  Evaluate the query operator; the result is an internal inverted
-     *  list that may be accessed via the internal iterators.
-     *  @throws IOException Error accessing the Lucene index.
+     *  Get the distance argument of the operator, e.g., 8 for #NEAR/8.
+     *  @return The distance.
      */
-    protected void evaluate () throws IOException {
-
-        //  Create an empty inverted list.  If there are no query arguments,
-        //  that's the final result.
+    public int getDistance() {
+        return this.n;
+    }
 
-        this.invertedList = new InvList (this.getField());
+    /**
+     *  Indicates whether the query matches only documents that all of
+     *  its arguments match, which a NEAR always does.
+     *  @param r The retrieval model that determines what is a match
+     *  @return True.
+     */
+    public boolean docIteratorMatchesAll(RetrievalModel r) {
+        return true;
+    }
 
-        if (args.size () == 0) {
-            return;
+    /**
+     *  Estimate how many more documents the docIterator will visit.  A
+     *  lazy NEAR can't match more documents than its rarest argument.
+     *  @param r The retrieval model that determines what is a match
+     *  @return The estimated number of documents left.
+     */
+    protected long docIteratorCost(RetrievalModel r) {
+        if (this.isLazy()) {
+            return Math.min(super.docIteratorCost(r), this.docIteratorCostAll(r));
         }
+        return super.docIteratorCost(r);
+    }
 
-        while(true){
-            //ecah round add one doc id
-            if(!this.docIteratorHasMatchAll(null)){
-                break;
+    /**
+     *  Find the next document that matches, starting from the documents
+     *  that the arguments point to now.
+     *  @param countOnly True if only the number of matches is needed.
+     *  @return The number of matches, or 0 if there are no more matches.
+     */
+    protected int nextMatch(boolean countOnly) {
+        while(this.docIteratorHasMatchAll(null)){
+            int docId = this.args.get(0).docIteratorGetMatch();
+            int matches = this.matchLocations(countOnly);
+
+            if(matches > 0){
+                this.matchDocid = docId;
+                return matches;
             }
 
-            QryIop qi0 = (QryIop)this.args.get(0);
-            int docId = qi0.docIteratorGetMatch();
-
-            if(docId == Qry.INVALID_DOCID) break;
-
+            for(Qry qi: this.args){
+                qi.docIteratorAdvancePast(docId);
+            }
+        }
 
-            //now get a doc id matches all queries
-            //then go deep into each pair of two doc's postings
-            List<Integer> prev = ((QryIop)this.args.get(0)).docIteratorGetMatchPosting().positions;
+        return 0;
+    }
 
-            for(int i = 1; i < this.args.size(); i++){
-//                QryIop qii = (QryIop)this.args.get(i);
-                List<Integer> curr = ((QryIop)this.args.get(i)).docIteratorGetMatchPosting().positions;
-                List<Integer> newprev = new ArrayList<>();
-                int ptr_prev = 0;
-                int ptr_curr = 0;
-                while(ptr_prev < prev.size() && ptr_curr < curr.size()){
-                    if(prev.get(ptr_prev) > curr.get(ptr_curr)){//prev > curr
-                        ptr_curr++;
-                        continue;
-                    } else if (curr.get(ptr_curr) - prev.get(ptr_prev) <= n){//n => curr - prev >0
-                        newprev.add(curr.get(ptr_curr));
-                        ptr_prev++;
-                        ptr_curr++;
-                        continue;
-                    } else {//prev < curr - n
-                        ptr_prev++;
-                        continue;
+    /**
+     *  Find the NEAR matches in the document that all of the arguments
+     *  point to now.  The locations of the matches are left in
+     *  matchLocations, unless countOnly is true.
+     *  @param countOnly True if only the number of matches is needed.
+     *  @return The number of matches.
+     */
+    private int matchLocations(boolean countOnly) {
+
+        //now get a doc id matches all queries
+        //then go deep into each pair of two doc's postings
+        QryIop q0 = (QryIop)this.args.get(0);
+        this.matchLocations = grow(this.matchLocations, q0.docIteratorGetMatchTf());
+        int prevSize = copyLocations(q0, this.matchLocations, 0);
+        int last = this.args.size() - 1;
+
+        for(int i = 1; i < this.args.size() && prevSize > 0; i++){
+            QryIop qi = (QryIop)this.args.get(i);
+            this.curr = grow(this.curr, qi.docIteratorGetMatchTf());
+            int currSize = copyLocations(qi, this.curr, 0);
+            int[] prev = this.matchLocations;
+            int[] curr = this.curr;
+            boolean keep = !(countOnly && i == last);
+            int newSize = 0;
+            int ptr_prev = 0;
+            int ptr_curr = 0;
+            //matches are written over prev, which is safe because
+            //newSize never passes ptr_prev
+            while(ptr_prev < prevSize && ptr_curr < currSize){
+                if(prev[ptr_prev] > curr[ptr_curr]){//prev > curr
+                    ptr_curr++;
+                } else if (curr[ptr_curr] - prev[ptr_prev] <= n){//n => curr - prev >0
+                    if(keep){
+                        prev[newSize] = curr[ptr_curr];
                     }
+                    newSize++;
+                    ptr_prev++;
+                    ptr_curr++;
+                } else {//prev < curr - n
+                    ptr_prev++;
                 }
-                prev = newprev;
-            }
-
-            if(prev.size() > 0){
-                Collections.sort (prev);
-                this.invertedList.appendPosting(docId, prev);
-            }
-
-            for(Qry qi: this.args){
-                qi.docIteratorAdvancePast(docId);
             }
+            prevSize = newSize;
         }
 
-
+        return prevSize;
     }
 
 }
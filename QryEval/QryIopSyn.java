@@ -5,75 +5,285 @@ import java.io.*;
 import java.util.*;
 
 /**
- *  The SYN operator for all retrieval models.
+ *  The SYN operator for all retrieval models.  Matches are found
+ *  lazily or materialized; see QryIopLazy.
+ *  <p>
+ *  The arguments that have documents left are kept in a heap ordered
+ *  by their current docids, so finding the next document and
+ *  advancing past it costs O(log k) per argument that is moved, not
+ *  O(k) for k arguments.  The locations of a document are the sorted
+ *  union of the arguments' locations.  Each argument's locations are
+ *  already sorted, so they are merged, not sorted.  The tf of a
+ *  document is the sum of the arguments' tfs, so a count-only SYN
+ *  (e.g., under a SCORE operator) never reads locations, and its
+ *  statistics can be counted with a pass over docids and tfs.
+ *  </p>
  */
-public class QryIopSyn extends QryIop {
+public class QryIopSyn extends QryIopLazy {
 
   /**
-   *  Evaluate the query operator; the result is an internal inverted
-   *  list that may be accessed via the internal iterators.
-   *  @throws IOException Error accessing the Lucene index.
+   *  A heap of the indexes of the arguments that have documents left,
+   *  ordered by their current docids (argDocids) and then by index.
+   *  It is rebuilt when heapValid is false.
    */
-  protected void evaluate () throws IOException {
+  private int[] heap = new int[0];
+  private int heapSize = 0;
+  private int[] argDocids = new int[0];
+  private boolean heapValid = false;
 
-    //  Create an empty inverted list.  If there are no query arguments,
-    //  that's the final result.
-    
-    this.invertedList = new InvList (this.getField());
+  /**
+   *  Reusable buffers: a search stack, the arguments that match the
+   *  current document, the start of each argument's run of locations,
+   *  and a second location buffer for merging.
+   */
+  private int[] searchStack = new int[0];
+  private int[] matching = new int[0];
+  private int[] runStarts = new int[0];
+  private int[] mergeBuffer = new int[16];
 
-    if (args.size () == 0) {
-      return;
+  /**
+   *  Find the next document that matches, starting from the documents
+   *  that the arguments point to now.
+   *  @param countOnly True if only the number of matches is needed.
+   *  @return The number of matches, or 0 if there are no more matches.
+   */
+  protected int nextMatch (boolean countOnly) {
+
+    if (! this.heapValid) {
+      this.buildHeap ();
     }
-    //wojiade!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!???????????
-//    ScoreList scoreList = new ScoreList();
-//    int idToKeepTrack = Integer.MIN_VALUE;
-//    for (Qry q_i: this.args) {
-//
-//    }
 
+    if (this.heapSize == 0) {
+      return 0;				// All docids have been processed.  Done.
+    }
 
-    //  Each pass of the loop adds 1 document to result inverted list
-    //  until all of the argument inverted lists are depleted.
+    //  The arguments that match the minimum docid are at the top of the
+    //  heap.  Gather them with a search that stops at larger docids.
 
-    while (true) {
+    int minDocId = this.argDocids[this.heap[0]];
+    int numMatching = 0;
+    int top = 0;
+
+    this.searchStack[top++] = 0;
+
+    while (top > 0) {
+      int node = this.searchStack[--top];
+
+      if ((node < this.heapSize) && (this.argDocids[this.heap[node]] == minDocId)) {
+        this.matching[numMatching++] = this.heap[node];
+        this.searchStack[top++] = 2 * node + 1;
+        this.searchStack[top++] = 2 * node + 2;
+      }
+    }
+
+    //  The tf is the sum of the arguments' tfs.
+    //  Note:  This implementation assumes that a location will not appear
+    //  in two or more arguments.  #SYN (apple apple) would break it.
+
+    int tf = 0;
+
+    for (int m = 0; m < numMatching; m++) {
+      tf += ((QryIop) this.args.get (this.matching[m])).docIteratorGetMatchTf ();
+    }
+
+    //  Copy each argument's run of locations, and then merge the runs.
+
+    if (! countOnly) {
+      this.matchLocations = grow (this.matchLocations, tf);
+      int size = 0;
+
+      for (int m = 0; m < numMatching; m++) {
+        this.runStarts[m] = size;
+        size += copyLocations ((QryIop) this.args.get (this.matching[m]),
+                               this.matchLocations, size);
+      }
+      this.runStarts[numMatching] = size;
+
+      this.mergeRuns (this.runStarts, numMatching);
+    }
 
-      //  Find the minimum next document id.  If there is none, we're done.
+    this.matchDocid = minDocId;
+    return tf;
+  }
+
+  /**
+   *  Merge sorted runs of locations in matchLocations into one sorted
+   *  run.  Adjacent runs are merged pairwise, so the cost is
+   *  O(tf log runs).
+   *  @param starts The start of each run, and the end of the last one.
+   *  @param runs The number of runs.
+   */
+  private void mergeRuns (int[] starts, int runs) {
+
+    if (runs < 2) {
+      return;
+    }
+
+    int tf = starts[runs];
+    int[] from = this.matchLocations;
+    int[] to = grow (this.mergeBuffer, tf);
+
+    while (runs > 1) {
+      int merged = 0;
 
-      int minDocId = Qry.INVALID_DOCID;
+      for (int r = 0; r < runs; r += 2) {
+        int lo = starts[r];
+        int mid = (r + 1 < runs) ? starts[r + 1] : starts[runs];
+        int hi = (r + 2 < runs) ? starts[r + 2] : starts[runs];
+        int i = lo;
+        int j = mid;
+        int out = lo;
 
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null)) {
-          int q_iDocid = q_i.docIteratorGetMatch ();
-          
-          if ((minDocId > q_iDocid) ||
-              (minDocId == Qry.INVALID_DOCID)) {
-            minDocId = q_iDocid;
-          }
+        while ((i < mid) && (j < hi)) {
+          to[out++] = (from[j] < from[i]) ? from[j++] : from[i++];
         }
+        while (i < mid) {
+          to[out++] = from[i++];
+        }
+        while (j < hi) {
+          to[out++] = from[j++];
+        }
+
+        starts[merged++] = lo;
+      }
+
+      starts[merged] = tf;
+      runs = merged;
+
+      int[] swap = from;
+      from = to;
+      to = swap;
+    }
+
+    this.matchLocations = from;
+    this.mergeBuffer = to;
+  }
+
+  /**
+   *  Put every argument that has documents left in the heap.
+   */
+  private void buildHeap () {
+    int k = this.args.size ();
+
+    if (this.heap.length != k) {
+      this.heap = new int[k];
+      this.argDocids = new int[k];
+      this.searchStack = new int[2 * k + 1];
+      this.matching = new int[k];
+      this.runStarts = new int[k + 1];
+    }
+
+    this.heapSize = 0;
+
+    for (int i = 0; i < k; i++) {
+      Qry q_i = this.args.get (i);
+
+      if (q_i.docIteratorHasMatch (null)) {
+        this.argDocids[i] = q_i.docIteratorGetMatch ();
+        this.heap[this.heapSize++] = i;
       }
+    }
+
+    for (int i = this.heapSize / 2 - 1; i >= 0; i--) {
+      this.siftDown (i);
+    }
 
-      if (minDocId == Qry.INVALID_DOCID)
-        break;				// All docids have been processed.  Done.
-      
-      //  Create a new posting that is the union of the posting lists
-      //  that match the minDocId.  Save it.
-      //  Note:  This implementation assumes that a location will not appear
-      //  in two or more arguments.  #SYN (apple apple) would break it.
-
-      List<Integer> positions = new ArrayList<Integer>();
-
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null) &&
-            (q_i.docIteratorGetMatch () == minDocId)) {
-          Vector<Integer> locations_i = ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-          positions.addAll (locations_i);
-          q_i.docIteratorAdvancePast (minDocId);
-       }
+    this.heapValid = true;
+  }
+
+  /**
+   *  The argument at the top of the heap has moved.  Update its docid
+   *  and restore the heap, removing the argument if it has no
+   *  documents left.
+   */
+  private void updateTop () {
+    Qry q = this.args.get (this.heap[0]);
+
+    if (q.docIteratorHasMatch (null)) {
+      this.argDocids[this.heap[0]] = q.docIteratorGetMatch ();
+    } else {
+      this.heap[0] = this.heap[--this.heapSize];
+    }
+
+    if (this.heapSize > 0) {
+      this.siftDown (0);
+    }
+  }
+
+  private void siftDown (int i) {
+    int arg = this.heap[i];
+
+    while (true) {
+      int child = 2 * i + 1;
+
+      if (child >= this.heapSize) {
+        break;
+      }
+      if ((child + 1 < this.heapSize) &&
+          this.before (this.heap[child + 1], this.heap[child])) {
+        child ++;
+      }
+      if (! this.before (this.heap[child], arg)) {
+        break;
       }
+      this.heap[i] = this.heap[child];
+      i = child;
+    }
+
+    this.heap[i] = arg;
+  }
+
+  /**
+   *  Indicates whether argument i should be above argument j in the heap.
+   */
+  private boolean before (int i, int j) {
+    return (this.argDocids[i] < this.argDocids[j]) ||
+      ((this.argDocids[i] == this.argDocids[j]) && (i < j));
+  }
+
+  /**
+   *  Advance the arguments beyond the specified document.  Only the
+   *  arguments at or before the document are moved.
+   *  @param docid An internal document id.
+   */
+  protected void advanceArgsPast (int docid) {
+
+    if (! this.heapValid) {
+      super.advanceArgsPast (docid);
+      return;
+    }
 
-      Collections.sort (positions);
-      this.invertedList.appendPosting (minDocId, positions);
+    while ((this.heapSize > 0) && (this.argDocids[this.heap[0]] <= docid)) {
+      this.args.get (this.heap[0]).docIteratorAdvancePast (docid);
+      this.updateTop ();
     }
   }
 
+  /**
+   *  Advance the arguments to the specified document, or beyond if it
+   *  doesn't match.  Only the arguments before the document are moved.
+   *  @param docid An internal document id.
+   */
+  protected void advanceArgsTo (int docid) {
+
+    if (! this.heapValid) {
+      super.advanceArgsTo (docid);
+      return;
+    }
+
+    while ((this.heapSize > 0) && (this.argDocids[this.heap[0]] < docid)) {
+      this.args.get (this.heap[0]).docIteratorAdvanceTo (docid);
+      this.updateTop ();
+    }
+  }
+
+  protected void docIteratorReset () throws IOException {
+    super.docIteratorReset ();
+    this.heapValid = false;
+  }
+
+  public void initialize (RetrievalModel r) throws IOException {
+    this.heapValid = false;
+    super.initialize (r);
+  }
 }
@@ -1,6 +1,12 @@
 /**
  *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
  */
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
 import java.io.IOException;
 
 /**
@@ -9,12 +15,66 @@ import java.io.IOException;
  *  "#AND (apple pie).  Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
- *
+ *  <p>
+ *  By default the TERM operator does not materialize its inverted
+ *  list.  Its docIterator is a thin wrapper around a Lucene
+ *  PostingsEnum, so docIteratorAdvanceTo uses Lucene's skip data and
+ *  postings that the query never visits are never decoded.  Locations
+ *  are decoded only when a parent operator uses the locIterator.  The
+ *  df and ctf statistics come from the index, so they are available
+ *  before iteration begins.  getInvertedList provides a materialized
+ *  copy of the list for callers that need random access.
+ *  </p>
  */
 public class QryIopTerm extends QryIop {
 
+  /**
+   *  Whether TERM operators stream postings from Lucene (the default)
+   *  or materialize their inverted lists when they are initialized.
+   */
+  private static boolean streaming = true;
+
   private String term;
 
+  /**
+   *  The Lucene postings of a streaming TERM operator, or null if the
+   *  term does not occur in the field.
+   */
+  private PostingsEnum postings = null;
+
+  /**
+   *  True if this operator is streaming postings from Lucene.
+   */
+  private boolean isStreaming = false;
+
+  /**
+   *  The document that the streaming docIterator points to now.
+   */
+  private int streamDocid = DocIdSetIterator.NO_MORE_DOCS;
+
+  /**
+   *  Statistics of a streaming TERM operator.
+   */
+  private int streamDf = 0;
+  private int streamCtf = 0;
+
+  /**
+   *  The df and ctf of the term from the index's term statistics (see
+   *  TermStats), or -1 if Lucene's statistics are used.  A pruned
+   *  index has fewer postings than the full index, but the statistics
+   *  of the full index.
+   */
+  private int termDf = -1;
+  private int termCtf = -1;
+
+  /**
+   *  Locations of the current document, decoded on first use.  The
+   *  buffer is reused from document to document.
+   */
+  private int[] streamLocations = new int[16];
+  private int streamLocationsDocid = Qry.INVALID_DOCID;
+  private int streamLocIteratorIndex = 0;
+
   /**
    *  The term is assumed to match the body field.
    *  @param termString A term string.
@@ -35,12 +95,333 @@ public class QryIopTerm extends QryIop {
   }
 
   /**
-   *  Evaluate the query operator; the result is an internal inverted
-   *  list that may be accessed via the internal iterators.
+   *  Choose whether TERM operators stream postings from Lucene or
+   *  materialize their inverted lists.  This affects query operators
+   *  that are initialized after the call.
+   *  @param stream True to stream postings, false to materialize them.
+   */
+  public static void setStreaming (boolean stream) {
+    QryIopTerm.streaming = stream;
+  }
+
+  /**
+   *  Evaluate the query operator.  A streaming operator just positions
+   *  a Lucene PostingsEnum on the first posting; otherwise the result
+   *  is an internal inverted list that may be accessed via the
+   *  internal iterators.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(term.toLowerCase(), field);
+
+    String termString = term.toLowerCase();
+    InvListCache cache = InvListCache.getInstance ();
+
+    if (Idx.hasTermStats (this.field)) {
+      this.termDf = Idx.getDocFreq (this.field, termString);
+      this.termCtf = (int) Idx.getTotalTermFreq (this.field, termString);
+    } else {
+      this.termDf = -1;
+      this.termCtf = -1;
+    }
+
+    //  A cached list is always used.
+
+    if (cache != null) {
+      InvList list = cache.get (Idx.INDEXREADER, this.field, termString);
+
+      if (list != null) {
+        this.isStreaming = false;
+        this.invertedList = list;
+        return;
+      }
+    }
+
+    this.isStreaming = QryIopTerm.streaming;
+
+    if (! this.isStreaming) {
+      this.invertedList = new InvList(termString, field);
+
+      if (cache != null) {
+        this.invertedList =
+          cache.put (Idx.INDEXREADER, this.field, termString, this.invertedList);
+      }
+      return;
+    }
+
+    BytesRef termBytes = new BytesRef (termString);
+    Term t = new Term (this.field, termBytes);
+
+    this.streamDf = Idx.INDEXREADER.docFreq (t);
+
+    //  If the cache is enabled, lists that fit in it are materialized
+    //  and cached instead of being streamed.
+
+    if ((cache != null) && (this.streamDf > 0) &&
+        cache.fits (4L * (3L * this.streamDf + 1 + Idx.INDEXREADER.totalTermFreq (t)))) {
+      this.isStreaming = false;
+      this.invertedList = cache.put (Idx.INDEXREADER, this.field, termString,
+                                     new InvList (termString, field));
+      return;
+    }
+
+    this.streamDocid = DocIdSetIterator.NO_MORE_DOCS;
+    this.streamLocationsDocid = Qry.INVALID_DOCID;
+
+    if (this.streamDf < 1) {
+      this.streamDf = 0;
+      this.postings = null;
+      return;
+    }
+
+    this.streamCtf = (int) Idx.INDEXREADER.totalTermFreq (t);
+    this.postings =
+      MultiFields.getTermPositionsEnum (Idx.INDEXREADER, this.field, termBytes);
+    this.streamDocid = this.postings.nextDoc ();
+  }
+
+  /**
+   *  Get a materialized copy of the inverted list.  A streaming
+   *  operator reads a separate copy from the index, so its own
+   *  iterators are not disturbed.
+   *  @return The inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList getInvertedList () throws IOException {
+    if (this.isStreaming) {
+      return new InvList (term.toLowerCase(), field);
+    }
+    return super.getInvertedList ();
+  }
+
+  //  --------------- Streaming iterators ------------------------------
+
+  /**
+   *  Estimate how many more documents the docIterator will visit.
+   *  Lucene doesn't say how much of a streaming list is left, so the
+   *  postings are assumed to be spread evenly over the docids.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The estimated number of documents left.
+   */
+  protected long docIteratorCost (RetrievalModel r) {
+    if (! this.isStreaming) {
+      return super.docIteratorCost (r);
+    }
+    if (this.streamDocid == DocIdSetIterator.NO_MORE_DOCS) {
+      return 0;
+    }
+
+    long maxDoc = Idx.INDEXREADER.maxDoc ();
+    return this.streamDf * (maxDoc - this.streamDocid) / maxDoc;
+  }
+
+  /**
+   *  Move the iterators back to the first document.  A streaming
+   *  operator gets a new PostingsEnum from the index.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void docIteratorReset () throws IOException {
+    if (! this.isStreaming) {
+      super.docIteratorReset ();
+      return;
+    }
+
+    this.streamDocid = DocIdSetIterator.NO_MORE_DOCS;
+    this.streamLocationsDocid = Qry.INVALID_DOCID;
+    this.streamLocIteratorIndex = 0;
+
+    if (this.postings != null) {
+      this.postings =
+        MultiFields.getTermPositionsEnum (Idx.INDEXREADER, this.field,
+                                          new BytesRef (term.toLowerCase()));
+      this.streamDocid = this.postings.nextDoc ();
+    }
+  }
+
+  /**
+   *  Move the streaming docIterator.
+   *  @param target The docid to advance to (or beyond).
+   *  @throws IllegalStateException Error reading the Lucene index.
+   */
+  private void streamAdvance (int target) {
+    try {
+      if (target == this.streamDocid + 1) {
+        this.streamDocid = this.postings.nextDoc ();
+      } else {
+        this.streamDocid = this.postings.advance (target);
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error reading postings for " + this, ex);
+    }
+    this.streamLocIteratorIndex = 0;
+  }
+
+  /**
+   *  Decode the locations of the current document, if that has not
+   *  already been done.
+   *  @throws IllegalStateException Error reading the Lucene index.
+   */
+  private void streamDecodeLocations () {
+
+    if (this.streamLocationsDocid == this.streamDocid) {
+      return;
+    }
+
+    try {
+      int tf = this.postings.freq ();
+
+      if (tf > this.streamLocations.length) {
+        this.streamLocations = new int[Math.max (tf, 2 * this.streamLocations.length)];
+      }
+
+      for (int j = 0; j < tf; j++) {
+        this.streamLocations[j] = this.postings.nextPosition ();
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error reading postings for " + this, ex);
+    }
+
+    this.streamLocationsDocid = this.streamDocid;
+  }
+
+  public void docIteratorAdvancePast (int docid) {
+    if (! this.isStreaming) {
+      super.docIteratorAdvancePast (docid);
+    } else if (this.streamDocid <= docid) {
+      this.streamAdvance (docid + 1);
+    } else {
+      this.streamLocIteratorIndex = 0;
+    }
+  }
+
+  public void docIteratorAdvanceTo (int docid) {
+    if (! this.isStreaming) {
+      super.docIteratorAdvanceTo (docid);
+    } else if (this.streamDocid < docid) {
+      this.streamAdvance (docid);
+    } else {
+      this.streamLocIteratorIndex = 0;
+    }
+  }
+
+  public void docIteratorFinish () {
+    if (! this.isStreaming) {
+      super.docIteratorFinish ();
+    } else {
+      this.streamDocid = DocIdSetIterator.NO_MORE_DOCS;
+    }
+  }
+
+  public int docIteratorGetMatch () {
+    if (! this.isStreaming) {
+      return super.docIteratorGetMatch ();
+    }
+    return this.streamDocid;
+  }
+
+  public int docIteratorGetMatchTf () {
+    if (! this.isStreaming) {
+      return super.docIteratorGetMatchTf ();
+    }
+    try {
+      return this.postings.freq ();
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error reading postings for " + this, ex);
+    }
+  }
+
+  public int docIteratorGetBlockMaxTf () {
+    if (! this.isStreaming) {
+      return super.docIteratorGetBlockMaxTf ();
+    }
+    return this.getMaxTf ();
+  }
+
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    if (! this.isStreaming) {
+      return super.docIteratorHasMatch (r);
+    }
+    return (this.streamDocid != DocIdSetIterator.NO_MORE_DOCS);
+  }
+
+  public int getCtf () {
+    if (this.termCtf >= 0) {
+      return this.termCtf;
+    }
+    return (this.isStreaming) ? this.streamCtf : super.getCtf ();
+  }
+
+  /**
+   *  Get an upper bound on the term frequency of any document.  A
+   *  streaming operator has not seen its postings, but every other
+   *  document that contains the term contributes at least 1 to ctf.
+   *  @return An upper bound on the largest tf.
+   */
+  public int getMaxTf () {
+    if (! this.isStreaming) {
+      return super.getMaxTf ();
+    }
+    return Math.max (0, this.streamCtf - this.streamDf + 1);
+  }
+
+  public int getDf () {
+    if (this.termDf >= 0) {
+      return this.termDf;
+    }
+    return (this.isStreaming) ? this.streamDf : super.getDf ();
+  }
+
+  public void locIteratorAdvance () {
+    if (! this.isStreaming) {
+      super.locIteratorAdvance ();
+    } else {
+      this.streamLocIteratorIndex ++;
+    }
+  }
+
+  public void locIteratorAdvancePast (int loc) {
+    if (! this.isStreaming) {
+      super.locIteratorAdvancePast (loc);
+      return;
+    }
+
+    this.streamDecodeLocations ();
+    int tf = this.docIteratorGetMatchTf ();
+
+    while ((this.streamLocIteratorIndex < tf) &&
+           (this.streamLocations[this.streamLocIteratorIndex] <= loc)) {
+      this.streamLocIteratorIndex ++;
+    }
+  }
+
+  public void locIteratorFinish () {
+    if (! this.isStreaming) {
+      super.locIteratorFinish ();
+    } else {
+      this.streamLocIteratorIndex = this.docIteratorGetMatchTf ();
+    }
+  }
+
+  public int locIteratorGetMatch () {
+    if (! this.isStreaming) {
+      return super.locIteratorGetMatch ();
+    }
+    this.streamDecodeLocations ();
+    return this.streamLocations[this.streamLocIteratorIndex];
+  }
+
+  public boolean locIteratorHasMatch () {
+    if (! this.isStreaming) {
+      return super.locIteratorHasMatch ();
+    }
+    return (this.streamLocIteratorIndex < this.docIteratorGetMatchTf ());
+  }
+
+  /**
+   *  Get the term string.
+   *  @return The term string.
+   */
+  public String getTerm () {
+    return this.term;
   }
 
   /**
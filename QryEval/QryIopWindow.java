@@ -1,119 +1,206 @@
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-
-public class QryIopWindow extends QryIop {
+/**
+ *  The WINDOW operator for all retrieval models.  Matches are found
+ *  lazily or materialized; see QryIopLazy.
+ *  <p>
+ *  In a document that contains every argument, each argument has a
+ *  current location.  If the largest and smallest current locations
+ *  are less than distance apart, the largest one is a match, and every
+ *  argument advances to its next location.  Otherwise the argument
+ *  with the smallest location (the first such argument, if several
+ *  share it) advances.  The arguments are kept in a heap ordered by
+ *  current location, so each step costs O(log k) for k arguments.
+ *  Matches are found in increasing order, so they need no sort.
+ *  </p>
+ */
+public class QryIopWindow extends QryIopLazy {
     private final int distance;
 
+    /**
+     *  Reusable buffers: the locations of each argument in the current
+     *  document, how many there are, and which one is current.
+     */
+    private int[][] argLocations = new int[0][];
+    private int[] argSizes = new int[0];
+    private int[] argPtrs = new int[0];
+
+    /**
+     *  A heap of argument indexes, ordered by current location and then
+     *  by index.
+     */
+    private int[] heap = new int[0];
+
     public QryIopWindow(int distance) {
         this.distance = distance;
     }
 
-    @Override
-    protected void evaluate() throws IOException {
-        //window's parameter are inverted lists
+    /**
+     *  Get the distance argument of the operator, e.g., 8 for #WINDOW/8.
+     *  @return The distance.
+     */
+    public int getDistance() {
+        return this.distance;
+    }
 
-        this.invertedList = new InvList(this.getField());
+    /**
+     *  Indicates whether the query matches only documents that all of
+     *  its arguments match, which a WINDOW always does.
+     *  @param r The retrieval model that determines what is a match
+     *  @return True.
+     */
+    public boolean docIteratorMatchesAll(RetrievalModel r) {
+        return true;
+    }
 
-        if (args.size() == 0) {
-            return;
+    /**
+     *  Estimate how many more documents the docIterator will visit.  A
+     *  lazy WINDOW can't match more documents than its rarest argument.
+     *  @param r The retrieval model that determines what is a match
+     *  @return The estimated number of documents left.
+     */
+    protected long docIteratorCost(RetrievalModel r) {
+        if (this.isLazy()) {
+            return Math.min(super.docIteratorCost(r), this.docIteratorCostAll(r));
         }
+        return super.docIteratorCost(r);
+    }
 
-        while (true) {
-            //each round in this loop will add a doc into the inverted list
-            if (!this.docIteratorHasMatchAll(null)) {
-                break;
+    /**
+     *  Find the next document that matches, starting from the documents
+     *  that the arguments point to now.
+     *  @param countOnly True if only the number of matches is needed.
+     *  @return The number of matches, or 0 if there are no more matches.
+     */
+    protected int nextMatch(boolean countOnly) {
+        while (this.docIteratorHasMatchAll(null)) {
+            int docId = this.args.get(0).docIteratorGetMatch();
+            int matches = this.matchLocations(countOnly);
+
+            if (matches > 0) {
+                this.matchDocid = docId;
+                return matches;
             }
 
-            QryIop qi0 = (QryIop) this.args.get(0);
-            int docId = qi0.docIteratorGetMatch();
-
-            if (docId == Qry.INVALID_DOCID) break;
-
-            ArrayList<Integer> locForThisDoc = new ArrayList<>();
-
-            //go into each parameter's loc posting
-            //check whether any of them reach the end
-            //
-            boolean allParaHasMatch = true;
-            List<Integer> locations = new ArrayList<>();
-            int[] location = new int[this.args.size()];
-            while(allParaHasMatch){
-                int min = Integer.MAX_VALUE;
-                int max = -1;
-                for(int i = 0; i < this.args.size(); i++){
-                    QryIop qi = (QryIop)this.args.get(i);
-                    if(!qi.locIteratorHasMatch()){
-                        allParaHasMatch = false;
-                        break;
-                    }else{
-                        location[i] = qi.locIteratorGetMatch();
-                        if(min == Integer.MAX_VALUE || qi.locIteratorGetMatch() < location[min]) min = i;
-                        if(max == -1 || qi.locIteratorGetMatch() > location[max]) max = i;
-                    }
+            for (Qry qi : this.args) {
+                qi.docIteratorAdvancePast(docId);
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     *  Find the WINDOW matches in the document that all of the
+     *  arguments point to now.  The locations of the matches are left
+     *  in matchLocations, unless countOnly is true.
+     *  @param countOnly True if only the number of matches is needed.
+     *  @return The number of matches.
+     */
+    private int matchLocations(boolean countOnly) {
+        int k = this.args.size();
+
+        if (this.heap.length != k) {
+            this.argLocations = new int[k][16];
+            this.argSizes = new int[k];
+            this.argPtrs = new int[k];
+            this.heap = new int[k];
+        }
+
+        //  Copy each argument's locations.  Every argument has at least one.
+
+        for (int i = 0; i < k; i++) {
+            QryIop qi = (QryIop) this.args.get(i);
+            this.argLocations[i] = grow(this.argLocations[i], qi.docIteratorGetMatchTf());
+            this.argSizes[i] = copyLocations(qi, this.argLocations[i], 0);
+            this.argPtrs[i] = 0;
+        }
+
+        int matches = 0;
+        int max = this.buildHeap();
+
+        while (true) {
+            int min = this.heap[0];
+
+            if (max - this.location(min) < this.distance) {
+                //if match, add max and advance all to next one
+                if (! countOnly) {
+                    this.matchLocations = grow(this.matchLocations, matches + 1);
+                    this.matchLocations[matches] = max;
                 }
-                if(!allParaHasMatch) break;
-                //know every one has a match locid
-                if(location[max] - location[min] < this.distance){
-                    //if match, add max and advance all to next one
-                    locForThisDoc.add(location[max]);
-                    for(Qry q: this.args){
-                        ((QryIop)q).locIteratorAdvance();
+                matches++;
+
+                for (int i = 0; i < k; i++) {
+                    if (++this.argPtrs[i] == this.argSizes[i]) {
+                        return matches;
                     }
-                } else {
-                    //otherwise, advance min and redo everything
-                    ((QryIop)this.args.get(min)).locIteratorAdvance();
                 }
+                max = this.buildHeap();
+            } else {
+                //otherwise, advance min
+                if (++this.argPtrs[min] == this.argSizes[min]) {
+                    return matches;
+                }
+                max = Math.max(max, this.location(min));
+                this.siftDown(0);
             }
-            if (locForThisDoc.size() > 0) {
-                Collections.sort(locForThisDoc);
-                this.invertedList.appendPosting(docId, locForThisDoc);
-            }
+        }
+    }
 
-            for (Qry qi : this.args) {
-                qi.docIteratorAdvancePast(docId);
-            }
+    /**
+     *  The current location of an argument.
+     */
+    private int location(int i) {
+        return this.argLocations[i][this.argPtrs[i]];
+    }
 
+    /**
+     *  Indicates whether argument i should be above argument j in the heap.
+     */
+    private boolean before(int i, int j) {
+        int li = this.location(i);
+        int lj = this.location(j);
+        return (li < lj) || ((li == lj) && (i < j));
+    }
 
+    /**
+     *  Put every argument in the heap.
+     *  @return The largest current location.
+     */
+    private int buildHeap() {
+        int k = this.heap.length;
+        int max = Integer.MIN_VALUE;
+
+        for (int i = 0; i < k; i++) {
+            this.heap[i] = i;
+            max = Math.max(max, this.location(i));
+        }
 
+        for (int i = k / 2 - 1; i >= 0; i--) {
+            this.siftDown(i);
         }
 
+        return max;
+    }
+
+    private void siftDown(int i) {
+        int k = this.heap.length;
+        int arg = this.heap[i];
+
+        while (true) {
+            int child = 2 * i + 1;
+
+            if (child >= k) {
+                break;
+            }
+            if ((child + 1 < k) && this.before(this.heap[child + 1], this.heap[child])) {
+                child++;
+            }
+            if (! this.before(this.heap[child], arg)) {
+                break;
+            }
+            this.heap[i] = this.heap[child];
+            i = child;
+        }
 
-//            //now get a doc id matches all queries
-//            //then go deep into each pair of two doc's postings
-//            List<Integer> prev = ((QryIop) this.args.get(0)).docIteratorGetMatchPosting().positions;
-//
-//            for (int i = 1; i < this.args.size(); i++) {
-////                QryIop qii = (QryIop)this.args.get(i);
-//                List<Integer> curr = ((QryIop) this.args.get(i)).docIteratorGetMatchPosting().positions;
-//                List<Integer> newprev = new ArrayList<>();
-//                int ptr_prev = 0;
-//                int ptr_curr = 0;
-//                while (ptr_prev < prev.size() && ptr_curr < curr.size()) {
-//                    if (Math.abs(ptr_curr - ptr_prev) <= distance) {
-//                        newprev.add(Math.max(ptr_curr, ptr_prev));
-//                        ptr_curr++;
-//                        ptr_prev++;
-//                    } else {
-//                        if (ptr_curr < ptr_prev) {
-//                            ptr_curr++;
-//                        } else {
-//                            ptr_prev++;
-//                        }
-//                    }
-//                }
-//                prev = newprev;
-//            }
-//
-//            if (prev.size() > 0) {
-//                Collections.sort(prev);
-//                this.invertedList.appendPosting(docId, prev);
-//            }
-//
-//            for (Qry qi : this.args) {
-//                qi.docIteratorAdvancePast(docId);
-//            }
-//        }
+        this.heap[i] = arg;
     }
 }
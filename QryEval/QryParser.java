@@ -9,6 +9,9 @@ import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 
@@ -33,6 +36,12 @@ import java.util.List;
  *  </ul>
  *  <p>
  *  Add new document fields to the parser by modifying createTerms.
+ *  </p><p>
+ *  getQuery (queryString, r) also rewrites the query tree for a
+ *  retrieval model, using index statistics; see
+ *  optimizeQuery (q, r).  estimateDf and estimateCost give the
+ *  estimates that the rewriter uses, and explainQuery shows them for
+ *  each node of a query tree.
  *  </p>
  */
 
@@ -43,6 +52,14 @@ public class QryParser {
   private static final EnglishAnalyzerConfigurable ANALYZER =
     new EnglishAnalyzerConfigurable();
 
+  /**
+   *  Whether getQuery (queryString, r) rewrites queries for the
+   *  retrieval model (the default), and whether it prints the
+   *  rewritten plan and its estimated cost.
+   */
+  private static boolean rewriting = true;
+  private static boolean explaining = false;
+
   //  -------------------- Initialization -------------------------
 
   static {
@@ -182,6 +199,125 @@ public class QryParser {
   }
 
 
+  /**
+   *  Estimate the cost of evaluating a query, as the number of
+   *  postings that its iterators read.  A term reads its inverted
+   *  list.  An operator that matches any of its arguments reads all
+   *  of them.  An operator that matches all of its arguments (see
+   *  Qry.docIteratorMatchesAll) is led by its first argument, and each other
+   *  argument is advanced at most once per document of the first
+   *  argument, so short lists should come first.
+   *  @param q The query.
+   *  @param r The retrieval model that the query will be evaluated with.
+   *  @return The estimated cost.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static long estimateCost (Qry q, RetrievalModel r) throws IOException {
+
+    if (q instanceof QryIopTerm) {
+      return estimateDf (q, r);
+    }
+
+    long cost = 0;
+
+    if (q.docIteratorMatchesAll (r) && (q.args.size () > 0)) {
+      long leadDf = estimateDf (q.args.get (0), r);
+
+      cost = estimateCost (q.args.get (0), r);
+
+      for (int i = 1; i < q.args.size (); i++) {
+        cost += Math.min (estimateCost (q.args.get (i), r), leadDf);
+      }
+    } else {
+      for (Qry q_i : q.args) {
+        cost += estimateCost (q_i, r);
+      }
+    }
+
+    return cost;
+  }
+
+  /**
+   *  Estimate the number of documents that a query matches.  The df
+   *  of a term is exact.  Other estimates are upper bounds:  the
+   *  smallest df of the arguments of an operator that matches all of
+   *  them, and the sum of the dfs of the arguments of an operator that
+   *  matches any of them.
+   *  @param q The query.
+   *  @param r The retrieval model that the query will be evaluated with.
+   *  @return The estimated number of matching documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static long estimateDf (Qry q, RetrievalModel r) throws IOException {
+
+    if (q instanceof QryIopTerm) {
+      QryIopTerm t = (QryIopTerm) q;
+      return Idx.getDocFreq (t.getField (), t.getTerm ().toLowerCase ());
+    }
+
+    if (q.docIteratorMatchesAll (r) && (q.args.size () > 0)) {
+      long df = Long.MAX_VALUE;
+
+      for (Qry q_i : q.args) {
+        df = Math.min (df, estimateDf (q_i, r));
+      }
+
+      return df;
+    }
+
+    long df = 0;
+
+    for (Qry q_i : q.args) {
+      df += estimateDf (q_i, r);
+    }
+
+    return Math.min (df, Idx.getCollectionStats ().getNumDocs ());
+  }
+
+  /**
+   *  Describe a query plan:  each node of the query tree, with its
+   *  weight (if its parent has weights), its estimated df, and its
+   *  estimated cost.
+   *  @param q The query.
+   *  @param r The retrieval model that the query will be evaluated with.
+   *  @return The plan, one node per line.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static String explainQuery (Qry q, RetrievalModel r) throws IOException {
+    StringBuilder plan = new StringBuilder ();
+    explainQuery (q, r, "", "      ", plan);
+    return plan.toString ();
+  }
+
+  private static void explainQuery (Qry q, RetrievalModel r, String weight,
+                                    String indent, StringBuilder plan)
+    throws IOException {
+
+    plan.append (indent).append (weight);
+
+    if (q instanceof QryIopTerm) {
+      plan.append (q);
+    } else {
+      plan.append (q.getDisplayName ());
+
+      if (q instanceof QryIopNear) {
+        plan.append ('/').append (((QryIopNear) q).getDistance ());
+      } else if (q instanceof QryIopWindow) {
+        plan.append ('/').append (((QryIopWindow) q).getDistance ());
+      }
+    }
+
+    plan.append ("  df=").append (estimateDf (q, r));
+    plan.append ("  cost=").append (estimateCost (q, r)).append ('\n');
+
+    List<Double> weights = argWeights (q);
+
+    for (int i = 0; i < q.args.size (); i++) {
+      String w = (weights == null) ? "" : (weights.get (i) + " ");
+      explainQuery (q.args.get (i), r, w, indent + "  ", plan);
+    }
+  }
+
   /**
    *  Parse a query string into a query tree.
    *  @param queryString The query string, in an Indri-style
@@ -198,6 +334,49 @@ public class QryParser {
     return q;
   }
 
+  /**
+   *  Parse a query string into a query tree, and rewrite the tree for
+   *  a retrieval model.  See optimizeQuery (q, r).
+   *  @param queryString The query string, in an Indri-style
+   *  query language.
+   *  @param r The retrieval model that the query will be evaluated with.
+   *  @return Qry The query tree for the parsed query.  If the query
+   *  can't match any document, its root operator has no arguments.
+   *  @throws IOException Error accessing the Lucene index.
+   *  @throws IllegalArgumentException Query syntax error.
+   */
+  public static Qry getQuery (String queryString, RetrievalModel r)
+      throws IOException, IllegalArgumentException {
+
+    Qry q = getQuery (queryString);
+
+    if ((q == null) || (! rewriting)) {
+      return q;
+    }
+
+    long costBefore = explaining ? estimateCost (q, r) : 0;
+    Qry exactQuery = q;
+
+    q = optimizeQuery (q, r);			// A rewritten parse
+
+    //  A query that can't match any document is returned as an empty
+    //  operator, like a query whose terms are all stopwords, so that it
+    //  gets an empty ranking.
+
+    if (q == null) {
+      List<Double> noWeights = (argWeights (exactQuery) == null) ? null : new ArrayList<Double> ();
+      setArgs (exactQuery, new ArrayList<Qry> (), noWeights);
+      q = exactQuery;
+    }
+
+    if (explaining) {
+      System.out.println ("    plan: cost " + costBefore + " -> " + estimateCost (q, r));
+      System.out.print (explainQuery (q, r));
+    }
+
+    return q;
+  }
+
   /**
    *  Get the index of the right parenenthesis that balances the
    *  left-most parenthesis.  Return -1 if it doesn't exist.
@@ -275,6 +454,329 @@ public class QryParser {
   }
 
 
+  /**
+   *  Rewrite an optimized query for a retrieval model.  Rewrites don't
+   *  change which documents match or (except for rounding) their
+   *  scores.
+   *  <ul>
+   *  <li>Nested operators of the same type are flattened if that
+   *      doesn't change their meaning:  #AND and #OR in the Boolean
+   *      models (the score is the min or max), #SUM in BM25, and #WAND
+   *      and #WSUM in Indri (the weights are multiplied).  The Indri
+   *      #AND is not flattened, because its arguments are weighted by
+   *      how many there are.
+   *
+   *  <li>Duplicate arguments are merged:  removed from Boolean #AND and
+   *      #OR, and their weights added in #WAND and #WSUM.  An Indri
+   *      #AND with duplicates becomes a #WAND, e.g., #AND (a b a) is
+   *      #WAND (2 a 1 b).
+   *
+   *  <li>#WAND and #WSUM weights are normalized to sum to 1.
+   *
+   *  <li>In the Boolean models, terms that don't occur in the index
+   *      are removed from operators that match any argument, and an
+   *      operator that matches all of its arguments (e.g., #AND,
+   *      #WAND, #WSUM and #NEAR; see Qry.docIteratorMatchesAll) can't
+   *      match if one of them can't.  Then the arguments of #AND are sorted by
+   *      estimated df, so the shortest list leads
+   *      docIteratorHasMatchAll.
+   *  </ul>
+   *  @param q The query, after optimizeQuery (q).
+   *  @param r The retrieval model that the query will be evaluated with.
+   *  @return The rewritten query, or null if it can't match any document.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static Qry optimizeQuery (Qry q, RetrievalModel r) throws IOException {
+
+    boolean isBoolean = (r instanceof RetrievalModelUnrankedBoolean) ||
+      (r instanceof RetrievalModelRankedBoolean);
+
+    if (q instanceof QryIopTerm) {
+      return (isBoolean && (estimateDf (q, r) == 0)) ? null : q;
+    }
+
+    //  Rewrite the arguments first.  An argument is null only if it
+    //  can't match any document, which is only decided for Boolean
+    //  models.
+
+    for (int i = q.args.size () - 1; i >= 0; i--) {
+      Qry q_i = optimizeQuery (q.args.get (i), r);
+
+      if (q_i != null) {
+        q.args.set (i, q_i);
+      } else if (q.docIteratorMatchesAll (r)) {
+        return null;
+      } else {
+        q.removeArg (i);
+      }
+    }
+
+    if (q.args.size () == 0) {
+      return null;
+    }
+
+    if (isBoolean && ((q instanceof QrySopAnd) || (q instanceof QrySopOr))) {
+      flattenArgs (q);
+      removeDuplicateArgs (q);
+
+      if (q instanceof QrySopAnd) {
+        sortArgsByDf (q, r);
+      }
+    } else if ((r instanceof RetrievalModelBM25) && (q instanceof QrySopSum)) {
+      flattenArgs (q);
+    } else if (r instanceof RetrievalModelIndri) {
+      if ((q instanceof QrySopAnd) && hasDuplicateArgs (q)) {
+        q = andToWand (q);
+      }
+
+      if ((q instanceof QrySopWand) || (q instanceof QrySopWsum)) {
+        flattenArgs (q);
+        mergeDuplicateArgs (q);
+        normalizeWeights (q);
+      }
+    }
+
+    if ((q.args.size () == 1) && (! (q instanceof QrySopScore))) {
+      q = q.args.get (0);
+    }
+
+    return q;
+  }
+
+  /**
+   *  Convert an Indri #AND to a #WAND with equal weights.
+   */
+  private static Qry andToWand (Qry q) {
+    QrySopWand wand = new QrySopWand ();
+
+    wand.setDisplayName ("#wand");
+
+    for (Qry q_i : q.args) {
+      wand.args_weight.add (1.0);
+      wand.appendArg (q_i);
+    }
+
+    return wand;
+  }
+
+  /**
+   *  Get the weights of an operator's arguments.
+   *  @return The weights, or null if the operator doesn't have weights.
+   */
+  private static List<Double> argWeights (Qry q) {
+    if (q instanceof QrySopWand) {
+      return ((QrySopWand) q).args_weight;
+    } else if (q instanceof QrySopWsum) {
+      return ((QrySopWsum) q).args_weight;
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   *  Replace the arguments (and weights) of an operator.
+   */
+  private static void setArgs (Qry q, List<Qry> args, List<Double> weights) {
+    q.args.clear ();
+    q.args.addAll (args);
+
+    if (weights != null) {
+      argWeights (q).clear ();
+      argWeights (q).addAll (weights);
+    }
+  }
+
+  /**
+   *  Replace arguments that are the same type of operator as their
+   *  parent with their own arguments.  The arguments were already
+   *  rewritten, so one level is enough.  Weights are multiplied.
+   */
+  private static void flattenArgs (Qry q) {
+    List<Double> weights = argWeights (q);
+    ArrayList<Qry> flatArgs = new ArrayList<Qry> ();
+    ArrayList<Double> flatWeights = (weights == null) ? null : new ArrayList<Double> ();
+    boolean changed = false;
+
+    for (int i = 0; i < q.args.size (); i++) {
+      Qry q_i = q.args.get (i);
+
+      if (q_i.getClass () != q.getClass ()) {
+        flatArgs.add (q_i);
+        if (weights != null) {
+          flatWeights.add (weights.get (i));
+        }
+        continue;
+      }
+
+      changed = true;
+      flatArgs.addAll (q_i.args);
+
+      if (weights != null) {
+        List<Double> w_i = argWeights (q_i);
+        double sum = 0.0;
+
+        for (double w : w_i) {
+          sum += w;
+        }
+        for (double w : w_i) {
+          flatWeights.add (weights.get (i) * w / sum);
+        }
+      }
+    }
+
+    if (changed) {
+      setArgs (q, flatArgs, flatWeights);
+    }
+  }
+
+  /**
+   *  Indicates whether an operator has two arguments that are the same.
+   */
+  private static boolean hasDuplicateArgs (Qry q) {
+    HashSet<String> keys = new HashSet<String> ();
+
+    for (Qry q_i : q.args) {
+      if (! keys.add (planKey (q_i))) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   *  Merge arguments that are the same, adding their weights.
+   */
+  private static void mergeDuplicateArgs (Qry q) {
+    List<Double> weights = argWeights (q);
+    LinkedHashMap<String,Integer> index = new LinkedHashMap<String,Integer> ();
+    ArrayList<Qry> mergedArgs = new ArrayList<Qry> ();
+    ArrayList<Double> mergedWeights = new ArrayList<Double> ();
+
+    for (int i = 0; i < q.args.size (); i++) {
+      String key = planKey (q.args.get (i));
+      Integer j = index.get (key);
+
+      if (j == null) {
+        index.put (key, mergedArgs.size ());
+        mergedArgs.add (q.args.get (i));
+        mergedWeights.add (weights.get (i));
+      } else {
+        mergedWeights.set (j, mergedWeights.get (j) + weights.get (i));
+      }
+    }
+
+    if (mergedArgs.size () < q.args.size ()) {
+      setArgs (q, mergedArgs, mergedWeights);
+    }
+  }
+
+  /**
+   *  Scale the weights of an operator so that they sum to 1.
+   */
+  private static void normalizeWeights (Qry q) {
+    List<Double> weights = argWeights (q);
+    double sum = 0.0;
+
+    for (double w : weights) {
+      sum += w;
+    }
+    for (int i = 0; i < weights.size (); i++) {
+      weights.set (i, weights.get (i) / sum);
+    }
+  }
+
+  /**
+   *  A string that is the same for query trees that are the same,
+   *  e.g., #NEAR/3 (a b) and #NEAR/3 (a b), and different otherwise,
+   *  e.g., #NEAR/3 (a b) and #NEAR/5 (a b).
+   */
+  private static String planKey (Qry q) {
+
+    if (q instanceof QryIopTerm) {
+      return q.toString ();
+    }
+
+    StringBuilder key = new StringBuilder (q.getClass ().getName ());
+
+    if (q instanceof QryIopNear) {
+      key.append ('/').append (((QryIopNear) q).getDistance ());
+    } else if (q instanceof QryIopWindow) {
+      key.append ('/').append (((QryIopWindow) q).getDistance ());
+    }
+
+    List<Double> weights = argWeights (q);
+
+    key.append ("(");
+
+    for (int i = 0; i < q.args.size (); i++) {
+      if (weights != null) {
+        key.append (weights.get (i)).append (' ');
+      }
+      key.append (planKey (q.args.get (i))).append (' ');
+    }
+
+    return key.append (")").toString ();
+  }
+
+  /**
+   *  Remove arguments that are the same as an earlier argument.
+   */
+  private static void removeDuplicateArgs (Qry q) {
+    HashSet<String> keys = new HashSet<String> ();
+
+    for (int i = 0; i < q.args.size (); i++) {
+      if (! keys.add (planKey (q.args.get (i)))) {
+        q.removeArg (i);
+        i --;
+      }
+    }
+  }
+
+  /**
+   *  Sort the arguments of an operator by estimated df, smallest first.
+   *  The sort is stable.
+   */
+  private static void sortArgsByDf (Qry q, RetrievalModel r) throws IOException {
+    int n = q.args.size ();
+    long[] df = new long[n];
+    Integer[] order = new Integer[n];
+
+    for (int i = 0; i < n; i++) {
+      df[i] = estimateDf (q.args.get (i), r);
+      order[i] = i;
+    }
+
+    Arrays.sort (order, (i, j) -> Long.compare (df[i], df[j]));
+
+    ArrayList<Qry> sorted = new ArrayList<Qry> ();
+
+    for (int i = 0; i < n; i++) {
+      sorted.add (q.args.get (order[i]));
+    }
+
+    setArgs (q, sorted, null);
+  }
+
+  /**
+   *  Choose whether getQuery (queryString, r) prints the rewritten
+   *  query plan and its estimated cost.
+   *  @param explain True to print query plans.
+   */
+  public static void setExplaining (boolean explain) {
+    QryParser.explaining = explain;
+  }
+
+  /**
+   *  Choose whether getQuery (queryString, r) rewrites queries for the
+   *  retrieval model.
+   *  @param rewrite True to rewrite queries.
+   */
+  public static void setRewriting (boolean rewrite) {
+    QryParser.rewriting = rewrite;
+  }
+
+
   /**
    *  Parse a query string into a query tree.
    *  @param queryString The query string, in an Indri-style query
@@ -0,0 +1,441 @@
+import java.io.IOException;
+
+/**
+ *  A query tree that is compiled for one retrieval model, so that
+ *  scoring a document doesn't go through the instanceof checks in
+ *  each QrySop.getScore, and document-independent values (e.g., the
+ *  BM25 RSJ weight and average document length, or Indri's smoothing
+ *  constants) are computed once per query instead of once per
+ *  document.
+ *  <p>
+ *  compile is called after the query is initialized.  Each scorer
+ *  node wraps one QrySop node.  Matching still uses the Qry tree: the
+ *  caller iterates over the query as usual, and passes each matching
+ *  document to getScore.  Scores are computed with the same arithmetic
+ *  as QrySop.getScore, so they are identical.  Query trees that can't
+ *  be compiled (e.g., for the Boolean models, whose scores are cheap)
+ *  are scored by QrySop.getScore.
+ *  </p><p>
+ *  The compiled scorers for BM25 and Indri are:
+ *  </p>
+ *  <pre>
+ *    BM25:   #SUM, #SCORE
+ *    Indri:  #AND, #WAND, #WSUM, #SCORE
+ *  </pre>
+ */
+public abstract class QryScorer {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  Whether compile builds model-specific scorers (the default).
+   */
+  private static boolean compiling = true;
+
+  /**
+   *  The query operator that determines whether this scorer's node
+   *  matches a document.
+   */
+  protected final Qry q;
+
+  /**
+   *  The retrieval model that the scorer was compiled for.
+   */
+  protected final RetrievalModel r;
+
+  //  --------------- Methods ---------------------------------------
+
+  protected QryScorer (Qry q, RetrievalModel r) {
+    this.q = q;
+    this.r = r;
+  }
+
+  /**
+   *  Choose whether compile builds model-specific scorers, or scorers
+   *  that just call QrySop.getScore.
+   *  @param compile True to build model-specific scorers.
+   */
+  public static void setCompiling (boolean compile) {
+    QryScorer.compiling = compile;
+  }
+
+  /**
+   *  Compile an initialized query for a retrieval model.
+   *  @param q The query.  It must be a QrySop.
+   *  @param r The retrieval model that the query was initialized for.
+   *  @return A scorer for the query.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static QryScorer compile (Qry q, RetrievalModel r) throws IOException {
+
+    QryScorer scorer = QryScorer.compiling ? compileNode (q, r) : null;
+
+    if (scorer == null) {
+      scorer = new GenericScorer (q, r);
+    }
+
+    return scorer;
+  }
+
+  /**
+   *  Compile one node of a query tree.
+   *  @return The scorer, or null if the node or one of its arguments
+   *  can't be compiled for the model.
+   */
+  private static QryScorer compileNode (Qry q, RetrievalModel r) throws IOException {
+
+    if (r instanceof RetrievalModelBM25) {
+      RetrievalModelBM25 bm25 = (RetrievalModelBM25) r;
+
+      if (q instanceof QrySopScore) {
+        return new BM25TermScorer ((QrySopScore) q, bm25);
+      } else if (q instanceof QrySopSum) {
+        QryScorer[] args = compileArgs (q, r);
+        return (args == null) ? null : new BM25SumScorer (q, bm25, args);
+      }
+    } else if (r instanceof RetrievalModelIndri) {
+      RetrievalModelIndri indri = (RetrievalModelIndri) r;
+
+      if (q instanceof QrySopScore) {
+        return new IndriTermScorer ((QrySopScore) q, indri);
+      }
+
+      QryScorer[] args = compileArgs (q, r);
+
+      if (args == null) {
+        return null;
+      } else if (q instanceof QrySopAnd) {
+        return new IndriAndScorer (q, indri, args);
+      } else if (q instanceof QrySopWand) {
+        return new IndriWandScorer (q, indri, args, ((QrySopWand) q).getWeights ());
+      } else if (q instanceof QrySopWsum) {
+        return new IndriWsumScorer (q, indri, args, ((QrySopWsum) q).getWeights ());
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   *  Compile the arguments of a query operator.
+   *  @return The scorers, or null if an argument can't be compiled.
+   */
+  private static QryScorer[] compileArgs (Qry q, RetrievalModel r) throws IOException {
+    QryScorer[] args = new QryScorer[q.args.size ()];
+
+    for (int i = 0; i < args.length; i++) {
+      args[i] = compileNode (q.args.get (i), r);
+
+      if (args[i] == null) {
+        return null;
+      }
+    }
+
+    return args;
+  }
+
+  /**
+   *  Indicates whether this scorer's node matches a document.
+   *  @param docid The internal docid of the document.
+   *  @return True if the node matches the document.
+   */
+  final boolean matches (int docid) {
+    return this.q.docIteratorHasMatch (this.r) &&
+      (this.q.docIteratorGetMatch () == docid);
+  }
+
+  /**
+   *  Get the score of a document that the query matches.
+   *  @param docid The internal docid of the document.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public abstract double getScore (int docid) throws IOException;
+
+  /**
+   *  Get the log of the score of a document that the query matches.
+   *  See QrySop.getLogScore.
+   *  @param docid The internal docid of the document.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  double getLogScore (int docid) throws IOException {
+    return Math.log (this.getScore (docid));
+  }
+
+  /**
+   *  Get the default score of a document that the query doesn't match.
+   *  @param docid The internal docid of the document.
+   *  @return The default score.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  double getDefaultScore (int docid) throws IOException {
+    return 0.0;
+  }
+
+  /**
+   *  Get the log of the default score of a document that the query
+   *  doesn't match.
+   *  @param docid The internal docid of the document.
+   *  @return The log of the default score.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  double getLogDefaultScore (int docid) throws IOException {
+    return Math.log (this.getDefaultScore (docid));
+  }
+
+  //  --------------- Scorers ---------------------------------------
+
+  /**
+   *  A query that isn't compiled is scored by QrySop.getScore.
+   */
+  private static class GenericScorer extends QryScorer {
+
+    private GenericScorer (Qry q, RetrievalModel r) {
+      super (q, r);
+    }
+
+    public double getScore (int docid) throws IOException {
+      return ((QrySop) this.q).getScore (this.r);
+    }
+  }
+
+  /**
+   *  A BM25 #SCORE operator.
+   */
+  private static class BM25TermScorer extends QryScorer {
+
+    private final QryIop iop;
+    private final DocLengthStore.FieldLengths docLengths;
+    private final double rsjWeight;
+    private final double avgDocLen;
+    private final double k_1;
+    private final double b;
+    private final double k_3plus1;
+    private final double qtfPlusK_3;
+    private final double qtf = 1.0;
+
+    private BM25TermScorer (QrySopScore q, RetrievalModelBM25 bm25) throws IOException {
+      super ((QryIop) q.args.get (0), bm25);
+      this.iop = (QryIop) q.args.get (0);
+
+      long numDocs = Idx.getCollectionStats ().getNumDocs ();
+      int df = this.iop.getDf ();
+
+      this.docLengths = Idx.getFieldLengths (this.iop.getField ());
+      this.rsjWeight = Math.max (0.0, Math.log ((numDocs - df + 0.5) / (df + 0.5)));
+      this.avgDocLen = Idx.getFieldStats (this.iop.getField ()).getAvgLength ();
+      this.k_1 = bm25.k_1;
+      this.b = bm25.b;
+      this.k_3plus1 = bm25.k_3 + 1;
+      this.qtfPlusK_3 = this.qtf + bm25.k_3;
+    }
+
+    public double getScore (int docid) throws IOException {
+      int tf = this.iop.docIteratorGetMatchTf ();
+      double score = (double) tf /
+        (tf + this.k_1 * ((1 - this.b) + this.b * this.docLengths.get (docid) / this.avgDocLen));
+      return this.rsjWeight * score * this.k_3plus1 * this.qtf / this.qtfPlusK_3;
+    }
+  }
+
+  /**
+   *  A BM25 #SUM operator.
+   */
+  private static class BM25SumScorer extends QryScorer {
+
+    private final QryScorer[] args;
+
+    private BM25SumScorer (Qry q, RetrievalModelBM25 bm25, QryScorer[] args) {
+      super (q, bm25);
+      this.args = args;
+    }
+
+    public double getScore (int docid) throws IOException {
+      double score = 0.0;
+
+      for (QryScorer arg : this.args) {
+        if (arg.matches (docid)) {
+          score += arg.getScore (docid);
+        }
+      }
+
+      return score;
+    }
+  }
+
+  /**
+   *  An Indri #SCORE operator.
+   */
+  private static class IndriTermScorer extends QryScorer {
+
+    private final QryIop iop;
+    private final DocLengthStore.FieldLengths docLengths;
+    private final QrySopScore.IndriDefaults defaults;
+    private final float mu;
+    private final float oneMinusLambda;
+    private final double muPmle;
+    private final double lambdaPmle;
+
+    private IndriTermScorer (QrySopScore q, RetrievalModelIndri indri) throws IOException {
+      super ((QryIop) q.args.get (0), indri);
+      this.iop = (QryIop) q.args.get (0);
+
+      double ctf = this.iop.getCtf ();
+      long lengthc = Idx.getFieldStats (this.iop.getField ()).getSumOfLengths ();
+
+      this.docLengths = Idx.getFieldLengths (this.iop.getField ());
+      this.defaults = q.getIndriDefaults (indri);
+      this.mu = indri.mu;
+      this.oneMinusLambda = 1 - indri.lambda;
+      this.muPmle = indri.mu * ctf / lengthc;
+      this.lambdaPmle = indri.lambda * ctf / lengthc;
+    }
+
+    public double getScore (int docid) throws IOException {
+      double tf = this.iop.docIteratorGetMatchTf ();
+      long lengthd = this.docLengths.get (docid);
+      return this.oneMinusLambda * (tf + this.muPmle) / (lengthd + this.mu) + this.lambdaPmle;
+    }
+
+    double getDefaultScore (int docid) {
+      return this.defaults.getDefaultScore (this.docLengths.get (docid));
+    }
+
+    double getLogDefaultScore (int docid) {
+      return this.defaults.getLogDefaultScore (this.docLengths.get (docid));
+    }
+  }
+
+  /**
+   *  An Indri #AND operator.  Scores are the geometric mean of the
+   *  arguments' scores, computed in log space.
+   */
+  private static class IndriAndScorer extends QryScorer {
+
+    private final QryScorer[] args;
+    private final double weight;
+
+    private IndriAndScorer (Qry q, RetrievalModelIndri indri, QryScorer[] args) {
+      super (q, indri);
+      this.args = args;
+      this.weight = 1.0 / (double) args.length;
+    }
+
+    public double getScore (int docid) throws IOException {
+      return Math.exp (this.getLogScore (docid));
+    }
+
+    double getLogScore (int docid) throws IOException {
+      double score = 0.0;
+
+      for (QryScorer arg : this.args) {
+        score += arg.matches (docid) ?
+          arg.getLogScore (docid) : arg.getLogDefaultScore (docid);
+      }
+
+      return score * this.weight;
+    }
+
+    double getDefaultScore (int docid) throws IOException {
+      return Math.exp (this.getLogDefaultScore (docid));
+    }
+
+    double getLogDefaultScore (int docid) throws IOException {
+      double score = 0.0;
+
+      for (QryScorer arg : this.args) {
+        score += arg.getLogDefaultScore (docid);
+      }
+
+      return score * this.weight;
+    }
+  }
+
+  /**
+   *  An Indri #WAND operator.  Scores are the weighted geometric mean
+   *  of the arguments' scores, computed in log space.
+   */
+  private static class IndriWandScorer extends QryScorer {
+
+    private final QryScorer[] args;
+    private final double[] weights;
+
+    private IndriWandScorer (Qry q, RetrievalModelIndri indri, QryScorer[] args,
+                             double[] weights) {
+      super (q, indri);
+      this.args = args;
+      this.weights = weights;
+    }
+
+    public double getScore (int docid) throws IOException {
+      return Math.exp (this.getLogScore (docid));
+    }
+
+    double getLogScore (int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        QryScorer arg = this.args[i];
+        score += this.weights[i] * (arg.matches (docid) ?
+                                    arg.getLogScore (docid) : arg.getLogDefaultScore (docid));
+      }
+
+      return score;
+    }
+
+    double getDefaultScore (int docid) throws IOException {
+      return Math.exp (this.getLogDefaultScore (docid));
+    }
+
+    double getLogDefaultScore (int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        score += this.weights[i] * this.args[i].getLogDefaultScore (docid);
+      }
+
+      return score;
+    }
+  }
+
+  /**
+   *  An Indri #WSUM operator.  Scores are the weighted mean of the
+   *  arguments' scores.
+   */
+  private static class IndriWsumScorer extends QryScorer {
+
+    private final QryScorer[] args;
+    private final double[] weights;
+
+    private IndriWsumScorer (Qry q, RetrievalModelIndri indri, QryScorer[] args,
+                             double[] weights) {
+      super (q, indri);
+      this.args = args;
+      this.weights = weights;
+    }
+
+    public double getScore (int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        QryScorer arg = this.args[i];
+        double argScore = arg.matches (docid) ?
+          arg.getScore (docid) : arg.getDefaultScore (docid);
+        score += argScore * this.weights[i];
+      }
+
+      return score;
+    }
+
+    double getDefaultScore (int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        score += this.args[i].getDefaultScore (docid) * this.weights[i];
+      }
+
+      return score;
+    }
+  }
+}
@@ -25,6 +25,32 @@ public abstract class QrySop extends Qry {
 
   abstract double getDefaultScore (RetrievalModel r, long docid) throws IOException;
 
+  /**
+   *  Get the log of the score for the document that docIteratorHasMatch
+   *  matched.  Operators that combine their arguments' scores by
+   *  multiplication (e.g., the Indri #AND and #WAND) override this to
+   *  sum logs instead, which is cheaper than Math.pow and doesn't
+   *  underflow on long queries.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogScore (RetrievalModel r) throws IOException {
+    return Math.log (this.getScore (r));
+  }
+
+  /**
+   *  Get the log of the default score for a document that the query
+   *  does not match.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid The internal docid of the document.
+   *  @return The log of the default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  double getLogDefaultScore (RetrievalModel r, long docid) throws IOException {
+    return Math.log (this.getDefaultScore (r, docid));
+  }
+
 
   /**
    *  Initialize the query operator (and its arguments), including any
@@ -11,8 +11,19 @@ public class QrySopAnd extends QrySop {
      *  @return True if the query matches, otherwise false.
      */
     public boolean docIteratorHasMatch (RetrievalModel r) {
-        if(r instanceof RetrievalModelIndri) return this.docIteratorHasMatchMin(r);
-        return this.docIteratorHasMatchAll (r);
+        if(this.docIteratorMatchesAll(r)) return this.docIteratorHasMatchAll (r);
+        return this.docIteratorHasMatchMin(r);
+    }
+
+    /**
+     *  Indicates whether the query matches only documents that all of
+     *  its arguments match.  The Indri AND matches any argument; the
+     *  Boolean AND matches all.
+     *  @param r The retrieval model that determines what is a match
+     *  @return True if the query matches all of its arguments.
+     */
+    public boolean docIteratorMatchesAll (RetrievalModel r) {
+        return ! (r instanceof RetrievalModelIndri);
     }
 
     /**
@@ -35,39 +46,71 @@ public class QrySopAnd extends QrySop {
         }
     }
 
+    /**
+     *  The weight of each argument in the Indri model, 1/n.  It is
+     *  computed once, by initialize.
+     */
+    private double weight;
+
     @Override
     public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
-        double res = 1.0;
+        return Math.exp(this.getLogDefaultScore(r, docid));
+    }
+
+    @Override
+    double getLogDefaultScore(RetrievalModel r, long docid) throws IOException {
+        double res = 0.0;
         for(Qry q: this.args){
-            res *= ((QrySop) q).getDefaultScore(r, docid);
+            res += ((QrySop) q).getLogDefaultScore(r, docid);
         }
 
-        return Math.pow(res, 1/(double)this.args.size());
+        return res * this.weight;
     }
 
     double getScoreIndri(RetrievalModel r)throws IOException {
-//        if (! this.docIteratorHasMatchCache()) {
-//            //?????????????????????????????????????????not match what>>>>>>>>>>
-//            //no document has this term
-//            return 0.0;
-//        } else {
-            double res = 1.0;
-            int docid = this.docIteratorGetMatch();
-            double weight = 1.0 /(double) this.args.size();
-            for (Qry q : this.args) {
-                if(q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == docid){
-                    double score = Math.pow(((QrySop) q).getScore(r), weight);
-                    res *= score;
-                }else{
-                    double score = Math.pow(((QrySop) q).getDefaultScore(r, docid), weight);
-                    res *= score;
-                }
-//                System.out.println("res " + res);
+        return Math.exp(this.getLogScoreIndri(r));
+    }
 
+    @Override
+    public double getLogScore (RetrievalModel r) throws IOException {
+        if(r instanceof RetrievalModelIndri) {
+            return this.getLogScoreIndri(r);
+        }
+        return super.getLogScore(r);
+    }
+
+    /**
+     *  getLogScore for the Indri retrieval model.  The score is the
+     *  geometric mean of the arguments' scores, so its log is the mean
+     *  of their logs.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The log of the document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    double getLogScoreIndri(RetrievalModel r)throws IOException {
+        double res = 0.0;
+        int docid = this.docIteratorGetMatch();
+        for (Qry q : this.args) {
+            if(q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == docid){
+                res += ((QrySop) q).getLogScore(r);
+            }else{
+                res += ((QrySop) q).getLogDefaultScore(r, docid);
             }
-            return res;
         }
-//    }
+        return res * this.weight;
+    }
+
+    /**
+     *  Initialize the query operator (and its arguments), including any
+     *  internal iterators.
+     *  @param r A retrieval model that guides initialization
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    @Override
+    public void initialize(RetrievalModel r) throws IOException {
+        super.initialize(r);
+        this.weight = 1.0 / (double) this.args.size();
+    }
 
     /**
      *  getScore for the UnrankedBoolean retrieval model.
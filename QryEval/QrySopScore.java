@@ -4,6 +4,9 @@
 
 import java.io.*;
 import java.lang.IllegalArgumentException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *  The SCORE operator for all retrieval models.
@@ -15,7 +18,10 @@ public class QrySopScore extends QrySop {
    *  Document-independent values that should be determined just once.
    *  Some retrieval models have these, some don't.
    */
-  
+  private long numDocs;
+  private CollectionStats.FieldStats fieldStats;
+  private DocLengthStore.FieldLengths docLengths;
+
   /**
    *  Indicates whether the query has a match.
    *  @param r The retrieval model that determines what is a match
@@ -61,11 +67,11 @@ public class QrySopScore extends QrySop {
       RetrievalModelBM25 bm25 = (RetrievalModelBM25) r;
       double qtf = 1.0;
       //Score will only have one arg
-      double RSJweight = Math.max(0.0, Math.log((Idx.getNumDocs() - curr.getDf() + 0.5)/(curr.getDf() + 0.5)));
-      double avg_doclen = Idx.getSumOfFieldLengths(curr.field)/(double)Idx.getDocCount(curr.field);
-      double score = (double)curr.docIteratorGetMatchPosting().tf/
-              (curr.docIteratorGetMatchPosting().tf + bm25.k_1*(
-                      (1-bm25.b) + bm25.b * Idx.getFieldLength(curr.field, curr.docIteratorGetMatch())/avg_doclen));
+      double RSJweight = Math.max(0.0, Math.log((this.numDocs - curr.getDf() + 0.5)/(curr.getDf() + 0.5)));
+      double avg_doclen = this.fieldStats.getAvgLength();
+      double score = (double)curr.docIteratorGetMatchTf()/
+              (curr.docIteratorGetMatchTf() + bm25.k_1*(
+                      (1-bm25.b) + bm25.b * this.docLengths.get(curr.docIteratorGetMatch())/avg_doclen));
       return RSJweight * score * (bm25.k_3 + 1)*qtf/(qtf + bm25.k_3);
     }
   }
@@ -83,34 +89,165 @@ public class QrySopScore extends QrySop {
     } else {
       RetrievalModelIndri indri = (RetrievalModelIndri) r;
       QryIop curr = (QryIop)this.args.get(0);
-      double tf = curr.docIteratorGetMatchPosting().tf;
+      double tf = curr.docIteratorGetMatchTf();
       double ctf = curr.getCtf();
-      long lengthc = Idx.getSumOfFieldLengths(curr.field);
-      long lengthd = Idx.getFieldLength(curr.field, this.docIteratorGetMatch());
+      long lengthc = this.fieldStats.getSumOfLengths();
+      long lengthd = this.docLengths.get(this.docIteratorGetMatch());
       double part1 = (1-indri.lambda) * (tf + indri.mu * ctf/lengthc) / (lengthd + indri.mu);
       double part2 = indri.lambda * ctf / lengthc;
       return part1 + part2;
     }
   }
+  /**
+   *  The Indri default score of a document that doesn't contain the
+   *  term is A/(length+mu)+B, where A and B depend only on the term
+   *  and the retrieval model.  Each instance of RetrievalModelIndri
+   *  that scores this operator (several, during a parameter sweep) has
+   *  its own constants.  The values of 1/(length+mu) are in a table
+   *  that every SCORE operator of the field and mu shares (see
+   *  getInverseLengths), so a default score is one lookup and one
+   *  multiply-add.  Log default scores are in a table of this
+   *  operator's own, which grows to the longest length seen and is
+   *  filled as lengths are seen.
+   */
+  static class IndriDefaults {
+    private final RetrievalModelIndri model;
+    private final double a;
+    private final double b;
+    private final double mu;
+    private final double[] inverses;
+    private double[] logDefaults = new double[0];
+
+    /**
+     *  The tables of 1/(length+mu), by field and mu.
+     */
+    private static final Map<DocLengthStore.FieldLengths, Map<Double, double[]>> inverseTables =
+      new ConcurrentHashMap<DocLengthStore.FieldLengths, Map<Double, double[]>> ();
+
+    /**
+     *  Get the table of 1/(length+mu) for a field, computing it the
+     *  first time that the field and mu are used.  The table covers
+     *  lengths up to the field's maximum length, or MAX_TABLE_LENGTH
+     *  if that is smaller.
+     *  @param lengths The document lengths of the field.
+     *  @param fieldStats The statistics of the field.
+     *  @param mu The Dirichlet smoothing parameter.
+     *  @return The table, which must not be modified.
+     */
+    static double[] getInverseLengths (DocLengthStore.FieldLengths lengths,
+                                       CollectionStats.FieldStats fieldStats, double mu) {
+      Map<Double, double[]> tables =
+        inverseTables.computeIfAbsent (lengths, l -> new ConcurrentHashMap<Double, double[]> ());
+
+      return tables.computeIfAbsent (mu, m -> {
+          int tableLength = (int) Math.min (fieldStats.getMaxLength (), MAX_TABLE_LENGTH) + 1;
+          double[] table = new double[tableLength];
+
+          for (int length = 0; length < tableLength; length++) {
+            table[length] = 1.0 / (length + m);
+          }
+
+          return table;
+        });
+    }
+
+    private IndriDefaults (RetrievalModelIndri model, double a, double b, double[] inverses) {
+      this.model = model;
+      this.a = a;
+      this.b = b;
+      this.mu = model.mu;
+      this.inverses = inverses;
+    }
+
+    double getDefaultScore (int lengthdoc) {
+      double inverse = (lengthdoc < this.inverses.length) ?
+        this.inverses[lengthdoc] : 1.0 / (lengthdoc + this.mu);
+      return this.a * inverse + this.b;
+    }
+
+    double getLogDefaultScore (int lengthdoc) {
+      if (lengthdoc >= this.inverses.length) {
+        return Math.log (this.getDefaultScore (lengthdoc));
+      }
+
+      if (lengthdoc >= this.logDefaults.length) {
+        int tableLength = Math.max (lengthdoc + 1, 2 * this.logDefaults.length);
+        this.logDefaults =
+          Arrays.copyOf (this.logDefaults, Math.min (tableLength, this.inverses.length));
+      }
+
+      //  0 marks an empty entry.  A default score is less than 1, so
+      //  its log is never 0.
+
+      double logDefault = this.logDefaults[lengthdoc];
+
+      if (logDefault == 0.0) {
+        logDefault = Math.log (this.getDefaultScore (lengthdoc));
+        this.logDefaults[lengthdoc] = logDefault;
+      }
+
+      return logDefault;
+    }
+  }
+
+  /**
+   *  The largest document length that has an entry in the tables of
+   *  default scores.  Longer documents are rare, and are computed
+   *  directly.
+   */
+  private static final int MAX_TABLE_LENGTH = 1 << 14;
+
+  private IndriDefaults[] indriDefaults = new IndriDefaults[0];
+
+  /**
+   *  Get the default score constants of an Indri retrieval model,
+   *  computing them the first time that the model is used.
+   */
+  IndriDefaults getIndriDefaults (RetrievalModelIndri indri) {
+    for (IndriDefaults d : this.indriDefaults) {
+      if (d.model == indri) {
+        return d;
+      }
+    }
+
+    double lambda = indri.lambda;
+    double mu = indri.mu;
+    QryIop q = (QryIop)this.args.get(0);
+
+    double ctf = q.getCtf();
+    double Pmle = 0.0;
+    double lengthc = this.fieldStats.getSumOfLengths();
+    if(ctf == 0){
+      ctf = 0.5;
+    }
+    Pmle = ctf/lengthc;
+
+    double[] inverses = (this.docLengths == null) ? new double[0] :
+      IndriDefaults.getInverseLengths (this.docLengths, this.fieldStats, mu);
+    IndriDefaults d = new IndriDefaults (indri, (1-lambda)* mu * Pmle, lambda * Pmle, inverses);
+
+    IndriDefaults[] defaults = Arrays.copyOf (this.indriDefaults, this.indriDefaults.length + 1);
+    defaults[defaults.length - 1] = d;
+    this.indriDefaults = defaults;
+    return d;
+  }
+
   @Override
   public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
     if(r instanceof RetrievalModelIndri){
-      double lambda = ((RetrievalModelIndri) r).lambda;
-      double mu = ((RetrievalModelIndri) r).mu;
-      QryIop q = (QryIop)this.args.get(0);
-
-      double ctf = q.getCtf();
-      double Pmle = 0.0;
-      double lengthc = Idx.getSumOfFieldLengths(q.field);
-      if(ctf == 0){
-        ctf = 0.5;
-      }
-      Pmle = ctf/lengthc;
-      double lengthdoc = Idx.getFieldLength(q.field, (int)docid);
-      return (1-lambda)* mu * Pmle/(lengthdoc + mu) + lambda * Pmle;
+      return getIndriDefaults((RetrievalModelIndri) r).getDefaultScore(this.docLengths.get((int)docid));
     }
     return 0.0;
   }
+
+  @Override
+  double getLogDefaultScore(RetrievalModel r, long docid) throws IOException {
+    if(r instanceof RetrievalModelIndri){
+      return getIndriDefaults((RetrievalModelIndri) r).getLogDefaultScore(this.docLengths.get((int)docid));
+    }
+    return super.getLogDefaultScore(r, docid);
+  }
+
   /**
    *  getScore for the Ranked retrieval model.
    *  @param r The retrieval model that determines how scores are calculated.
@@ -122,7 +259,7 @@ public class QrySopScore extends QrySop {
       return 0.0;
     } else {
       //Score will only have one arg
-      return ((QryIop)this.args.get(0)).docIteratorGetMatchPosting().tf;
+      return ((QryIop)this.args.get(0)).docIteratorGetMatchTf();
     }
   }
   
@@ -150,7 +287,16 @@ public class QrySopScore extends QrySop {
    */
   public void initialize (RetrievalModel r) throws IOException {
     Qry q = this.args.get (0);
+
+    //  SCORE operators use only statistics and term frequencies.
+
+    ((QryIop) q).setCountOnly (true);
     q.initialize (r);
+
+    this.numDocs = Idx.getCollectionStats ().getNumDocs ();
+    this.fieldStats = Idx.getFieldStats (((QryIop) q).field);
+    this.docLengths = Idx.getFieldLengths (((QryIop) q).field);
+    this.indriDefaults = new IndriDefaults[0];
   }
 
 
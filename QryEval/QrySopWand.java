@@ -4,51 +4,101 @@ import java.util.ArrayList;
 public class QrySopWand extends QrySop {
     ArrayList<Double> args_weight = new ArrayList<>();
 
+    /**
+     *  The normalized weights, w_i / sum (w).  They are computed once,
+     *  by initialize.
+     */
+    private double[] weights;
+
     @Override
     public double getScore(RetrievalModel r) throws IOException {
+        return Math.exp(this.getLogScore(r));
+    }
+
+    @Override
+    public double getLogScore(RetrievalModel r) throws IOException {
         if (!(r instanceof RetrievalModelIndri)) {
             throw new IllegalArgumentException("Not support the WAND operator.");
         }
-        double res = 1.0;
+        double res = 0.0;
 
         int docid = this.docIteratorGetMatch();
-        double weightSum = 0.0;
-        for(Double d : this.args_weight){
-            weightSum += d;
-        }
 
         for (int i = 0; i < this.args.size(); i++) {
             Qry q = this.args.get(i);
-            double weight = args_weight.get(i) / weightSum;
             double score;
             if(q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == docid){
-                score = Math.pow(((QrySop) q).getScore(r), weight);
+                score = ((QrySop) q).getLogScore(r);
             }else{
-                score = Math.pow(((QrySop) q).getDefaultScore(r, docid), weight);
+                score = ((QrySop) q).getLogDefaultScore(r, docid);
             }
-            res *= score;
+            res += this.weights[i] * score;
         }
         return res;
     }
 
     @Override
     double getDefaultScore(RetrievalModel r, long docid) throws IOException {
+        return Math.exp(this.getLogDefaultScore(r, docid));
+    }
+
+    @Override
+    double getLogDefaultScore(RetrievalModel r, long docid) throws IOException {
+        double res = 0.0;
+        for (int i = 0; i < this.args.size(); i++) {
+            res += this.weights[i] * ((QrySop) this.args.get(i)).getLogDefaultScore(r, docid);
+        }
+        return res;
+    }
+
+    /**
+     *  Get the normalized weights.  They are available after initialize.
+     *  @return The normalized weights, w_i / sum (w).
+     */
+    double[] getWeights() {
+        return this.weights;
+    }
+
+    /**
+     *  Remove an argument and its weight.
+     *  @param i The index of the argument to remove.
+     */
+    @Override
+    public void removeArg(int i) {
+        super.removeArg(i);
+        this.args_weight.remove(i);
+    }
+
+    @Override
+    public void initialize(RetrievalModel r) throws IOException {
+        super.initialize(r);
+
         double weightSum = 0.0;
         for(Double d : this.args_weight){
             weightSum += d;
         }
 
-        double res = 1.0;
-        for (int i = 0; i < this.args.size(); i++) {
-            double weight = args_weight.get(i) / weightSum;
-            res *= Math.pow(((QrySop) this.args.get(i)).getDefaultScore(r, docid), weight);;
+        this.weights = new double[this.args.size()];
+        for (int i = 0; i < this.weights.length; i++) {
+            this.weights[i] = args_weight.get(i) / weightSum;
         }
-        return res;
     }
 
     @Override
     public boolean docIteratorHasMatch(RetrievalModel r) {
-        if(r instanceof RetrievalModelIndri) return this.docIteratorHasMatchMin(r);
-        return this.docIteratorHasMatchAll (r);
+        if(this.docIteratorMatchesAll(r)) return this.docIteratorHasMatchAll (r);
+        return this.docIteratorHasMatchMin(r);
+    }
+
+    /**
+     *  Indicates whether the query matches only documents that all of
+     *  its arguments match.  The Indri WAND matches any argument;
+     *  other models match all.
+     *  @param r The retrieval model that determines what is a match
+     *  @return True if the query matches all of its arguments.
+     */
+    @Override
+    public boolean docIteratorMatchesAll(RetrievalModel r) {
+        return !(r instanceof RetrievalModelIndri);
     }
 }
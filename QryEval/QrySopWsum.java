@@ -4,6 +4,12 @@ import java.util.ArrayList;
 public class QrySopWsum extends QrySop {
     ArrayList<Double> args_weight = new ArrayList<>();
 
+    /**
+     *  The normalized weights, w_i / sum (w).  They are computed once,
+     *  by initialize.
+     */
+    private double[] weights;
+
     @Override
     public double getScore(RetrievalModel r) throws IOException {
         if (r instanceof RetrievalModelIndri) {
@@ -20,11 +26,6 @@ public class QrySopWsum extends QrySop {
             int docID = this.docIteratorGetMatch();
             double res = 0.0;
 
-            double weightSum = 0.0;
-            for(Double d : args_weight){
-                weightSum += d;
-            }
-
             for(int i = 0; i < this.args.size(); i++){
                 QrySop qs = (QrySop) this.args.get(i);
                 double qScore = 0.0;
@@ -33,7 +34,7 @@ public class QrySopWsum extends QrySop {
                 } else {
                     qScore = qs.getDefaultScore(r, docID);
                 }
-                res += qScore * args_weight.get(i) / weightSum;
+                res += qScore * this.weights[i];
             }
             return res;
 
@@ -45,15 +46,10 @@ public class QrySopWsum extends QrySop {
         if(r instanceof  RetrievalModelIndri){
             double res = 0.0;
 
-            double weightSum = 0.0;
-            for(Double d : args_weight){
-                weightSum += d;
-            }
-
             for(int i = 0; i < this.args.size(); i++){
                 QrySop qs = (QrySop) this.args.get(i);
                 double qScore = qs.getDefaultScore(r, docid);
-                res += qScore * args_weight.get(i) / weightSum;
+                res += qScore * this.weights[i];
             }
             return res;
         }
@@ -62,9 +58,54 @@ public class QrySopWsum extends QrySop {
 
     @Override
     public boolean docIteratorHasMatch(RetrievalModel r) {
-        if(r instanceof  RetrievalModelIndri){
-            return this.docIteratorHasMatchMin(r);
+        if(this.docIteratorMatchesAll(r)){
+            return this.docIteratorHasMatchAll(r);
+        }
+        return this.docIteratorHasMatchMin(r);
+    }
+
+    /**
+     *  Indicates whether the query matches only documents that all of
+     *  its arguments match.  The Indri WSUM matches any argument;
+     *  other models match all.
+     *  @param r The retrieval model that determines what is a match
+     *  @return True if the query matches all of its arguments.
+     */
+    @Override
+    public boolean docIteratorMatchesAll(RetrievalModel r) {
+        return !(r instanceof RetrievalModelIndri);
+    }
+
+    /**
+     *  Get the normalized weights.  They are available after initialize.
+     *  @return The normalized weights, w_i / sum (w).
+     */
+    double[] getWeights() {
+        return this.weights;
+    }
+
+    /**
+     *  Remove an argument and its weight.
+     *  @param i The index of the argument to remove.
+     */
+    @Override
+    public void removeArg(int i) {
+        super.removeArg(i);
+        this.args_weight.remove(i);
+    }
+
+    @Override
+    public void initialize(RetrievalModel r) throws IOException {
+        super.initialize(r);
+
+        double weightSum = 0.0;
+        for(Double d : this.args_weight){
+            weightSum += d;
+        }
+
+        this.weights = new double[this.args.size()];
+        for (int i = 0; i < this.weights.length; i++) {
+            this.weights[i] = args_weight.get(i) / weightSum;
         }
-        return this.docIteratorHasMatchAll(r);
     }
 }
@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ *  Evaluates one query in parallel by splitting the docid space into
+ *  ranges.  Each range is evaluated by its own fork-join task, which
+ *  collects the top k documents of the range, and the per-range
+ *  results are merged into the top k documents of the query.
+ *  <p>
+ *  Query operators keep iterator state, so each task parses and
+ *  initializes its own copy of the query, and then starts it at the
+ *  beginning of its range with docIteratorAdvanceTo.  Statistics such
+ *  as df, ctf and field lengths come from the whole index, not from
+ *  the range, so document scores are the same as in a sequential
+ *  evaluation.  TopKCollector orders documents completely, so the
+ *  merged results are identical too.
+ *  </p><p>
+ *  Each copy of the query initializes its own operators, so the work
+ *  of materializing #NEAR, #WINDOW and #SYN lists is repeated by every
+ *  task.  Streamed term postings are only read within the range.
+ *  </p>
+ */
+public class RangeEvaluator {
+
+  /**
+   *  Evaluate a query and return its top k documents.
+   *  @param qString The query, including its default operator.
+   *  @param model The retrieval model.
+   *  @param k The number of documents to return.
+   *  @param numRanges The number of docid ranges.
+   *  @param maxScore Whether BM25 #SUM queries may use MaxScore.
+   *  @return The top k documents, sorted.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static ScoreList evaluate (String qString, RetrievalModel model, int k,
+                                    int numRanges, boolean maxScore)
+    throws IOException {
+
+    int maxDoc = Idx.INDEXREADER.maxDoc ();
+    List<ForkJoinTask<TopKCollector>> tasks = new ArrayList<ForkJoinTask<TopKCollector>> ();
+
+    for (int i = 0; i < numRanges; i++) {
+      int minDocid = (int) ((long) maxDoc * i / numRanges);
+      int maxDocid = (int) ((long) maxDoc * (i + 1) / numRanges);
+
+      tasks.add (ForkJoinTask.adapt (
+        () -> evaluateRange (qString, model, k, minDocid, maxDocid, maxScore)));
+    }
+
+    //  Tasks that throw IOException report it wrapped in a
+    //  RuntimeException.
+
+    TopKCollector topK = new TopKCollector (k);
+
+    try {
+      ForkJoinTask.invokeAll (tasks);
+
+      for (ForkJoinTask<TopKCollector> task : tasks) {
+        topK.addAll (task.join ());
+      }
+    } catch (RuntimeException ex) {
+      if (ex.getCause () instanceof IOException) {
+        throw (IOException) ex.getCause ();
+      }
+      throw ex;
+    }
+
+    return topK.toScoreList ();
+  }
+
+  /**
+   *  Evaluate a copy of a query in one docid range.
+   *  @param qString The query, including its default operator.
+   *  @param model The retrieval model.
+   *  @param k The number of documents to return.
+   *  @param minDocid The first docid of the range.
+   *  @param maxDocid The end of the range, which is not included.
+   *  @param maxScore Whether BM25 #SUM queries may use MaxScore.
+   *  @return The top k documents of the range.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static TopKCollector evaluateRange (String qString, RetrievalModel model, int k,
+                                              int minDocid, int maxDocid, boolean maxScore)
+    throws IOException {
+
+    Qry q = QryParser.getQuery (qString, model);
+    q.initialize (model);
+
+    if (maxScore && MaxScoreEvaluator.canEvaluate (q, model)) {
+      return MaxScoreEvaluator.evaluate ((QrySopSum) q, (RetrievalModelBM25) model, k,
+                                        minDocid, maxDocid);
+    }
+
+    QryScorer scorer = QryScorer.compile (q, model);
+    TopKCollector topK = new TopKCollector (k);
+
+    q.docIteratorAdvanceTo (minDocid);
+
+    while (q.docIteratorHasMatch (model)) {
+      int docid = q.docIteratorGetMatch ();
+
+      if (docid >= maxDocid) {
+        break;
+      }
+
+      topK.add (docid, scorer.getScore (docid));
+      q.docIteratorAdvancePast (docid);
+    }
+
+    return topK;
+  }
+}
@@ -11,23 +11,25 @@ import java.util.*;
 public class ScoreList {
 
   //  A utility class to create a <internalDocid, externalDocid, score>
-  //  object.
+  //  object.  Looking up an external id reads the stored document, so
+  //  it is done only when the id is needed, and then remembered.
 
   private class ScoreListEntry {
     private int docid;
     private String externalId;
     private double score;
 
-    private ScoreListEntry(int internalDocid, double score) {
+    private ScoreListEntry(int internalDocid, double score, String externalId) {
       this.docid = internalDocid;
       this.score = score;
+      this.externalId = externalId;
+    }
 
-      try {
+    private String getExternalId() throws IOException {
+      if (this.externalId == null) {
 	this.externalId = Idx.getExternalDocid (this.docid);
       }
-      catch (IOException ex){
-	ex.printStackTrace();
-      }
+      return this.externalId;
     }
   }
 
@@ -42,7 +44,18 @@ public class ScoreList {
    *  @param score The document's score.
    */
   public void add(int docid, double score) {
-    scores.add(new ScoreListEntry(docid, score));
+    scores.add(new ScoreListEntry(docid, score, null));
+  }
+
+  /**
+   *  Append a document score to a score list when the document's
+   *  external id is already known.
+   *  @param docid An internal document id.
+   *  @param score The document's score.
+   *  @param externalId The document's external id, or null if unknown.
+   */
+  public void add(int docid, double score, String externalId) {
+    scores.add(new ScoreListEntry(docid, score, externalId));
   }
 
   /**
@@ -54,6 +67,16 @@ public class ScoreList {
     return this.scores.get(n).docid;
   }
 
+  /**
+   *  Get the external docid of the n'th entry.
+   *  @param n The index of the requested document.
+   *  @return The external document id.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String getExternalDocid(int n) throws IOException {
+    return this.scores.get(n).getExternalId();
+  }
+
   /**
    *  Get the score of the n'th entry.
    *  @param n The index of the requested document score.
@@ -80,9 +103,41 @@ public class ScoreList {
     return this.scores.size();
   }
 
+  /**
+   *  Get the fraction of the top documents of another (e.g., exact)
+   *  ranking that are also in the top documents of this one.
+   *  @param other The ranking that this one is compared with.
+   *  @param depth The number of top documents to compare.
+   *  @return The overlap, from 0 to 1.  It is 1 if other is empty.
+   */
+  public double getOverlap(ScoreList other, int depth) {
+    int n = Math.min(depth, other.size());
+
+    if (n == 0) {
+      return 1.0;
+    }
+
+    Set<Integer> top = new HashSet<Integer>();
+
+    for (int i = 0; i < n; i++) {
+      top.add(other.getDocid(i));
+    }
+
+    int found = 0;
+
+    for (int i = 0; i < Math.min(depth, this.size()); i++) {
+      if (top.contains(this.getDocid(i))) {
+        found++;
+      }
+    }
+
+    return found / (double) n;
+  }
+
   /*
    *  Compare two ScoreListEntry objects.  Sort by score, then
-   *  internal docid.
+   *  external docid.  External docids are looked up only for ties,
+   *  and are not needed at all if the index has a docid map.
    */
   public class ScoreListComparator implements Comparator<ScoreListEntry> {
 
@@ -93,9 +148,23 @@ public class ScoreList {
 	    return -1;
       else if (s1.score < s2.score)
 	    return 1;
-	  else if (s1.externalId.compareTo(s2.externalId) > 0)
+
+      int c;
+
+      try {
+        if (Idx.hasExternalDocidOrdinals())
+          c = Integer.compare(Idx.getExternalDocidOrdinal(s1.docid),
+                              Idx.getExternalDocidOrdinal(s2.docid));
+        else
+          c = s1.getExternalId().compareTo(s2.getExternalId());
+      }
+      catch (IOException ex) {
+        throw new IllegalStateException ("Unable to read an external id.", ex);
+      }
+
+	  if (c > 0)
 	    return 1;
-	  else if (s1.externalId.compareTo(s2.externalId) < 0)
+	  else if (c < 0)
 	    return -1;
 	  else
 	    return 0;
@@ -0,0 +1,169 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A microbenchmark of conjunctions over materialized inverted lists
+ *  of different lengths, which exercises InvList.findDocidIndex.  Run
+ *  it with -help to see a usage message.
+ *  <p>
+ *  The lists are synthetic, so no index is needed.  A common list
+ *  has 80% of the documents, and each rare list has a fixed number of
+ *  random documents.  For each rare list, the conjunction of the two
+ *  lists is iterated with Qry.docIteratorHasMatchAll, as in a Boolean
+ *  #AND, and the best time of several repetitions is reported.  The
+ *  lists are built before the timer starts.
+ *  </p>
+ */
+public class SkewBench {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String USAGE =
+    "Usage:  java SkewBench [-docs N] [-reps R] [-df DF[,DF...]]\n\n" +
+    "where -docs is 5000000, -reps is 20, and -df is\n" +
+    "100,1000,10000,50000,100000,200000,400000,1000000 by default.\n";
+
+  /**
+   *  A materialized inverted list.
+   */
+  private static class ListIop extends QryIop {
+    private final InvList list;
+
+    ListIop (InvList list) {
+      this.list = list;
+      this.field = list.field;
+    }
+
+    protected void evaluate () {
+      this.invertedList = this.list;
+    }
+  }
+
+  /**
+   *  The conjunction of its arguments, which is found as a Boolean
+   *  #AND finds it.  Only docIteratorHasMatchAll is used.
+   */
+  private static class Conjunction extends QryIop {
+
+    protected void evaluate () {
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Make a list of df random documents out of numDocs, each with
+   *  one location.
+   */
+  private static InvList makeList (int df, int numDocs, Random random) {
+    BitSet docs = new BitSet (numDocs);
+    int count = 0;
+
+    while (count < df) {
+      int docid = random.nextInt (numDocs);
+
+      if (! docs.get (docid)) {
+        docs.set (docid);
+        count ++;
+      }
+    }
+
+    InvList list = new InvList ("body");
+    int[] locations = { 1 };
+
+    for (int docid = docs.nextSetBit (0); docid >= 0; docid = docs.nextSetBit (docid + 1)) {
+      list.appendPosting (docid, locations, 1);
+    }
+
+    return list;
+  }
+
+  /**
+   *  Iterate over the conjunction of two lists once.
+   *  @return The number of matches.
+   */
+  private static int countMatches (InvList a, InvList b, RetrievalModel r)
+    throws IOException {
+
+    Conjunction q = new Conjunction ();
+
+    q.appendArg (new ListIop (a));
+    q.appendArg (new ListIop (b));
+
+    for (Qry q_i : q.args) {
+      ((QryIop) q_i).initialize (r);
+    }
+
+    int matches = 0;
+
+    while (q.docIteratorHasMatchAll (r)) {
+      int docid = q.args.get (0).docIteratorGetMatch ();
+
+      matches ++;
+
+      for (Qry q_i : q.args) {
+        q_i.docIteratorAdvancePast (docid);
+      }
+    }
+
+    return matches;
+  }
+
+  /**
+   *  @param args The command line arguments.
+   *  @throws IOException Error iterating the lists.
+   */
+  public static void main (String[] args) throws IOException {
+
+    int numDocs = 5000000;
+    int reps = 20;
+    int[] dfs = { 100, 1000, 10000, 50000, 100000, 200000, 400000, 1000000 };
+
+    try {
+      for (int i = 0; i < args.length; i += 2) {
+        if (args[i].equals ("-docs")) {
+          numDocs = Integer.parseInt (args[i + 1]);
+        } else if (args[i].equals ("-reps")) {
+          reps = Integer.parseInt (args[i + 1]);
+        } else if (args[i].equals ("-df")) {
+          String[] values = args[i + 1].split (",");
+
+          dfs = new int[values.length];
+          for (int j = 0; j < values.length; j++) {
+            dfs[j] = Integer.parseInt (values[j]);
+          }
+        } else {
+          throw new IllegalArgumentException (args[i]);
+        }
+      }
+    } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+      System.err.print (USAGE);
+      System.exit (1);
+    }
+
+    Random random = new Random (3);
+    RetrievalModel r = new RetrievalModelUnrankedBoolean ();
+    int commonDf = numDocs / 5 * 4;
+    InvList common = makeList (commonDf, numDocs, random);
+
+    for (int df : dfs) {
+      if (df > numDocs) {
+        continue;
+      }
+
+      InvList rare = makeList (df, numDocs, random);
+      long best = Long.MAX_VALUE;
+      int matches = 0;
+
+      for (int rep = 0; rep < reps; rep++) {
+        long start = System.nanoTime ();
+
+        matches = countMatches (common, rare, r);
+        best = Math.min (best, System.nanoTime () - start);
+      }
+
+      System.out.printf ("#and (common[df=%d] rare[df=%d])  1:%d  matches %d  best %.2f ms%n",
+                         commonDf, df, commonDf / df, matches, best / 1e6);
+    }
+  }
+}
@@ -0,0 +1,152 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  Evaluates a query for many settings of the retrieval model's
+ *  parameters in a single pass, e.g., to tune BM25's k_1 and b.
+ *  <p>
+ *  A parameter sweep is requested by giving a model parameter a
+ *  comma-separated list of values in the parameter file, e.g.,
+ *  BM25:k_1=0.9,1.2,1.5.  Every combination of the listed values is
+ *  one configuration.  Matching does not depend on the parameter
+ *  values, so the query is parsed, initialized and traversed once,
+ *  and each matching document is scored once per configuration, with
+ *  one TopKCollector per configuration.  Postings and collection
+ *  statistics are read once for the whole sweep.
+ *  </p>
+ */
+public class SweepEvaluator {
+
+  /**
+   *  The parameters that may be swept.
+   */
+  private static final String[] SWEEP_PARAMETERS =
+    { "BM25:k_1", "BM25:b", "BM25:k_3", "Indri:mu", "Indri:lambda" };
+
+  /**
+   *  Expand a parameter sweep into one set of parameters per
+   *  configuration.  Each configuration has a single value for every
+   *  parameter, and its own trecEvalOutputPath, which names the swept
+   *  values, e.g., run.k_1=0.9.b=0.3.teIn.
+   *  @param parameters The parameters from the parameter file.
+   *  @return One set of parameters per configuration, or null if the
+   *  parameters do not request a sweep.
+   */
+  public static List<Map<String, String>> expandGrid (Map<String, String> parameters) {
+
+    List<Map<String, String>> configs = new ArrayList<Map<String, String>> ();
+    Map<String, String> first = new HashMap<String, String> (parameters);
+    boolean sweep = false;
+
+    configs.add (first);
+
+    for (String name : SWEEP_PARAMETERS) {
+      String value = parameters.get (name);
+
+      if ((value == null) || (value.indexOf (',') < 0)) {
+        continue;
+      }
+
+      sweep = true;
+
+      List<Map<String, String>> expanded = new ArrayList<Map<String, String>> ();
+      String label = name.substring (name.indexOf (':') + 1);
+
+      for (Map<String, String> config : configs) {
+        for (String v : value.split (",")) {
+          Map<String, String> c = new HashMap<String, String> (config);
+          c.put (name, v.trim ());
+          c.put ("trecEvalOutputPath",
+                 insertLabel (config.get ("trecEvalOutputPath"), label + "=" + v.trim ()));
+          expanded.add (c);
+        }
+      }
+
+      configs = expanded;
+    }
+
+    return sweep ? configs : null;
+  }
+
+  /**
+   *  Insert a label before the extension of a file name.
+   *  @param path A file path, e.g., run.teIn.
+   *  @param label A label, e.g., k_1=0.9.
+   *  @return The new file path, e.g., run.k_1=0.9.teIn.
+   */
+  private static String insertLabel (String path, String label) {
+
+    int dot = path.lastIndexOf ('.');
+
+    if (dot <= path.lastIndexOf (File.separatorChar)) {
+      return path + "." + label;
+    }
+
+    return path.substring (0, dot) + "." + label + path.substring (dot);
+  }
+
+  /**
+   *  Evaluate a query for several configurations of one retrieval
+   *  model and return the top k documents of each.
+   *  @param qString A string that contains a query.
+   *  @param models The configurations.  They must be instances of the
+   *  same retrieval model class.
+   *  @param k The number of documents to return for each configuration.
+   *  @return The top k documents of each configuration, in the order
+   *  of models, or null if the query can't be parsed.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static ScoreList[] evaluate (String qString, RetrievalModel[] models, int k)
+    throws IOException {
+
+    RetrievalModel model = models[0];
+    Qry q = QryParser.getQuery (model.defaultQrySopName () + "(" + qString + ")", model);
+
+    // Show the query that is evaluated
+
+    System.out.println("    --> " + q);
+
+    if (q == null) {
+      return null;
+    }
+
+    TopKCollector[] topK = new TopKCollector[models.length];
+
+    for (int c = 0; c < models.length; c++) {
+      topK[c] = new TopKCollector (k);
+    }
+
+    if (q.args.size () > 0) {		// Ignore empty queries
+
+      q.initialize (model);
+
+      QryScorer[] scorers = new QryScorer[models.length];
+
+      for (int c = 0; c < models.length; c++) {
+        scorers[c] = QryScorer.compile (q, models[c]);
+      }
+
+      while (q.docIteratorHasMatch (model)) {
+        int docid = q.docIteratorGetMatch ();
+
+        for (int c = 0; c < models.length; c++) {
+          topK[c].add (docid, scorers[c].getScore (docid));
+        }
+
+        q.docIteratorAdvancePast (docid);
+      }
+    }
+
+    ScoreList[] results = new ScoreList[models.length];
+
+    for (int c = 0; c < models.length; c++) {
+      results[c] = topK[c].toScoreList ();
+    }
+
+    return results;
+  }
+}
@@ -0,0 +1,343 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ *  Term-at-a-time (TAAT) evaluation of flat queries:  BM25 #SUM and
+ *  Boolean #OR queries whose arguments are all SCORE operators on
+ *  terms.
+ *  <p>
+ *  Document-at-a-time evaluation walks the query tree once per
+ *  document.  This evaluator instead walks one argument's list at a
+ *  time, and adds each posting's score to an accumulator for its
+ *  document.  When the lists are long, the accumulators are a dense
+ *  array indexed by docid; when they are short, they are a sorted
+ *  array of (docid, score) pairs that each list is merged into.
+ *  </p><p>
+ *  Arguments are processed in query order, and each score is computed
+ *  by the same code as QrySopScore (see QryScorer), so the score of
+ *  each document is combined in the same order and is identical to
+ *  document-at-a-time evaluation.
+ *  </p><p>
+ *  useTaat chooses between the two engines for each query, by
+ *  comparing their estimated costs.  Flat queries with two or more
+ *  arguments usually favor TAAT; the more arguments, the more
+ *  document-at-a-time evaluation pays for visiting each one per
+ *  document.
+ *  </p>
+ */
+public class TaatEvaluator {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  How queries are assigned to this evaluator:  "auto" (the
+   *  default), "true" (every query that canEvaluate), or "false".
+   */
+  private static String mode = "auto";
+
+  /**
+   *  Dense accumulators are used if the arguments have at least
+   *  maxDoc / DENSE_FRACTION postings.
+   */
+  private static final int DENSE_FRACTION = 16;
+
+  /**
+   *  The cost of scanning one dense accumulator for the results,
+   *  relative to the cost of one posting.
+   */
+  private static final double DENSE_SCAN_COST = 0.125;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Indicates whether a query can be evaluated by this class.  The
+   *  query must be a BM25 #SUM or a Boolean #OR, and its arguments
+   *  must all be SCORE operators on terms.
+   *  @param q An initialized query.
+   *  @param r The retrieval model.
+   *  @return True if the query can be evaluated, otherwise false.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel r) {
+
+    boolean isBoolean = (r instanceof RetrievalModelUnrankedBoolean) ||
+      (r instanceof RetrievalModelRankedBoolean);
+
+    if (! (((q instanceof QrySopSum) && (r instanceof RetrievalModelBM25)) ||
+           ((q instanceof QrySopOr) && isBoolean))) {
+      return false;
+    }
+
+    for (Qry q_i: q.args) {
+      if (! ((q_i instanceof QrySopScore) && (q_i.args.get (0) instanceof QryIopTerm))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Set how queries are assigned to this evaluator.
+   *  @param taat "auto", "true", or "false".
+   *  @throws IllegalArgumentException Unknown mode.
+   */
+  public static void setMode (String taat) {
+    if (! (taat.equals ("auto") || taat.equals ("true") || taat.equals ("false"))) {
+      throw new IllegalArgumentException ("taat must be auto, true or false, not " + taat);
+    }
+    TaatEvaluator.mode = taat;
+  }
+
+  /**
+   *  Choose whether a query should be evaluated term-at-a-time.  In
+   *  auto mode, the estimated costs of the two engines are compared,
+   *  in units of postings.  P is the number of postings, and U, the
+   *  number of documents that match, is estimated as min (P, maxDoc).
+   *  Document-at-a-time evaluation visits n arguments for each of U
+   *  documents.  Term-at-a-time evaluation reads P postings, and then
+   *  scans the dense accumulators, or merges each list into the
+   *  sparse accumulators, which are about U/2 long on average.
+   *  @param q An initialized query.
+   *  @param r The retrieval model.
+   *  @return True if the query can and should be evaluated by this
+   *  class, otherwise false.
+   */
+  public static boolean useTaat (Qry q, RetrievalModel r) {
+
+    if (mode.equals ("false") || ! canEvaluate (q, r)) {
+      return false;
+    }
+
+    if (mode.equals ("true")) {
+      return true;
+    }
+
+    int n = q.args.size ();
+    long maxDoc = Idx.INDEXREADER.maxDoc ();
+    long postings = q.docIteratorCost (r);
+    double matches = Math.min (postings, maxDoc);
+    double daatCost = n * matches;
+    double taatCost = isDense (postings, maxDoc) ?
+      postings + DENSE_SCAN_COST * maxDoc :
+      postings + n * matches / 2;
+
+    return taatCost < daatCost;
+  }
+
+  /**
+   *  Indicates whether dense accumulators should be used.
+   */
+  private static boolean isDense (long postings, long maxDoc) {
+    return (postings >= maxDoc / DENSE_FRACTION);
+  }
+
+  /**
+   *  Evaluate a query.
+   *  @param q An initialized query that satisfies canEvaluate.
+   *  @param model The retrieval model.
+   *  @param k The number of documents to return, or 0 for all of them.
+   *  @return The matching documents, sorted.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static ScoreList evaluate (Qry q, RetrievalModel model, int k)
+    throws IOException {
+
+    int maxDoc = Idx.INDEXREADER.maxDoc ();
+    long postings = q.docIteratorCost (model);
+
+    Accumulators acc = isDense (postings, maxDoc) ?
+      new DenseAccumulators (maxDoc) : new SparseAccumulators ((int) postings);
+
+    boolean sum = (model instanceof RetrievalModelBM25);
+
+    for (Qry q_i: q.args) {
+      QryScorer scorer = QryScorer.compile (q_i, model);
+
+      acc.beginList ();
+
+      while (q_i.docIteratorHasMatch (model)) {
+        int docid = q_i.docIteratorGetMatch ();
+
+        acc.add (docid, scorer.getScore (docid), sum);
+        q_i.docIteratorAdvancePast (docid);
+      }
+
+      acc.endList ();
+    }
+
+    //  Select the results.
+
+    if (k > 0) {
+      TopKCollector topK = new TopKCollector (k);
+      acc.collect (topK, null);
+      return topK.toScoreList ();
+    }
+
+    ScoreList r = new ScoreList ();
+    acc.collect (null, r);
+    r.sort ();
+    return r;
+  }
+
+  //  --------------- Accumulators ----------------------------------
+
+  /**
+   *  The scores of the documents that have been matched so far.  The
+   *  first score of a document is combined with the initial value
+   *  that QrySopSum or QrySopOr starts from:  0 for a sum, and
+   *  Double.MIN_VALUE for a max.
+   */
+  private static abstract class Accumulators {
+
+    static double combine (boolean sum, double acc, double score) {
+      return sum ? acc + score : Math.max (acc, score);
+    }
+
+    static double initial (boolean sum) {
+      return sum ? 0.0 : Double.MIN_VALUE;
+    }
+
+    void beginList () {
+    }
+
+    /**
+     *  Add a posting's score.  Within a list, docids increase.
+     */
+    abstract void add (int docid, double score, boolean sum);
+
+    void endList () {
+    }
+
+    /**
+     *  Offer every matched document to a TopKCollector or a ScoreList.
+     */
+    abstract void collect (TopKCollector topK, ScoreList r) throws IOException;
+  }
+
+  /**
+   *  An accumulator for every docid.
+   */
+  private static class DenseAccumulators extends Accumulators {
+
+    private final double[] scores;
+    private final boolean[] matched;
+
+    DenseAccumulators (int maxDoc) {
+      this.scores = new double[maxDoc];
+      this.matched = new boolean[maxDoc];
+    }
+
+    void add (int docid, double score, boolean sum) {
+      if (! this.matched[docid]) {
+        this.matched[docid] = true;
+        this.scores[docid] = initial (sum);
+      }
+      this.scores[docid] = combine (sum, this.scores[docid], score);
+    }
+
+    void collect (TopKCollector topK, ScoreList r) throws IOException {
+      for (int docid = 0; docid < this.matched.length; docid++) {
+        if (this.matched[docid]) {
+          if (topK != null) {
+            topK.add (docid, this.scores[docid]);
+          } else {
+            r.add (docid, this.scores[docid]);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   *  Accumulators for the matched documents only, sorted by docid.
+   *  Each list is collected and then merged with them.  The merge
+   *  writes to a second pair of arrays, and the two pairs swap, so
+   *  arrays are allocated only when they grow.
+   */
+  private static class SparseAccumulators extends Accumulators {
+
+    private int[] docids;
+    private double[] scores;
+    private int size = 0;
+
+    private int[] mergedDocids;
+    private double[] mergedScores;
+
+    private int[] listDocids;
+    private double[] listScores;
+    private int listSize = 0;
+    private boolean listSum;
+
+    SparseAccumulators (int capacity) {
+      capacity = Math.max (capacity, 16);
+      this.docids = new int[0];
+      this.scores = new double[0];
+      this.mergedDocids = new int[0];
+      this.mergedScores = new double[0];
+      this.listDocids = new int[capacity];
+      this.listScores = new double[capacity];
+    }
+
+    void beginList () {
+      this.listSize = 0;
+    }
+
+    void add (int docid, double score, boolean sum) {
+      if (this.listSize == this.listDocids.length) {
+        this.listDocids = Arrays.copyOf (this.listDocids, 2 * this.listSize);
+        this.listScores = Arrays.copyOf (this.listScores, 2 * this.listSize);
+      }
+      this.listDocids[this.listSize] = docid;
+      this.listScores[this.listSize] = score;
+      this.listSize ++;
+      this.listSum = sum;
+    }
+
+    void endList () {
+      int capacity = this.size + this.listSize;
+
+      if (capacity > this.mergedDocids.length) {
+        capacity = Math.max (capacity, 2 * this.mergedDocids.length);
+        this.mergedDocids = new int[capacity];
+        this.mergedScores = new double[capacity];
+      }
+
+      int[] mergedDocids = this.mergedDocids;
+      double[] mergedScores = this.mergedScores;
+      int i = 0;
+      int j = 0;
+      int m = 0;
+
+      while ((i < this.size) || (j < this.listSize)) {
+        if ((j == this.listSize) ||
+            ((i < this.size) && (this.docids[i] < this.listDocids[j]))) {
+          mergedDocids[m] = this.docids[i];
+          mergedScores[m] = this.scores[i++];
+        } else if ((i == this.size) || (this.listDocids[j] < this.docids[i])) {
+          mergedDocids[m] = this.listDocids[j];
+          mergedScores[m] = combine (this.listSum, initial (this.listSum), this.listScores[j++]);
+        } else {
+          mergedDocids[m] = this.docids[i];
+          mergedScores[m] = combine (this.listSum, this.scores[i++], this.listScores[j++]);
+        }
+        m ++;
+      }
+
+      this.mergedDocids = this.docids;
+      this.mergedScores = this.scores;
+      this.docids = mergedDocids;
+      this.scores = mergedScores;
+      this.size = m;
+    }
+
+    void collect (TopKCollector topK, ScoreList r) throws IOException {
+      for (int i = 0; i < this.size; i++) {
+        if (topK != null) {
+          topK.add (this.docids[i], this.scores[i]);
+        } else {
+          r.add (this.docids[i], this.scores[i]);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,205 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  A memory-mapped table of the df and ctf of every term in one field,
+ *  stored in a sidecar file next to a Lucene index.  A pruned index
+ *  (see PruneIndex) has fewer postings than the index that it was
+ *  built from, so Lucene's df and ctf would be too small; the pruned
+ *  index gets the table of the full index instead, and Idx reports
+ *  the full index's statistics whenever a field has a table.
+ *  <p>
+ *  File layout, big-endian:  a header (magic, format version, index
+ *  version, maxDoc, number of terms); the byte offset of each term
+ *  (numTerms+1 ints); each term's df (numTerms ints); each term's ctf
+ *  (numTerms longs); and the UTF-8 terms, in index order.
+ *  </p>
+ */
+public class TermStats {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The prefix of the sidecar file names.  Each field has its own
+   *  sidecar, e.g., "terms.body".
+   */
+  public static final String SIDECAR_PREFIX = "terms.";
+
+  private static final int MAGIC = 0x51455453;
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_SIZE = 24;
+
+  private final MappedByteBuffer buffer;
+  private final int numTerms;
+  private final int offsetsStart;
+  private final int dfsStart;
+  private final int ctfsStart;
+  private final int termsStart;
+
+  //  --------------- Methods ---------------------------------------
+
+  private TermStats (MappedByteBuffer buffer) {
+    this.buffer = buffer;
+    this.numTerms = buffer.getInt (20);
+    this.offsetsStart = HEADER_SIZE;
+    this.dfsStart = this.offsetsStart + 4 * (this.numTerms + 1);
+    this.ctfsStart = this.dfsStart + 4 * this.numTerms;
+    this.termsStart = this.ctfsStart + 8 * this.numTerms;
+  }
+
+  /**
+   *  Open the term statistics of a field, if it has them.  A table
+   *  that was built for a different version of the index is ignored.
+   *  @param reader The index.
+   *  @param path The sidecar file.
+   *  @return The term statistics, or null if there is no usable table.
+   *  @throws IOException Error reading the sidecar file.
+   */
+  public static TermStats open (IndexReader reader, Path path)
+    throws IOException {
+
+    MappedByteBuffer buffer = Idx.mapSidecar (reader, path, MAGIC, FORMAT_VERSION,
+                                               HEADER_SIZE, "a term statistics table");
+
+    return (buffer == null) ? null : new TermStats (buffer);
+  }
+
+  /**
+   *  Open the term statistics of every field of an index that has them.
+   *  @param reader The index.
+   *  @param indexPath The directory that contains the index.
+   *  @return The term statistics, by field name.  The map is empty if
+   *  the index has none.
+   *  @throws IOException Error reading a sidecar file.
+   */
+  public static Map<String,TermStats> openAll (IndexReader reader, String indexPath)
+    throws IOException {
+
+    Map<String,TermStats> termStats = new HashMap<String,TermStats> ();
+
+    for (String field : MultiFields.getIndexedFields (reader)) {
+      TermStats stats =
+        open (reader, Idx.getSidecarPath (indexPath, SIDECAR_PREFIX + field));
+
+      if (stats != null) {
+        termStats.put (field, stats);
+      }
+    }
+
+    return termStats;
+  }
+
+  /**
+   *  Build a table of the statistics of one index's terms for use
+   *  with another index that has the same documents.
+   *  @param source The index whose statistics are saved.
+   *  @param field The field.
+   *  @param target The index that the table is for.
+   *  @param path The sidecar file.
+   *  @throws IOException Error accessing the indexes or writing the file.
+   */
+  public static void build (IndexReader source, String field, IndexReader target, Path path)
+    throws IOException {
+
+    Terms terms = MultiFields.getTerms (source, field);
+    long size = (terms == null) ? 0 : terms.size ();
+
+    if (size < 0) {
+      size = 0;
+      for (TermsEnum ti = terms.iterator (); ti.next () != null; ) {
+        size ++;
+      }
+    }
+
+    int numTerms = (int) size;
+    int[] dfs = new int[numTerms];
+    long[] ctfs = new long[numTerms];
+    ByteArrayOutputStream termBytes = new ByteArrayOutputStream ();
+    int[] offsets = new int[numTerms + 1];
+
+    if (terms != null) {
+      TermsEnum ti = terms.iterator ();
+
+      for (int n = 0; ti.next () != null; n++) {
+        BytesRef t = ti.term ();
+
+        offsets[n] = termBytes.size ();
+        dfs[n] = ti.docFreq ();
+        ctfs[n] = ti.totalTermFreq ();
+        termBytes.write (t.bytes, t.offset, t.length);
+      }
+    }
+
+    offsets[numTerms] = termBytes.size ();
+
+    long fileLength =
+      HEADER_SIZE + 4L * (numTerms + 1) + 12L * numTerms + termBytes.size ();
+
+    if (fileLength > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException (
+        "The term statistics would be larger than 2GB, which is not supported.");
+    }
+
+    //  Write the file.
+
+    Path tmp = path.resolveSibling (path.getFileName () + ".tmp");
+
+    try (DataOutputStream out = new DataOutputStream (
+           new BufferedOutputStream (Files.newOutputStream (tmp)))) {
+
+      out.writeInt (MAGIC);
+      out.writeInt (FORMAT_VERSION);
+      out.writeLong (Idx.getIndexVersion (target));
+      out.writeInt (target.maxDoc ());
+      out.writeInt (numTerms);
+
+      for (int offset : offsets) {
+        out.writeInt (offset);
+      }
+      for (int df : dfs) {
+        out.writeInt (df);
+      }
+      for (long ctf : ctfs) {
+        out.writeLong (ctf);
+      }
+      termBytes.writeTo (out);
+    }
+
+    Files.move (tmp, path, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   *  Get the document frequency of a term.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @return The df, or 0 if the term is not in the table.
+   */
+  public int getDf (String term) {
+    int n = this.find (term);
+    return (n < 0) ? 0 : this.buffer.getInt (this.dfsStart + 4 * n);
+  }
+
+  /**
+   *  Get the collection term frequency of a term.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @return The ctf, or 0 if the term is not in the table.
+   */
+  public long getCtf (String term) {
+    int n = this.find (term);
+    return (n < 0) ? 0 : this.buffer.getLong (this.ctfsStart + 8 * n);
+  }
+
+  /**
+   *  Find a term.
+   *  @return The index of the term, or -1 if it is not in the table.
+   */
+  private int find (String term) {
+    return Idx.findSidecarTerm (this.buffer, this.numTerms, this.offsetsStart,
+                                this.termsStart, term);
+  }
+}
@@ -196,7 +196,7 @@ public class TermVector {
    * @throws IOException  Error accessing the Lucene index
    */
   public long totalStemFreq(int i) throws IOException {
-    return Idx.INDEXREADER.totalTermFreq(terms[i]);
+    return Idx.getTotalTermFreq(terms[i].field(), terms[i].text());
   }
   
   /**
@@ -206,7 +206,7 @@ public class TermVector {
    * @throws IOException Error accessing the Lucene index
    */
   public int stemDf(int i) throws IOException {
-    return Idx.INDEXREADER.docFreq(terms[i]);
+    return Idx.getDocFreq(terms[i].field(), terms[i].text());
   }
   
 }
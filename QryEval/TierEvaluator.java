@@ -0,0 +1,163 @@
+import java.io.IOException;
+
+/**
+ *  Tiered top-k evaluation of BM25 #SUM queries on an index whose
+ *  documents are in static-rank order (see TierIndex).
+ *  <p>
+ *  Tier 1 is the index's first docids, the documents with the best
+ *  static rank.  A query is evaluated on tier 1 first, with MaxScore
+ *  (see MaxScoreEvaluator).  The rest of the index is evaluated only
+ *  if tier 1 has fewer than k matches, or if a document outside the
+ *  tier might beat the k'th best score:  i.e., if that score isn't
+ *  above the sum of the upper bounds of the query's arguments outside
+ *  the tier, times the bound factor.  A term's upper bound uses its
+ *  largest tf outside the tier, which TierIndex records.  The rest of
+ *  the index continues from the tier's top k, so the tier's k'th score
+ *  is the initial threshold, and the query's inverted lists are read
+ *  once.
+ *  </p><p>
+ *  With the default bound factor of 1, the results are identical to
+ *  exhaustive evaluation, and a query stops after tier 1 only when
+ *  its top k can be shown to be in the tier.  A smaller factor lets
+ *  more queries stop after tier 1, at the risk of missing documents
+ *  outside it.  The number of queries that stop after tier 1 and that
+ *  fall back are summarized at the end of the run.
+ *  </p>
+ */
+public class TierEvaluator {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static boolean enabled = false;
+
+  /**
+   *  The fraction of the upper bound that the tier's k'th score must
+   *  be above.  1 is rank-safe.
+   */
+  private static double boundFactor = 1.0;
+
+  /**
+   *  Totals for the report.
+   */
+  private static int reportQueries = 0;
+  private static int reportTooFew = 0;
+  private static int reportBoundFailed = 0;
+  private static long reportNanos = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Choose whether queries are evaluated on tier 1 first.
+   *  @param enable True to evaluate tier 1 first.
+   */
+  public static void setEnabled (boolean enable) {
+    TierEvaluator.enabled = enable;
+  }
+
+  /**
+   *  Indicates whether queries are evaluated on tier 1 first.
+   *  @return True if tier 1 is evaluated first.
+   */
+  public static boolean isEnabled () {
+    return TierEvaluator.enabled;
+  }
+
+  /**
+   *  Set the fraction of the upper bound that the tier's k'th score
+   *  must be above for evaluation to stop after tier 1.
+   *  @param factor The fraction, which is 1 for rank-safe results.
+   *  @throws IllegalArgumentException The factor is negative.
+   */
+  public static void setBoundFactor (double factor) {
+    if (factor < 0) {
+      throw new IllegalArgumentException ("tier:bound must be at least 0, not " + factor);
+    }
+    TierEvaluator.boundFactor = factor;
+  }
+
+  /**
+   *  Indicates whether a query can be evaluated by this class.  The
+   *  current index must have a tier, and the query must satisfy
+   *  MaxScoreEvaluator.canEvaluate.  The query need not be initialized.
+   *  @param q A query.
+   *  @param r The retrieval model.
+   *  @return True if the query can be evaluated, otherwise false.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel r) {
+    return (Idx.getTierIndex () != null) && MaxScoreEvaluator.canEvaluate (q, r);
+  }
+
+  /**
+   *  Evaluate a query on tier 1, and on the rest of the index if
+   *  necessary.
+   *  @param q An initialized #SUM query that satisfies canEvaluate.
+   *  @param model The BM25 retrieval model.
+   *  @param k The number of documents to return.
+   *  @return The top k documents, sorted.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static ScoreList evaluate (QrySopSum q, RetrievalModelBM25 model, int k)
+    throws IOException {
+
+    long start = System.nanoTime ();
+    int tierSize = Idx.getTierIndex ().getTierSize ();
+    TopKCollector topK = MaxScoreEvaluator.evaluate (q, model, k, 0, tierSize);
+
+    boolean tooFew = (topK.size () < k);
+    boolean boundFailed = false;
+
+    if (! tooFew) {
+      TierIndex tier = Idx.getTierIndex ();
+      double bound = 0.0;
+
+      for (Qry q_i: q.args) {
+        QryIop iop = (QryIop) q_i.args.get (0);
+        int maxTf = (iop instanceof QryIopTerm) ?
+          tier.getMaxTf (iop.getField (), ((QryIopTerm) iop).getTerm ().toLowerCase ()) :
+          Integer.MAX_VALUE;
+
+        bound += MaxScoreEvaluator.upperBound ((QrySopScore) q_i, model, maxTf);
+      }
+
+      boundFailed =
+        ! MaxScoreEvaluator.belowThreshold (boundFactor * bound, topK.getThreshold ());
+    }
+
+    if (tooFew || boundFailed) {
+      MaxScoreEvaluator.evaluate (q, model, topK, tierSize, Integer.MAX_VALUE);
+    }
+
+    report (tooFew, boundFailed, System.nanoTime () - start);
+    return topK.toScoreList ();
+  }
+
+  /**
+   *  Add the outcome of a query to the summary.
+   */
+  private static synchronized void report (boolean tooFew, boolean boundFailed, long nanos) {
+    reportQueries ++;
+    reportTooFew += tooFew ? 1 : 0;
+    reportBoundFailed += boundFailed ? 1 : 0;
+    reportNanos += nanos;
+  }
+
+  /**
+   *  Get a summary of the queries that were evaluated.
+   *  @return The summary, or null if no queries were evaluated.
+   */
+  public static synchronized String getReport () {
+
+    if (reportQueries == 0) {
+      return null;
+    }
+
+    int fellBack = reportTooFew + reportBoundFailed;
+
+    return String.format (
+      "Tiered evaluation:  %d queries, %d stopped after tier 1 (%.1f%%), " +
+      "%d fell back (%d with fewer than k matches, %d above the bound), time %.1f ms",
+      reportQueries, reportQueries - fellBack,
+      100.0 * (reportQueries - fellBack) / reportQueries,
+      fellBack, reportTooFew, reportBoundFailed, reportNanos / 1e6);
+  }
+}
@@ -0,0 +1,441 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  A copy of an index whose documents are in static-rank order, so
+ *  that its first docids are a tier of high-quality documents.  Run it
+ *  to see a usage message.
+ *  <p>
+ *  The static rank of a document is determined by its PageRank and
+ *  spamScore stored fields, the same attributes that Feature reads.
+ *  spamScore is a spam percentile:  0 is the most likely to be spam,
+ *  and documents below a threshold (-spam, 70 by default) are treated
+ *  as spam.  Documents that are not spam come first, then spam, then
+ *  documents without the attributes; each group is in descending
+ *  order of PageRank.  Tier 1 is the first -percent (10 by default)
+ *  percent of the documents, excluding spam.  See TierEvaluator.
+ *  </p><p>
+ *  The copy is built from the term vectors of the index, so it needs
+ *  term vectors with positions, as for PruneIndex.  It has every
+ *  posting of the index, and only the docids change.  The tier size
+ *  is saved in a sidecar file.  Each field also has a sidecar of the
+ *  largest tf of each term in the documents outside tier 1, so that
+ *  TierEvaluator can bound the scores of those documents.
+ *  </p><p>
+ *  File layouts, big-endian:  the tier is a header (magic, format
+ *  version, index version, maxDoc, tier size).  A field's bounds are
+ *  a header (magic, format version, index version, maxDoc, number of
+ *  terms); the byte offset of each term (numTerms+1 ints); each
+ *  term's largest tf (numTerms ints); and the UTF-8 terms, in index
+ *  order.  Terms that don't occur outside tier 1 are omitted.
+ *  </p>
+ */
+public class TierIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the sidecar file.
+   */
+  public static final String SIDECAR_NAME = "tier";
+
+  /**
+   *  The prefix of the names of the bounds sidecars.  Each field has
+   *  its own sidecar, e.g., "tier.body".
+   */
+  public static final String BOUNDS_PREFIX = "tier.";
+
+  private static final int MAGIC = 0x51455449;
+  private static final int BOUNDS_MAGIC = 0x51455442;
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_SIZE = 24;
+
+  private static final String USAGE =
+    "Usage:  java TierIndex -index INDEX_PATH -output TIERED_PATH [-percent P] [-spam S]\n\n" +
+    "where tier 1 is P percent of the documents (10 by default), and documents\n" +
+    "whose spamScore is below S (70 by default) are spam.\n";
+
+  private static String externalIdField = new String ("externalId");
+
+  private final int tierSize;
+  private final Map<String,TermBounds> bounds;
+
+  /**
+   *  The largest tf of each term of one field outside tier 1.
+   */
+  private static class TermBounds {
+
+    private final MappedByteBuffer buffer;
+    private final int numTerms;
+    private final int offsetsStart;
+    private final int maxTfsStart;
+    private final int termsStart;
+
+    private TermBounds (MappedByteBuffer buffer) {
+      this.buffer = buffer;
+      this.numTerms = buffer.getInt (20);
+      this.offsetsStart = HEADER_SIZE;
+      this.maxTfsStart = this.offsetsStart + 4 * (this.numTerms + 1);
+      this.termsStart = this.maxTfsStart + 4 * this.numTerms;
+    }
+
+    private int getMaxTf (String term) {
+      int n = Idx.findSidecarTerm (this.buffer, this.numTerms, this.offsetsStart,
+                                   this.termsStart, term);
+      return (n < 0) ? 0 : this.buffer.getInt (this.maxTfsStart + 4 * n);
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  private TierIndex (MappedByteBuffer buffer, Map<String,TermBounds> bounds) {
+    this.tierSize = buffer.getInt (20);
+    this.bounds = bounds;
+  }
+
+  /**
+   *  Open the tier of an index, if it has one.  A tier that was built
+   *  for a different version of the index is ignored.
+   *  @param reader The index.
+   *  @param indexPath The directory that contains the index.
+   *  @return The tier, or null if there is no usable tier.
+   *  @throws IOException Error reading a sidecar file.
+   */
+  public static TierIndex open (IndexReader reader, String indexPath)
+    throws IOException {
+
+    MappedByteBuffer buffer =
+      Idx.mapSidecar (reader, Idx.getSidecarPath (indexPath, SIDECAR_NAME),
+                      MAGIC, FORMAT_VERSION, HEADER_SIZE, "a tier");
+
+    if (buffer == null) {
+      return null;
+    }
+
+    Map<String,TermBounds> bounds = new HashMap<String,TermBounds> ();
+
+    for (String field : MultiFields.getIndexedFields (reader)) {
+      MappedByteBuffer b =
+        Idx.mapSidecar (reader, Idx.getSidecarPath (indexPath, BOUNDS_PREFIX + field),
+                        BOUNDS_MAGIC, FORMAT_VERSION, HEADER_SIZE, "a table of tier bounds");
+
+      if (b != null) {
+        bounds.put (field, new TermBounds (b));
+      }
+    }
+
+    return new TierIndex (buffer, bounds);
+  }
+
+  /**
+   *  Get the number of documents in tier 1.  They are docids 0 to
+   *  tierSize - 1.
+   *  @return The tier size.
+   */
+  public int getTierSize () {
+    return this.tierSize;
+  }
+
+  /**
+   *  Get the largest tf of a term in the documents outside tier 1.
+   *  @param field The field.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @return The largest tf, 0 if the term doesn't occur outside tier
+   *  1, or Integer.MAX_VALUE if the field has no bounds.
+   */
+  public int getMaxTf (String field, String term) {
+    TermBounds b = this.bounds.get (field);
+    return (b == null) ? Integer.MAX_VALUE : b.getMaxTf (term);
+  }
+
+  /**
+   *  Copy an index in static-rank order.
+   *  @param indexPath The index.
+   *  @param outputPath The directory for the copy.
+   *  @param percent The percent of the documents in tier 1.
+   *  @param spamThreshold Documents whose spamScore is below this are spam.
+   *  @throws IOException Error accessing the indexes.
+   */
+  public static void build (String indexPath, String outputPath, double percent,
+                            int spamThreshold)
+    throws IOException {
+
+    Idx.open (indexPath);
+
+    IndexReader reader = Idx.INDEXREADER;
+    int maxDoc = reader.maxDoc ();
+    FieldInfos fieldInfos = MultiFields.getMergedFieldInfos (reader);
+    List<String> fields = new ArrayList<String> ();
+
+    for (FieldInfo info : fieldInfos) {
+      if (info.getIndexOptions () == IndexOptions.NONE) {
+        continue;
+      }
+      if (info.hasVectors ()) {
+        fields.add (info.name);
+      } else if (! info.name.equals (externalIdField)) {
+        System.err.println ("Warning:  Field " + info.name +
+                            " has no term vectors, so it is not copied.");
+      }
+    }
+
+    //  Order the documents by static rank.
+
+    int[] groups = new int[maxDoc];
+    double[] pageRanks = new double[maxDoc];
+    Set<String> attributes = new HashSet<String> (Arrays.asList ("PageRank", "spamScore"));
+    int notSpam = 0;
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      Document d = reader.document (docid, attributes);
+      String pageRank = d.get ("PageRank");
+      String spamScore = d.get ("spamScore");
+
+      pageRanks[docid] = 0.0;
+      groups[docid] = 2;
+
+      if ((pageRank != null) && (spamScore != null)) {
+        try {
+          pageRanks[docid] = Double.parseDouble (pageRank);
+          groups[docid] = (Double.parseDouble (spamScore) < spamThreshold) ? 1 : 0;
+        } catch (NumberFormatException ex) {
+          pageRanks[docid] = 0.0;
+          groups[docid] = 2;
+        }
+      }
+
+      if (groups[docid] == 0) {
+        notSpam ++;
+      }
+    }
+
+    Integer[] order = new Integer[maxDoc];
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      order[docid] = docid;
+    }
+
+    Arrays.sort (order, (a, b) -> (groups[a] != groups[b]) ?
+                 Integer.compare (groups[a], groups[b]) :
+                 Double.compare (pageRanks[b], pageRanks[a]));
+
+    int tierSize = (int) Math.min (notSpam, Math.ceil (maxDoc * percent / 100));
+
+    //  Copy the documents in static-rank order.  LogDocMergePolicy
+    //  keeps the order when the segments are merged.
+
+    IndexWriterConfig config = new IndexWriterConfig (new KeywordAnalyzer ());
+    config.setOpenMode (IndexWriterConfig.OpenMode.CREATE);
+    config.setSimilarity (new DocLenStoreSimilarity ());
+    config.setMergePolicy (new LogDocMergePolicy ());
+
+    FieldType copyType = new FieldType (TextField.TYPE_NOT_STORED);
+    copyType.setStoreTermVectors (true);
+    copyType.setStoreTermVectorPositions (true);
+    copyType.freeze ();
+
+    try (IndexWriter writer =
+           new IndexWriter (FSDirectory.open (Paths.get (outputPath)), config)) {
+
+      for (int docid : order) {
+        Document doc = PruneIndex.copyStoredFields (reader.document (docid));
+
+        for (String field : fields) {
+          Terms vector = reader.getTermVector (docid, field);
+
+          if (vector == null) {
+            continue;
+          }
+
+          if (! vector.hasPositions ()) {
+            throw new IllegalArgumentException (
+              "Field " + field + " has term vectors without positions, so it can't be copied.");
+          }
+
+          PruneIndex.PositionTokenStream tokens = new PruneIndex.PositionTokenStream ();
+          TermsEnum ti = vector.iterator ();
+          PostingsEnum p = null;
+
+          while (ti.next () != null) {
+            String term = ti.term ().utf8ToString ();
+
+            p = ti.postings (p, PostingsEnum.POSITIONS);
+            p.nextDoc ();
+
+            for (int i = p.freq (); i > 0; i--) {
+              tokens.add (term, p.nextPosition ());
+            }
+          }
+
+          if (tokens.size () > 0) {
+            doc.add (new Field (field, tokens, copyType));
+          }
+        }
+
+        writer.addDocument (doc);
+      }
+
+      writer.forceMerge (1);
+    }
+
+    //  Check the order, and write the sidecars.  The other sidecars
+    //  are built when the copy is first used.
+
+    try (IndexReader tiered =
+           DirectoryReader.open (FSDirectory.open (Paths.get (outputPath)))) {
+
+      for (int docid = 0; docid < maxDoc; docid++) {
+        if (! Objects.equals (reader.document (order[docid]).get (externalIdField),
+                              tiered.document (docid).get (externalIdField))) {
+          throw new IllegalStateException ("Document " + order[docid] +
+                                           " is not docid " + docid + " in the copy.");
+        }
+      }
+
+      Path path = Idx.getSidecarPath (outputPath, SIDECAR_NAME);
+      Path tmp = path.resolveSibling (path.getFileName () + ".tmp");
+
+      try (DataOutputStream out = new DataOutputStream (
+             new BufferedOutputStream (Files.newOutputStream (tmp)))) {
+
+        out.writeInt (MAGIC);
+        out.writeInt (FORMAT_VERSION);
+        out.writeLong (Idx.getIndexVersion (tiered));
+        out.writeInt (tiered.maxDoc ());
+        out.writeInt (tierSize);
+      }
+
+      Files.move (tmp, path, StandardCopyOption.REPLACE_EXISTING);
+
+      for (String field : fields) {
+        buildBounds (tiered, field, tierSize,
+                     Idx.getSidecarPath (outputPath, BOUNDS_PREFIX + field));
+      }
+
+      if (Files.exists (Idx.getSidecarPath (indexPath, DocidMap.SIDECAR_NAME))) {
+        DocidMap.build (tiered, Idx.getSidecarPath (outputPath, DocidMap.SIDECAR_NAME));
+      }
+    }
+
+    System.out.println (String.format (
+      "Tier 1 has %d of %d documents (%.1f%%); %d documents are spam or have no attributes.",
+      tierSize, maxDoc, 100.0 * tierSize / Math.max (maxDoc, 1), maxDoc - notSpam));
+  }
+
+  /**
+   *  Build the table of the largest tf of each term of a field in the
+   *  documents outside tier 1.
+   *  @param reader The index in static-rank order.
+   *  @param field The field.
+   *  @param tierSize The number of documents in tier 1.
+   *  @param path The sidecar file.
+   *  @throws IOException Error accessing the index or writing the file.
+   */
+  private static void buildBounds (IndexReader reader, String field, int tierSize, Path path)
+    throws IOException {
+
+    Terms terms = MultiFields.getTerms (reader, field);
+    ByteArrayOutputStream termBytes = new ByteArrayOutputStream ();
+    List<Integer> offsets = new ArrayList<Integer> ();
+    List<Integer> maxTfs = new ArrayList<Integer> ();
+
+    if (terms != null) {
+      TermsEnum ti = terms.iterator ();
+      PostingsEnum p = null;
+      BytesRef t;
+
+      while ((t = ti.next ()) != null) {
+        p = ti.postings (p, PostingsEnum.FREQS);
+
+        int maxTf = 0;
+
+        for (int docid = p.advance (tierSize);
+             docid != DocIdSetIterator.NO_MORE_DOCS;
+             docid = p.nextDoc ()) {
+          maxTf = Math.max (maxTf, p.freq ());
+        }
+
+        if (maxTf > 0) {
+          offsets.add (termBytes.size ());
+          maxTfs.add (maxTf);
+          termBytes.write (t.bytes, t.offset, t.length);
+        }
+      }
+    }
+
+    int numTerms = maxTfs.size ();
+
+    offsets.add (termBytes.size ());
+
+    if (HEADER_SIZE + 4L * (numTerms + 1) + 4L * numTerms + termBytes.size () >
+        Integer.MAX_VALUE) {
+      throw new IllegalArgumentException (
+        "The tier bounds would be larger than 2GB, which is not supported.");
+    }
+
+    Path tmp = path.resolveSibling (path.getFileName () + ".tmp");
+
+    try (DataOutputStream out = new DataOutputStream (
+           new BufferedOutputStream (Files.newOutputStream (tmp)))) {
+
+      out.writeInt (BOUNDS_MAGIC);
+      out.writeInt (FORMAT_VERSION);
+      out.writeLong (Idx.getIndexVersion (reader));
+      out.writeInt (reader.maxDoc ());
+      out.writeInt (numTerms);
+
+      for (int offset : offsets) {
+        out.writeInt (offset);
+      }
+      for (int maxTf : maxTfs) {
+        out.writeInt (maxTf);
+      }
+      termBytes.writeTo (out);
+    }
+
+    Files.move (tmp, path, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   *  Copy an index in static-rank order.
+   *  @param args See USAGE.
+   *  @throws IOException Error accessing the indexes.
+   */
+  public static void main (String[] args) throws IOException {
+
+    Map<String,String> options = new HashMap<String,String> ();
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (! args[i].startsWith ("-")) {
+        break;
+      }
+      options.put (args[i].substring (1), args[i + 1]);
+    }
+
+    if ((args.length % 2 != 0) ||
+        (! options.containsKey ("index")) ||
+        (! options.containsKey ("output"))) {
+      System.err.println (USAGE);
+      System.exit (1);
+    }
+
+    Timer timer = new Timer ();
+    timer.start ();
+
+    build (options.get ("index"), options.get ("output"),
+           Double.parseDouble (options.getOrDefault ("percent", "10")),
+           Integer.parseInt (options.getOrDefault ("spam", "70")));
+
+    timer.stop ();
+    System.out.println ("Time:  " + timer);
+  }
+}
@@ -0,0 +1,227 @@
+import java.io.IOException;
+
+/**
+ *  Collects the k best documents of a query without keeping every
+ *  matching document.  The collector is a binary min-heap stored in
+ *  primitive arrays; the root is the worst of the current top k, so
+ *  most documents are rejected with a single comparison.
+ *  <p>
+ *  Documents are ordered exactly as ScoreList.sort orders them:  by
+ *  decreasing score, and then by increasing external document id.
+ *  External ids are looked up only when two documents have the same
+ *  score, and are remembered once they are known.  If the index has a
+ *  docid map, ties are broken by comparing external id ordinals.
+ *  </p><p>
+ *  The score of the worst document in a full collector is available
+ *  via getThreshold, so that dynamic pruning methods can skip
+ *  documents that cannot enter the top k.
+ *  </p>
+ */
+public class TopKCollector {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final int k;
+  private int size = 0;
+  private final int[] docids;
+  private final double[] scores;
+  private final String[] externalIds;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param k The number of documents to keep.  Must be at least 1.
+   */
+  public TopKCollector (int k) {
+
+    if (k < 1) {
+      throw new IllegalArgumentException ("k must be at least 1, not " + k);
+    }
+
+    this.k = k;
+    this.docids = new int[k];
+    this.scores = new double[k];
+    this.externalIds = new String[k];
+  }
+
+  /**
+   *  Offer a document to the collector.  It is kept if it is one of
+   *  the k best documents seen so far.
+   *  @param docid An internal document id.
+   *  @param score The document's score.
+   *  @return True if the document was kept, otherwise false.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public boolean add (int docid, double score) throws IOException {
+
+    if (this.size < this.k) {
+      this.docids[this.size] = docid;
+      this.scores[this.size] = score;
+      this.externalIds[this.size] = null;
+      this.siftUp (this.size ++);
+      return true;
+    }
+
+    //  Most documents are rejected here, without a tie-break.
+
+    if (score < this.scores[0]) {
+      return false;
+    }
+
+    String externalId = null;
+
+    if (score == this.scores[0]) {
+      if (Idx.hasExternalDocidOrdinals ()) {
+        if (Idx.getExternalDocidOrdinal (docid) >=
+            Idx.getExternalDocidOrdinal (this.docids[0])) {
+          return false;
+        }
+      } else {
+        externalId = Idx.getExternalDocid (docid);
+
+        if (externalId.compareTo (this.getExternalId (0)) >= 0) {
+          return false;
+        }
+      }
+    }
+
+    this.docids[0] = docid;
+    this.scores[0] = score;
+    this.externalIds[0] = externalId;
+    this.siftDown (0);
+    return true;
+  }
+
+  /**
+   *  Offer every document of another collector to this collector,
+   *  e.g., to merge the top k documents of several docid ranges.
+   *  @param other Another collector.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void addAll (TopKCollector other) throws IOException {
+    for (int i = 0; i < other.size; i++) {
+      this.add (other.docids[i], other.scores[i]);
+    }
+  }
+
+  /**
+   *  Get the score that a document must reach to be considered for the
+   *  top k.  A document with a lower score is rejected; a document with
+   *  the same score may be kept, depending on its external id.
+   *  @return The k'th best score, or negative infinity if fewer than
+   *  k documents have been collected.
+   */
+  public double getThreshold () {
+    return (this.size < this.k) ? Double.NEGATIVE_INFINITY : this.scores[0];
+  }
+
+  /**
+   *  Get the number of documents in the collector.
+   *  @return The number of documents collected, at most k.
+   */
+  public int size () {
+    return this.size;
+  }
+
+  /**
+   *  Get the collected documents as a sorted score list.
+   *  @return The top k documents.
+   */
+  public ScoreList toScoreList () {
+
+    ScoreList r = new ScoreList ();
+
+    for (int i = 0; i < this.size; i++) {
+      r.add (this.docids[i], this.scores[i], this.externalIds[i]);
+    }
+
+    r.sort ();
+    return r;
+  }
+
+  /**
+   *  Get the external id of the document in heap slot i.
+   *  @param i A heap slot.
+   *  @return The external document id.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private String getExternalId (int i) throws IOException {
+    if (this.externalIds[i] == null) {
+      this.externalIds[i] = Idx.getExternalDocid (this.docids[i]);
+    }
+    return this.externalIds[i];
+  }
+
+  /**
+   *  Indicates whether the document in heap slot i ranks below the
+   *  document in heap slot j.
+   *  @param i A heap slot.
+   *  @param j A heap slot.
+   *  @return True if slot i holds the worse document.
+   */
+  private boolean worse (int i, int j) {
+
+    if (this.scores[i] != this.scores[j]) {
+      return (this.scores[i] < this.scores[j]);
+    }
+
+    if (Idx.hasExternalDocidOrdinals ()) {
+      return (Idx.getExternalDocidOrdinal (this.docids[i]) >
+              Idx.getExternalDocidOrdinal (this.docids[j]));
+    }
+
+    try {
+      return (this.getExternalId (i).compareTo (this.getExternalId (j)) > 0);
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Unable to read an external id.", ex);
+    }
+  }
+
+  private void siftUp (int i) {
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+
+      if (! this.worse (i, parent)) {
+        break;
+      }
+
+      this.swap (i, parent);
+      i = parent;
+    }
+  }
+
+  private void siftDown (int i) {
+    while (true) {
+      int child = 2 * i + 1;
+
+      if (child >= this.size) {
+        break;
+      }
+
+      if ((child + 1 < this.size) && this.worse (child + 1, child)) {
+        child ++;
+      }
+
+      if (! this.worse (child, i)) {
+        break;
+      }
+
+      this.swap (i, child);
+      i = child;
+    }
+  }
+
+  private void swap (int i, int j) {
+    int d = this.docids[i];
+    this.docids[i] = this.docids[j];
+    this.docids[j] = d;
+
+    double s = this.scores[i];
+    this.scores[i] = this.scores[j];
+    this.scores[j] = s;
+
+    String e = this.externalIds[i];
+    this.externalIds[i] = this.externalIds[j];
+    this.externalIds[j] = e;
+  }
+}